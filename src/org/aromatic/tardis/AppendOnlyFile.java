@@ -0,0 +1,508 @@
+package org.aromatic.tardis;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The append only file: the write commands, encoded as requests (RESP),
+ * replayed at startup to rebuild the DBs.
+ *
+ * A write is queued while the keys it changes are still locked, see
+ * Tardis.unlock(), so the writes to a key are queued in the order they
+ * were applied, and it is completed once the command returns. A single
+ * writer thread takes the completed entries of all the connections in
+ * queue order, and writes all those queued meanwhile together, with one
+ * write and at most one fsync.
+ *
+ * With the ALWAYS policy the replies wait for the writes to be synced,
+ * with EVERYSEC the file is synced once per second, with NO only when
+ * the OS does it.
+ *
+ * A rewrite replaces the file with the commands that rebuild the DBs
+ * as they were at its start (see Tardis.rewrite()), followed by the
+ * writes logged since then: the writer keeps a copy of those until the
+ * new file is ready, then appends them to it and switches to it.
+ */
+class AppendOnlyFile implements Runnable, Closeable
+{
+    // fsync policies
+    static final int ALWAYS = 0;
+    static final int EVERYSEC = 1;
+    static final int NO = 2;
+
+    static final String POLICIES[] = { "always", "everysec", "no" };
+
+    // how long the writer waits before retrying a failed write
+    static final long RETRY_DELAY = 1000;
+
+    static class Entry
+    {
+	final int db;
+	byte[][] argv;			// null if there is nothing to log
+	boolean queued = false;
+	volatile boolean ready = false;	// the command returned
+	volatile long seq = 0;		// set once it's written
+	Rewrite rewrite = null;		// set for the start of a rewrite
+
+	Entry(int db, byte[][] argv)
+	{
+	    this.db = db;
+	    this.argv = argv;
+	}
+
+	// logs the command as argv (byte[] or strings) instead, or
+	// nothing if it's empty
+	void rewrite(Object... args)
+	{
+	    if (args.length == 0) {
+		argv = null;
+		return;
+	    }
+
+	    argv = new byte[args.length][];
+	    for (int i=0; i < args.length; i++)
+		argv[i] = args[i] instanceof byte[] ? (byte[]) args[i] : Tardis.bytes(args[i].toString());
+	}
+    }
+
+    private final File file;
+    private final int fsync;
+    private FileChannel channel;
+    private final Thread writer;
+
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+
+    // the write being run by the current thread
+    private final ThreadLocal<Entry> running = new ThreadLocal<Entry>();
+
+    private volatile boolean open = true;
+    private volatile boolean waiting = false;	// the writer is idle
+
+    // the entries synced, for ALWAYS
+    private long synced = 0;
+
+    // the replies held back until their entry is synced, see synced()
+    private final LinkedList<Waiter> waiters = new LinkedList<Waiter>();
+
+    private static class Waiter
+    {
+	final Entry entry;
+	final Runnable callback;
+
+	Waiter(Entry entry, Runnable callback)
+	{
+	    this.entry = entry;
+	    this.callback = callback;
+	}
+    }
+
+    private volatile long size;
+    private volatile boolean lastWriteOk = true;
+
+    /**
+     * A rewrite of the file, run by Tardis.rewrite()
+     */
+    class Rewrite
+    {
+	// the writes logged since the start
+	final ReplyBuffer diff = new ReplyBuffer();
+	int db = -1;
+
+	// the new file, set once the DBs are written to it
+	volatile FileChannel channel = null;
+	volatile File tmp = null;
+	volatile boolean aborted = false;
+
+	// set by the writer
+	boolean done = false;
+	IOException error = null;
+
+	/**
+	 * Marks the start, it's called with all the keys locked so the
+	 * writes queued from here on are those not in the DBs written
+	 */
+	void start()
+	{
+	    Entry e = new Entry(-1, null);
+	    e.rewrite = this;
+	    e.ready = true;
+	    queue.add(e);
+	}
+
+	/**
+	 * Adds the writes logged since the start to the file the DBs were
+	 * written to, and waits for it to replace the log
+	 */
+	void finish(FileChannel channel, File tmp)
+	    throws IOException
+	{
+	    synchronized(AppendOnlyFile.this) {
+		this.tmp = tmp;
+		this.channel = channel;
+		LockSupport.unpark(writer);
+
+		while (!done && open) {
+		    try {
+			AppendOnlyFile.this.wait();
+		    } catch(InterruptedException e) {
+			throw new InterruptedIOException();
+		    }
+		}
+
+		if (!done)
+		    throw new IOException(file + " was closed");
+		if (error != null)
+		    throw error;
+	    }
+	}
+
+	void abort()
+	{
+	    aborted = true;
+	}
+    }
+
+    /**
+     * Opens the file to append to it, and starts the writer thread
+     */
+    AppendOnlyFile(File file, int fsync)
+	throws IOException
+    {
+	this.file = file;
+	this.fsync = fsync;
+
+	channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+	    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	size = channel.size();
+
+	writer = new Thread(this, "tardis-aof");
+	writer.setDaemon(true);
+	writer.start();
+    }
+
+    public File file()
+    {
+	return file;
+    }
+
+    public int policy()
+    {
+	return fsync;
+    }
+
+    public long size()
+    {
+	return size;
+    }
+
+    public boolean lastWriteOk()
+    {
+	return lastWriteOk;
+    }
+
+    /**
+     * Starts the entry of a write command run by the current thread
+     */
+    public Entry begin(int db, String name, Args args)
+    {
+	byte argv[][] = new byte[args.length()+1][];
+	argv[0] = Tardis.bytes(name);
+	for (int i=0; i < args.length(); i++)
+	    argv[i+1] = args.bytes(i);
+
+	Entry e = new Entry(db, argv);
+	running.set(e);
+	return e;
+    }
+
+    /**
+     * Queues the write run by the current thread, if it's not queued
+     * yet. It's called with the keys it changed locked
+     */
+    public void applied()
+    {
+	Entry e = running.get();
+	if (e != null && !e.queued) {
+	    e.queued = true;
+	    queue.add(e);
+	}
+    }
+
+    /**
+     * Completes the entry, a failed command is not logged. Returns false
+     * if it was never queued, the command didn't change anything
+     */
+    public boolean end(Entry e, boolean ok)
+    {
+	running.set(null);
+	if (!e.queued)
+	    return false;
+
+	if (!ok)
+	    e.argv = null;
+	e.ready = true;
+
+	if (waiting)
+	    LockSupport.unpark(writer);
+
+	// nothing to wait for if nothing is logged
+	return e.argv != null;
+    }
+
+    /**
+     * With the ALWAYS policy, waits for the entry to be synced. For
+     * the transports that run each connection on its own thread
+     */
+    public void await(Entry e)
+    {
+	if (fsync != ALWAYS)
+	    return;
+
+	synchronized(this) {
+	    while (open && (e.seq == 0 || synced < e.seq)) {
+		try {
+		    wait();
+		} catch(InterruptedException ie) {
+		    return;
+		}
+	    }
+	}
+    }
+
+    /**
+     * With the ALWAYS policy, returns false if the entry is not synced
+     * yet, and the callback is run on the writer thread once it is.
+     * For the event loops, which can't block
+     */
+    public boolean synced(Entry e, Runnable callback)
+    {
+	if (fsync != ALWAYS)
+	    return true;
+
+	synchronized(this) {
+	    if (!open || (e.seq != 0 && synced >= e.seq))
+		return true;
+
+	    waiters.add(new Waiter(e, callback));
+	    return false;
+	}
+    }
+
+    // runs the callbacks of the entries synced, or all of them once
+    // the file is closed. The caller holds the monitor
+    private void release()
+    {
+	for (Iterator<Waiter> i = waiters.iterator(); i.hasNext(); ) {
+	    Waiter w = i.next();
+	    if (open && (w.entry.seq == 0 || synced < w.entry.seq))
+		continue;
+
+	    i.remove();
+	    w.callback.run();
+	}
+    }
+
+    // the writer thread
+    public void run()
+    {
+	ReplyBuffer out = new ReplyBuffer();
+	int db = -1;		// the DB selected in the file
+	long count = 0;		// the entries taken
+	long lastSync = System.currentTimeMillis();
+	boolean dirty = false;	// written but not synced
+	Rewrite rewrite = null;	// the rewrite started, if any
+
+	for (;;) {
+	    boolean taken = false;
+
+	    try {
+		Entry e;
+		while ((e = queue.peek()) != null && e.ready) {
+		    queue.poll();
+
+		    if (e.rewrite != null) {
+			rewrite = e.rewrite;
+			continue;
+		    }
+
+		    if (e.argv != null) {
+			if (e.db != db) {
+			    command(out, "select", Integer.toString(e.db));
+			    db = e.db;
+			}
+			command(out, (Object[]) e.argv);
+
+			if (rewrite != null) {
+			    if (e.db != rewrite.db) {
+				command(rewrite.diff, "select", Integer.toString(e.db));
+				rewrite.db = e.db;
+			    }
+			    command(rewrite.diff, (Object[]) e.argv);
+			}
+		    }
+
+		    e.seq = ++count;
+		    taken = true;
+
+		    if (out.isFull()) {
+			write(out);
+			dirty = true;
+		    }
+		}
+
+		if (out.size() > 0) {
+		    write(out);
+		    dirty = true;
+		}
+
+		long now = System.currentTimeMillis();
+		if (dirty && (fsync == ALWAYS
+		|| (fsync == EVERYSEC && now - lastSync >= 1000))) {
+		    channel.force(false);
+		    dirty = false;
+		    lastSync = now;
+		}
+
+		// after any successful sync, including the retry of one that
+		// failed after the entries were taken
+		if (fsync == ALWAYS && !dirty && synced < count) {
+		    synchronized(this) {
+			synced = count;
+			notifyAll();
+			release();
+		    }
+		}
+
+		if (rewrite != null && rewrite.aborted)
+		    rewrite = null;
+
+		if (rewrite != null && rewrite.channel != null) {
+		    if (replace(rewrite)) {
+			db = rewrite.db;
+			dirty = false;
+		    }
+		    rewrite = null;
+		}
+
+		lastWriteOk = true;
+	    } catch(IOException ex) {
+		// what's not written yet is kept, and retried
+		if (lastWriteOk)
+		    System.out.println("error writing " + file + ": " + ex);
+		lastWriteOk = false;
+
+		LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(RETRY_DELAY));
+		continue;
+	    }
+
+	    if (taken)
+		continue;
+
+	    Entry head = queue.peek();
+	    if (head == null && !open)
+		break;
+
+	    if (rewrite != null && rewrite.channel != null)
+		continue;
+
+	    // wait for the next entry, or the time to sync
+	    waiting = true;
+	    head = queue.peek();
+	    if (head == null || !head.ready)
+		LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(!open ? 1
+		    : fsync == EVERYSEC && dirty ? 1000 - (System.currentTimeMillis() - lastSync)
+		    : 1000));
+	    waiting = false;
+	}
+    }
+
+    /**
+     * Writes out what's queued and closes the file
+     */
+    public void close()
+	throws IOException
+    {
+	open = false;
+	LockSupport.unpark(writer);
+
+	try {
+	    writer.join();
+	} catch(InterruptedException e) {
+	}
+
+	synchronized(this) {
+	    notifyAll();
+	    release();
+	}
+
+	try {
+	    channel.force(false);
+	} finally {
+	    channel.close();
+	}
+    }
+
+    // switches to the rewritten file, once the writes logged since its
+    // start are added. If that fails the log goes on with the current one
+    private boolean replace(Rewrite r)
+    {
+	try {
+	    r.diff.flush(r.channel);
+	    r.channel.force(false);
+	    Files.move(r.tmp.toPath(), file.toPath(),
+		StandardCopyOption.REPLACE_EXISTING,
+		StandardCopyOption.ATOMIC_MOVE);
+	} catch(IOException e) {
+	    r.error = e;
+	}
+
+	FileChannel old = r.error == null ? channel : r.channel;
+	if (r.error == null) {
+	    channel = r.channel;
+	    try {
+		size = channel.size();
+	    } catch(IOException e) {
+	    }
+	} else
+	    r.tmp.delete();
+
+	try {
+	    old.close();
+	} catch(IOException e) {
+	    System.out.println(e);
+	}
+
+	synchronized(this) {
+	    r.done = true;
+	    notifyAll();
+	}
+
+	return r.error == null;
+    }
+
+    private void write(ReplyBuffer out)
+	throws IOException
+    {
+	long n = out.size();
+	out.flush(channel);
+	size += n;
+    }
+
+    /**
+     * Writes a command, the arguments are byte[] or strings
+     */
+    static void command(ReplyBuffer out, Object... argv)
+    {
+	out.listHeader(argv.length);
+	for (Object arg : argv)
+	    out.bulk(arg instanceof byte[] ? (byte[]) arg : Tardis.bytes(arg.toString()));
+    }
+}
@@ -0,0 +1,169 @@
+package org.aromatic.tardis;
+
+import java.util.*;
+
+/**
+ * The arguments of a request, as received from the client.
+ *
+ * Payloads are kept as raw bytes. Commands take values with bytes() and
+ * decode keys, members and options with string(), which maps one byte to
+ * one char (ISO-8859-1) so any binary content round trips unchanged.
+ *
+ * The arguments are views into the buffer the request was parsed from,
+ * see RespParser, so they are only valid while the request is processed.
+ * Requests kept for later (MULTI) must copy() them.
+ */
+class Args
+{
+    static final Args EMPTY = new Args(new byte[0][]);
+
+    private final byte[] buf;
+    private final int offsets[];
+    private final int lengths[];
+    private final int first;
+    private final int count;
+
+    Args(byte[] buf, int offsets[], int lengths[], int first, int count)
+    {
+	this.buf = buf;
+	this.offsets = offsets;
+	this.lengths = lengths;
+	this.first = first;
+	this.count = count;
+    }
+
+    Args(byte[][] values)
+    {
+	int size = 0;
+	for (byte[] v : values)
+	    size += v.length;
+
+	buf = new byte[size];
+	offsets = new int[values.length];
+	lengths = new int[values.length];
+	first = 0;
+	count = values.length;
+
+	int off = 0;
+	for (int i=0; i < count; i++) {
+	    System.arraycopy(values[i], 0, buf, off, values[i].length);
+	    offsets[i] = off;
+	    lengths[i] = values[i].length;
+	    off += lengths[i];
+	}
+    }
+
+    public int length()
+    {
+	return count;
+    }
+
+    public byte[] bytes(int i)
+    {
+	int off = offset(i);
+	return Arrays.copyOfRange(buf, off, off + lengths[first+i]);
+    }
+
+    public String string(int i)
+    {
+	return new String(buf, offset(i), lengths[first+i], Tardis.CHARSET);
+    }
+
+    public String[] strings()
+    {
+	String result[] = new String[count];
+	for (int i=0; i < count; i++)
+	    result[i] = string(i);
+	return result;
+    }
+
+    /**
+     * Compares the argument to an ASCII string, ignoring case
+     */
+    public boolean equalsIgnoreCase(int i, String s)
+    {
+	int off = offset(i);
+	int len = lengths[first+i];
+	if (len != s.length())
+	    return false;
+
+	for (int j=0; j < len; j++) {
+	    int c = buf[off+j] & 0xff;
+	    int d = s.charAt(j);
+	    if (c != d && Character.toLowerCase(c) != Character.toLowerCase(d))
+		return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * The argument as an int, 0 if it is not a valid one
+     */
+    public int integer(int i)
+    {
+	long v = longValue(i);
+	return v == (int) v ? (int) v : 0;
+    }
+
+    /**
+     * The argument as a long, 0 if it is not a valid one
+     */
+    public long longValue(int i)
+    {
+	int off = offset(i);
+	int len = lengths[first+i];
+	if (len == 0 || len > 20)
+	    return 0;
+
+	int j = 0;
+	boolean negative = buf[off] == '-';
+	if (negative || buf[off] == '+')
+	    j++;
+	if (j == len)
+	    return 0;
+
+	// accumulate negative to accept Long.MIN_VALUE
+	long n = 0;
+	for (; j < len; j++) {
+	    int d = buf[off+j] - '0';
+	    if (d < 0 || d > 9)
+		return 0;
+	    if (n < (Long.MIN_VALUE + d) / 10)
+		return 0;
+	    n = n * 10 - d;
+	}
+
+	if (!negative) {
+	    if (n == Long.MIN_VALUE)
+		return 0;
+	    n = -n;
+	}
+
+	return n;
+    }
+
+    /**
+     * A copy of the arguments that doesn't reference the request buffer
+     */
+    public Args copy()
+    {
+	byte values[][] = new byte[count][];
+	for (int i=0; i < count; i++)
+	    values[i] = bytes(i);
+	return new Args(values);
+    }
+
+    public String toString()
+    {
+	return Arrays.toString(strings());
+    }
+
+    private int offset(int i)
+    {
+	if (i < 0 || i >= count)
+	    throw new ArrayIndexOutOfBoundsException(i);
+
+	return offsets[first+i];
+    }
+}
@@ -0,0 +1,128 @@
+package org.aromatic.tardis;
+
+import java.util.*;
+
+/**
+ * Maps command names to integer ids, straight from the request bytes
+ * and ignoring case.
+ *
+ * The names are placed with a seeded hash that is chosen, when the
+ * table is built, so that no two names share a slot (a perfect hash):
+ * a lookup hashes the name once and compares it with the only name
+ * that can match, without decoding it to a String.
+ */
+class CommandTable
+{
+    private final List<String> names = new ArrayList<String>();
+
+    private byte keys[][] = new byte[1][];	// the names by slot
+    private int ids[] = { -1 };		// the ids by slot
+    private int mask = 0;
+    private int seed = 0;
+    private int maxLength = 0;
+
+    /**
+     * Adds a name, returns its id. The ids are given in order from 0
+     */
+    public int add(String name)
+    {
+	name = name.toLowerCase();
+
+	int id = names.indexOf(name);
+	if (id >= 0)
+	    return id;
+
+	names.add(name);
+	maxLength = Math.max(maxLength, name.length());
+	build();
+	return names.size() - 1;
+    }
+
+    /**
+     * The id of the name in buf, -1 if it's not in the table
+     */
+    public int get(byte[] buf, int off, int len)
+    {
+	if (len > maxLength)
+	    return -1;
+
+	int slot = hash(seed, buf, off, len) & mask;
+	byte key[] = keys[slot];
+	if (key == null || key.length != len)
+	    return -1;
+
+	for (int i=0; i < len; i++)
+	    if (lower(buf[off+i]) != key[i])
+		return -1;
+
+	return ids[slot];
+    }
+
+    public String name(int id)
+    {
+	return names.get(id);
+    }
+
+    public int size()
+    {
+	return names.size();
+    }
+
+    // looks for a seed that places every name in its own slot,
+    // in a larger table if it takes too many tries
+    private void build()
+    {
+	int n = names.size();
+	byte values[][] = new byte[n][];
+	for (int i=0; i < n; i++)
+	    values[i] = Tardis.bytes(names.get(i));
+
+	int size = Integer.highestOneBit(Math.max(n * 8, 16) - 1) << 1;
+	for (;;) {
+	    for (int s = 1; s <= 64; s++) {
+		byte k[][] = new byte[size][];
+		if (place(values, k, s, size-1)) {
+		    int slots[] = new int[size];
+		    Arrays.fill(slots, -1);
+		    for (int i=0; i < n; i++)
+			slots[hash(s, values[i], 0, values[i].length) & (size-1)] = i;
+
+		    keys = k;
+		    ids = slots;
+		    mask = size-1;
+		    seed = s;
+		    return;
+		}
+	    }
+
+	    size *= 2;
+	}
+    }
+
+    private static boolean place(byte values[][], byte k[][], int seed, int mask)
+    {
+	for (byte v[] : values) {
+	    int slot = hash(seed, v, 0, v.length) & mask;
+	    if (k[slot] != null)
+		return false;
+	    k[slot] = v;
+	}
+
+	return true;
+    }
+
+    // FNV-1a over the lower case bytes, mixed with the seed
+    private static int hash(int seed, byte[] buf, int off, int len)
+    {
+	int h = 0x811c9dc5 ^ (seed * 0x9e3779b9);
+	for (int i = off; i < off+len; i++)
+	    h = (h ^ lower(buf[i])) * 0x01000193;
+
+	return h ^ (h >>> 15);
+    }
+
+    private static int lower(byte b)
+    {
+	return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+}
@@ -0,0 +1,232 @@
+package org.aromatic.tardis;
+
+/**
+ * A sequence of short strings packed in a single byte array.
+ *
+ * Each entry is stored as a varint length followed by the string chars,
+ * one byte per char, so a small hash, set or list costs a couple of bytes
+ * per entry instead of a map entry or a node plus a String object.
+ *
+ * Entries are addressed by byte offset, walking the array from the start,
+ * so this is only meant for collections of up to MAX_ENTRIES entries of
+ * up to MAX_VALUE chars. PackedList, PackedSet and PackedMap convert to
+ * the full structure once they grow past that.
+ */
+class ListPack
+{
+    // thresholds for the packed encoding, configurable at startup
+    protected static int MAX_ENTRIES = 128;
+    protected static int MAX_VALUE = 64;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private byte[] buf = EMPTY;
+    private int used = 0;
+    private int count = 0;
+
+    /**
+     * Returns true if the string can be stored in a packed collection
+     */
+    public static boolean fits(String s)
+    {
+	int l = s.length();
+	if (l > MAX_VALUE)
+	    return false;
+
+	for (int i=0; i < l; i++)
+	    if (s.charAt(i) > 0xff)
+		return false;
+
+	return true;
+    }
+
+    public int size()
+    {
+	return count;
+    }
+
+    /**
+     * The offset of the first byte after the last entry
+     */
+    public int end()
+    {
+	return used;
+    }
+
+    /**
+     * The offset of the entry at the specified index
+     */
+    public int offset(int index)
+    {
+	int off = 0;
+	while (index-- > 0)
+	    off = next(off);
+	return off;
+    }
+
+    /**
+     * The offset of the entry following the one at off
+     */
+    public int next(int off)
+    {
+	int len = 0;
+	int shift = 0;
+	byte b;
+
+	do {
+	    b = buf[off++];
+	    len |= (b & 0x7f) << shift;
+	    shift += 7;
+	} while ((b & 0x80) != 0);
+
+	return off + len;
+    }
+
+    public String get(int off)
+    {
+	int len = 0;
+	int shift = 0;
+	byte b;
+
+	do {
+	    b = buf[off++];
+	    len |= (b & 0x7f) << shift;
+	    shift += 7;
+	} while ((b & 0x80) != 0);
+
+	char chars[] = new char[len];
+	for (int i=0; i < len; i++)
+	    chars[i] = (char) (buf[off+i] & 0xff);
+
+	return new String(chars);
+    }
+
+    /**
+     * Returns true if the entry at off is equal to s
+     */
+    public boolean matches(int off, String s)
+    {
+	int len = 0;
+	int shift = 0;
+	byte b;
+
+	do {
+	    b = buf[off++];
+	    len |= (b & 0x7f) << shift;
+	    shift += 7;
+	} while ((b & 0x80) != 0);
+
+	if (len != s.length())
+	    return false;
+
+	for (int i=0; i < len; i++)
+	    if ((buf[off+i] & 0xff) != s.charAt(i))
+		return false;
+
+	return true;
+    }
+
+    /**
+     * Returns the offset of the first entry equal to s, starting from
+     * offset off and checking every step entries, or -1 if not found
+     */
+    public int find(String s, int off, int step)
+    {
+	while (off < used) {
+	    if (matches(off, s))
+		return off;
+
+	    for (int i=0; i < step; i++)
+		off = next(off);
+	}
+
+	return -1;
+    }
+
+    public void insert(int off, String s)
+    {
+	int len = s.length();
+	int size = varintSize(len) + len;
+
+	if (used + size > buf.length) {
+	    byte nbuf[] = new byte[Math.max(used + size, buf.length + (buf.length >> 1))];
+	    System.arraycopy(buf, 0, nbuf, 0, used);
+	    buf = nbuf;
+	}
+
+	System.arraycopy(buf, off, buf, off + size, used - off);
+	used += size;
+	count++;
+
+	while (len >= 0x80) {
+	    buf[off++] = (byte) (len | 0x80);
+	    len >>>= 7;
+	}
+	buf[off++] = (byte) len;
+
+	len = s.length();
+	for (int i=0; i < len; i++)
+	    buf[off+i] = (byte) s.charAt(i);
+    }
+
+    public void append(String s)
+    {
+	insert(used, s);
+    }
+
+    public void remove(int off)
+    {
+	remove(off, next(off), 1);
+    }
+
+    /**
+     * Removes the n entries between offset from and offset to
+     */
+    public void remove(int from, int to, int n)
+    {
+	System.arraycopy(buf, to, buf, from, used - to);
+	used -= to - from;
+	count -= n;
+
+	if (used < buf.length >> 2) {
+	    byte nbuf[] = new byte[used];
+	    System.arraycopy(buf, 0, nbuf, 0, used);
+	    buf = nbuf;
+	}
+    }
+
+    public void replace(int off, String s)
+    {
+	remove(off);
+	insert(off, s);
+    }
+
+    public void clear()
+    {
+	buf = EMPTY;
+	used = 0;
+	count = 0;
+    }
+
+    public ListPack copy()
+    {
+	ListPack c = new ListPack();
+	if (used > 0) {
+	    c.buf = new byte[used];
+	    System.arraycopy(buf, 0, c.buf, 0, used);
+	}
+	c.used = used;
+	c.count = count;
+	return c;
+    }
+
+    private static int varintSize(int v)
+    {
+	int n = 1;
+	while (v >= 0x80) {
+	    v >>>= 7;
+	    n++;
+	}
+	return n;
+    }
+}
@@ -0,0 +1,264 @@
+package org.aromatic.tardis;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A transport built on java.nio, as an alternative to xSocket.
+ *
+ * One thread accepts the connections and hands them out in turn to a
+ * fixed number of event loops, each running a Selector on its own
+ * thread. A connection stays on the loop it was given for its whole
+ * life, and its requests run on that thread as soon as they are read.
+ *
+ * Each loop reads into a single direct buffer shared by all its
+ * connections, the data is handed to the connection's parser right
+ * away so the buffer is free again for the next one.
+ */
+class NioServer implements Runnable, Closeable
+{
+    static final int READ_BUFFER = 64*1024;
+
+    private final int port;
+    private final EventLoop loops[];
+    private ServerSocketChannel server;
+    private volatile boolean running = true;
+
+    NioServer(int port, int threads)
+    {
+	this.port = port;
+	this.loops = new EventLoop[Math.max(threads, 1)];
+    }
+
+    public void run()
+    {
+	try {
+	    server = ServerSocketChannel.open();
+	    server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+	    server.bind(new InetSocketAddress(port), 1024);
+
+	    for (int i=0; i < loops.length; i++) {
+		loops[i] = new EventLoop();
+
+		Thread t = new Thread(loops[i], "tardis-io-" + i);
+		t.setDaemon(true);
+		t.start();
+	    }
+
+	    System.out.println("listening on port " + port
+		+ " with " + loops.length + " event loops");
+
+	    // on exit stop serving, and wait for the caller to finish
+	    // up (the data is saved once run() returns)
+	    final Thread runner = Thread.currentThread();
+	    Runtime.getRuntime().addShutdownHook(new Thread() {
+		public void run() {
+		    NioServer.this.close();
+		    try {
+			runner.join(60000);
+		    } catch(InterruptedException e) {
+		    }
+		}
+	    });
+
+	    for (int next = 0; running; next++) {
+		SocketChannel channel = server.accept();
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+		loops[next % loops.length].add(channel);
+	    }
+	} catch(ClosedChannelException e) {
+	    // close() was called
+	} catch(IOException e) {
+	    System.out.println("exception " + e);
+	} finally {
+	    close();
+	}
+    }
+
+    public void close()
+    {
+	running = false;
+
+	try {
+	    if (server != null)
+		server.close();
+	} catch(IOException e) {
+	    System.out.println(e);
+	}
+
+	for (EventLoop loop : loops)
+	    if (loop != null)
+		loop.selector.wakeup();
+    }
+
+    private class EventLoop implements Runnable
+    {
+	final Selector selector;
+	final Queue<SocketChannel> added = new ConcurrentLinkedQueue<SocketChannel>();
+	final Queue<SelectionKey> synced = new ConcurrentLinkedQueue<SelectionKey>();
+	final ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER);
+
+	EventLoop() throws IOException
+	{
+	    selector = Selector.open();
+	}
+
+	void add(SocketChannel channel)
+	{
+	    added.add(channel);
+	    selector.wakeup();
+	}
+
+	public void run()
+	{
+	    while (running) {
+		try {
+		    selector.select();
+		} catch(IOException e) {
+		    System.out.println("exception " + e);
+		    break;
+		}
+
+		for (SocketChannel channel; (channel = added.poll()) != null; ) {
+		    try {
+			register(channel);
+			SocketServer.connected(1);
+		    } catch(IOException e) {
+			System.out.println("exception " + e);
+		    }
+		}
+
+		// the connections whose writes are on disk now
+		for (SelectionKey key; (key = synced.poll()) != null; ) {
+		    try {
+			if (key.isValid() && key.attachment() != null)
+			    write(key);
+		    } catch(IOException e) {
+			disconnect(key);
+		    } catch(Exception e) {
+			e.printStackTrace(System.out);
+			disconnect(key);
+		    }
+		}
+
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+		    SelectionKey key = keys.next();
+		    keys.remove();
+
+		    try {
+			if (key.isValid() && key.isWritable())
+			    write(key);
+			if (key.isValid() && key.isReadable())
+			    read(key);
+		    } catch(IOException e) {
+			disconnect(key);
+		    } catch(Exception e) {
+			e.printStackTrace(System.out);
+			disconnect(key);
+		    }
+		}
+	    }
+
+	    for (SelectionKey key : selector.keys())
+		disconnect(key);
+
+	    try {
+		selector.close();
+	    } catch(IOException e) {
+		System.out.println(e);
+	    }
+	}
+
+	// with appendfsync always the connection's replies are held back
+	// until its writes are synced, instead of blocking the loop
+	private void register(SocketChannel channel)
+	    throws IOException
+	{
+	    SocketServer session = new SocketServer();
+	    final SelectionKey key = channel.register(selector, SelectionKey.OP_READ, session);
+
+	    session.onSync = new Runnable() {
+		public void run() {
+		    synced.add(key);
+		    selector.wakeup();
+		}
+	    };
+	}
+
+	private void read(SelectionKey key)
+	    throws IOException
+	{
+	    SocketChannel channel = (SocketChannel) key.channel();
+	    SocketServer session = (SocketServer) key.attachment();
+
+	    for (;;) {
+		buffer.clear();
+		int n = channel.read(buffer);
+		if (n < 0) {
+		    disconnect(key);
+		    return;
+		}
+
+		buffer.flip();
+		session.parser.append(buffer);
+		if (n < READ_BUFFER)
+		    break;
+	    }
+
+	    session.process(channel);
+	    update(key, session);
+	}
+
+	private void write(SelectionKey key)
+	    throws IOException
+	{
+	    SocketChannel channel = (SocketChannel) key.channel();
+	    SocketServer session = (SocketServer) key.attachment();
+
+	    // the requests left are run once their replies can be written
+	    if (session.flush(channel))
+		session.process(channel);
+
+	    update(key, session);
+	}
+
+	// waits for the connection to take the pending replies, or for
+	// the sync they are held back for, before reading more requests
+	private void update(SelectionKey key, SocketServer session)
+	{
+	    if (session.isSyncing())
+		key.interestOps(0);
+	    else if (session.out.isPending())
+		key.interestOps(SelectionKey.OP_WRITE);
+	    else if (session.out.isClosing())
+		disconnect(key);
+	    else
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	private void disconnect(SelectionKey key)
+	{
+	    if (key.attachment() == null)
+		return;
+
+	    key.attach(null);
+	    key.cancel();
+
+	    try {
+		key.channel().close();
+	    } catch(IOException e) {
+		System.out.println(e);
+	    }
+
+	    SocketServer.connected(-1);
+	}
+    }
+}
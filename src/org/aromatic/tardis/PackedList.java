@@ -0,0 +1,272 @@
+package org.aromatic.tardis;
+
+import java.util.*;
+
+/**
+ * A list value, stored in a ListPack while small and converted
+ * to a QuickList when it grows.
+ */
+class PackedList extends AbstractList<String>
+{
+    private ListPack pack = new ListPack();
+    private QuickList list = null;
+
+    PackedList()
+    {
+    }
+
+    /**
+     * Wraps the result of a list operation
+     */
+    PackedList(List<String> values)
+    {
+	if (values.size() > ListPack.MAX_ENTRIES) {
+	    pack = null;
+	    list = new QuickList();
+	    list.addAll(values);
+	} else
+	    addAll(values);
+    }
+
+    public String encoding()
+    {
+	return list == null ? "listpack" : list.encoding();
+    }
+
+    /**
+     * A copy in the same encoding
+     */
+    public PackedList copy()
+    {
+	PackedList c = new PackedList();
+	if (list != null) {
+	    c.pack = null;
+	    c.list = new QuickList();
+	    c.list.addAll(list);
+	} else
+	    c.pack = pack.copy();
+	return c;
+    }
+
+    public int size()
+    {
+	return list != null ? list.size() : pack.size();
+    }
+
+    public String get(int index)
+    {
+	if (list != null)
+	    return list.get(index);
+
+	checkIndex(index, pack.size());
+	return pack.get(pack.offset(index));
+    }
+
+    public String set(int index, String value)
+    {
+	if (list == null) {
+	    checkIndex(index, pack.size());
+
+	    if (ListPack.fits(value)) {
+		int off = pack.offset(index);
+		String prev = pack.get(off);
+		pack.replace(off, value);
+		return prev;
+	    }
+
+	    expand();
+	}
+
+	return list.set(index, value);
+    }
+
+    public void add(int index, String value)
+    {
+	if (list == null) {
+	    checkIndex(index, pack.size()+1);
+
+	    if (pack.size() < ListPack.MAX_ENTRIES && ListPack.fits(value)) {
+		pack.insert(pack.offset(index), value);
+		modCount++;
+		return;
+	    }
+
+	    expand();
+	}
+
+	list.add(index, value);
+	modCount++;
+    }
+
+    public String remove(int index)
+    {
+	modCount++;
+
+	if (list != null)
+	    return list.remove(index);
+
+	checkIndex(index, pack.size());
+	int off = pack.offset(index);
+	String prev = pack.get(off);
+	pack.remove(off);
+	return prev;
+    }
+
+    public void clear()
+    {
+	modCount++;
+
+	if (list != null)
+	    list.clear();
+	else
+	    pack.clear();
+    }
+
+    public int indexOf(Object value)
+    {
+	if (list != null)
+	    return list.indexOf(value);
+
+	int i = 0;
+	for (int off = 0; off < pack.end(); off = pack.next(off), i++)
+	    if (pack.matches(off, (String) value))
+		return i;
+
+	return -1;
+    }
+
+    public int lastIndexOf(Object value)
+    {
+	if (list != null)
+	    return list.lastIndexOf(value);
+
+	int i = 0;
+	int last = -1;
+	for (int off = 0; off < pack.end(); off = pack.next(off), i++)
+	    if (pack.matches(off, (String) value))
+		last = i;
+
+	return last;
+    }
+
+    /**
+     * Returns a copy of the entries from index from (inclusive)
+     * to index to (exclusive)
+     */
+    public List<String> range(int from, int to)
+    {
+	if (list != null)
+	    return list.range(from, to);
+
+	checkIndex(from, to+1);
+	checkIndex(to, pack.size()+1);
+
+	List<String> result = new ArrayList<String>(to - from);
+	int off = pack.offset(from);
+	for (int i=from; i < to; i++, off = pack.next(off))
+	    result.add(pack.get(off));
+
+	return result;
+    }
+
+    /**
+     * Keeps only the entries from index start to index end, both inclusive
+     */
+    public void trim(int start, int end)
+    {
+	checkIndex(start, end+1);
+	checkIndex(end, size());
+	modCount++;
+
+	if (list != null) {
+	    list.removeLast(list.size() - end - 1);
+	    list.removeFirst(start);
+	    return;
+	}
+
+	int off = pack.offset(end+1);
+	pack.remove(off, pack.end(), pack.size() - end - 1);
+	pack.remove(0, pack.offset(start), start);
+    }
+
+    /**
+     * Removes up to count entries equal to value, starting from the tail
+     * if reverse is true
+     */
+    public int remove(String value, int count, boolean reverse)
+    {
+	modCount++;
+
+	if (list != null)
+	    return list.remove(value, count, reverse);
+
+	int removed = 0;
+
+	if (!reverse) {
+	    for (int off = 0; off < pack.end() && removed < count; ) {
+		if (pack.matches(off, value)) {
+		    pack.remove(off);
+		    removed++;
+		} else
+		    off = pack.next(off);
+	    }
+	} else {
+	    int matches[] = new int[pack.size()];
+	    int n = 0;
+	    for (int off = 0; off < pack.end(); off = pack.next(off))
+		if (pack.matches(off, value))
+		    matches[n++] = off;
+
+	    // removing from the tail keeps the offsets before it valid
+	    while (n > 0 && removed < count) {
+		pack.remove(matches[--n]);
+		removed++;
+	    }
+	}
+
+	return removed;
+    }
+
+    public Iterator<String> iterator()
+    {
+	if (list != null)
+	    return list.iterator();
+
+	return new Iterator<String>() {
+	    int off = 0;
+
+	    public boolean hasNext() {
+		return off < pack.end();
+	    }
+
+	    public String next() {
+		if (off >= pack.end())
+		    throw new NoSuchElementException();
+
+		String value = pack.get(off);
+		off = pack.next(off);
+		return value;
+	    }
+
+	    public void remove() {
+		throw new UnsupportedOperationException();
+	    }
+	};
+    }
+
+    private static void checkIndex(int index, int size)
+    {
+	if (index < 0 || index >= size)
+	    throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+    }
+
+    private void expand()
+    {
+	list = new QuickList();
+
+	for (int off = 0; off < pack.end(); off = pack.next(off))
+	    list.add(pack.get(off));
+
+	pack = null;
+    }
+}
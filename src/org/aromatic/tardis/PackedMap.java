@@ -0,0 +1,161 @@
+package org.aromatic.tardis;
+
+import java.util.*;
+
+/**
+ * A hash value, stored as alternating fields and values in a ListPack
+ * while small and converted to a HashMap when it grows.
+ */
+class PackedMap extends AbstractMap<String, String>
+{
+    private ListPack pack = new ListPack();
+    private HashMap<String, String> map = null;
+
+    public String encoding()
+    {
+	return map == null ? "listpack" : "hashtable";
+    }
+
+    /**
+     * A copy in the same encoding
+     */
+    public PackedMap copy()
+    {
+	PackedMap c = new PackedMap();
+	if (map != null) {
+	    c.pack = null;
+	    c.map = new HashMap<String, String>(map);
+	} else
+	    c.pack = pack.copy();
+	return c;
+    }
+
+    public int size()
+    {
+	return map != null ? map.size() : pack.size()/2;
+    }
+
+    public String get(Object field)
+    {
+	if (map != null)
+	    return map.get(field);
+
+	int off = pack.find((String) field, 0, 2);
+	return off < 0 ? null : pack.get(pack.next(off));
+    }
+
+    public boolean containsKey(Object field)
+    {
+	if (map != null)
+	    return map.containsKey(field);
+
+	return pack.find((String) field, 0, 2) >= 0;
+    }
+
+    public String put(String field, String value)
+    {
+	if (map == null) {
+	    int off = pack.find(field, 0, 2);
+
+	    if (off >= 0 && ListPack.fits(value)) {
+		off = pack.next(off);
+		String prev = pack.get(off);
+		pack.replace(off, value);
+		return prev;
+	    }
+
+	    if (off < 0 && pack.size()/2 < ListPack.MAX_ENTRIES
+	    && ListPack.fits(field) && ListPack.fits(value)) {
+		pack.append(field);
+		pack.append(value);
+		return null;
+	    }
+
+	    expand();
+	}
+
+	return map.put(field, value);
+    }
+
+    public String remove(Object field)
+    {
+	if (map != null)
+	    return map.remove(field);
+
+	int off = pack.find((String) field, 0, 2);
+	if (off < 0)
+	    return null;
+
+	pack.remove(off);
+	String prev = pack.get(off);
+	pack.remove(off);
+	return prev;
+    }
+
+    public void clear()
+    {
+	if (map != null)
+	    map.clear();
+	else
+	    pack.clear();
+    }
+
+    public Set<Map.Entry<String, String>> entrySet()
+    {
+	if (map != null)
+	    return map.entrySet();
+
+	return new AbstractSet<Map.Entry<String, String>>() {
+	    public int size() {
+		return PackedMap.this.size();
+	    }
+
+	    public Iterator<Map.Entry<String, String>> iterator() {
+		return new Iterator<Map.Entry<String, String>>() {
+		    int off = 0;
+		    int last = -1;
+
+		    public boolean hasNext() {
+			return off < pack.end();
+		    }
+
+		    public Map.Entry<String, String> next() {
+			if (off >= pack.end())
+			    throw new NoSuchElementException();
+
+			last = off;
+			String field = pack.get(off);
+			off = pack.next(off);
+			String value = pack.get(off);
+			off = pack.next(off);
+			return new AbstractMap.SimpleImmutableEntry<String, String>(field, value);
+		    }
+
+		    public void remove() {
+			if (last < 0)
+			    throw new IllegalStateException();
+
+			pack.remove(last);
+			pack.remove(last);
+			off = last;
+			last = -1;
+		    }
+		};
+	    }
+	};
+    }
+
+    private void expand()
+    {
+	map = new HashMap<String, String>();
+
+	for (int off = 0; off < pack.end(); ) {
+	    String field = pack.get(off);
+	    off = pack.next(off);
+	    map.put(field, pack.get(off));
+	    off = pack.next(off);
+	}
+
+	pack = null;
+    }
+}
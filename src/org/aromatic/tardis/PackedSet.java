@@ -0,0 +1,143 @@
+package org.aromatic.tardis;
+
+import java.util.*;
+
+/**
+ * A set value, stored in a ListPack while small and converted
+ * to a HashSet when it grows.
+ */
+class PackedSet extends AbstractSet<String>
+{
+    private ListPack pack = new ListPack();
+    private HashSet<String> set = null;
+
+    PackedSet()
+    {
+    }
+
+    /**
+     * Wraps the result of a set operation, large sets are used as they are
+     */
+    PackedSet(HashSet<String> members)
+    {
+	if (members.size() > ListPack.MAX_ENTRIES) {
+	    pack = null;
+	    set = members;
+	} else
+	    addAll(members);
+    }
+
+    public String encoding()
+    {
+	return set == null ? "listpack" : "hashtable";
+    }
+
+    /**
+     * A copy in the same encoding
+     */
+    public PackedSet copy()
+    {
+	PackedSet c = new PackedSet();
+	if (set != null) {
+	    c.pack = null;
+	    c.set = new HashSet<String>(set);
+	} else
+	    c.pack = pack.copy();
+	return c;
+    }
+
+    public int size()
+    {
+	return set != null ? set.size() : pack.size();
+    }
+
+    public boolean contains(Object member)
+    {
+	if (set != null)
+	    return set.contains(member);
+
+	return pack.find((String) member, 0, 1) >= 0;
+    }
+
+    public boolean add(String member)
+    {
+	if (set == null) {
+	    if (pack.find(member, 0, 1) >= 0)
+		return false;
+
+	    if (pack.size() < ListPack.MAX_ENTRIES && ListPack.fits(member)) {
+		pack.append(member);
+		return true;
+	    }
+
+	    expand();
+	}
+
+	return set.add(member);
+    }
+
+    public boolean remove(Object member)
+    {
+	if (set != null)
+	    return set.remove(member);
+
+	int off = pack.find((String) member, 0, 1);
+	if (off < 0)
+	    return false;
+
+	pack.remove(off);
+	return true;
+    }
+
+    public void clear()
+    {
+	if (set != null)
+	    set.clear();
+	else
+	    pack.clear();
+    }
+
+    public Iterator<String> iterator()
+    {
+	if (set != null)
+	    return set.iterator();
+
+	return new Iterator<String>() {
+	    int off = 0;
+	    int last = -1;
+
+	    public boolean hasNext() {
+		return off < pack.end();
+	    }
+
+	    public String next() {
+		if (off >= pack.end())
+		    throw new NoSuchElementException();
+
+		last = off;
+		String member = pack.get(off);
+		off = pack.next(off);
+		return member;
+	    }
+
+	    public void remove() {
+		if (last < 0)
+		    throw new IllegalStateException();
+
+		pack.remove(last);
+		off = last;
+		last = -1;
+	    }
+	};
+    }
+
+    private void expand()
+    {
+	set = new HashSet<String>();
+
+	for (int off = 0; off < pack.end(); off = pack.next(off))
+	    set.add(pack.get(off));
+
+	pack = null;
+    }
+}
@@ -0,0 +1,453 @@
+package org.aromatic.tardis;
+
+import java.util.*;
+
+/**
+ * A list of fixed size segments, each one a small ring buffer.
+ *
+ * Pushing and popping at either end is O(1), access by index skips whole
+ * segments walking from the nearest end, and range removals drop whole
+ * segments at once. This is the encoding of lists that outgrow the packed
+ * representation of PackedList.
+ */
+class QuickList extends AbstractList<String>
+{
+    // entries per segment, must be a power of two
+    private static final int SEGMENT = 128;
+    private static final int MASK = SEGMENT-1;
+
+    private static class Segment
+    {
+	final String items[] = new String[SEGMENT];
+	int head = 0;
+	int count = 0;
+	Segment prev, next;
+
+	String get(int i) {
+	    return items[(head + i) & MASK];
+	}
+
+	void set(int i, String value) {
+	    items[(head + i) & MASK] = value;
+	}
+
+	void addFirst(String value) {
+	    head = (head - 1) & MASK;
+	    items[head] = value;
+	    count++;
+	}
+
+	void addLast(String value) {
+	    items[(head + count) & MASK] = value;
+	    count++;
+	}
+
+	void insert(int i, String value) {
+	    for (int j = count; j > i; j--)
+		set(j, get(j-1));
+	    set(i, value);
+	    count++;
+	}
+
+	String remove(int i) {
+	    String value = get(i);
+	    for (int j = i; j < count-1; j++)
+		set(j, get(j+1));
+	    set(--count, null);
+	    return value;
+	}
+
+	// drops the first n entries
+	void removeFirst(int n) {
+	    for (int i=0; i < n; i++)
+		set(i, null);
+	    head = (head + n) & MASK;
+	    count -= n;
+	}
+
+	// drops the last n entries
+	void removeLast(int n) {
+	    for (int i = count-n; i < count; i++)
+		set(i, null);
+	    count -= n;
+	}
+    }
+
+    private Segment first;
+    private Segment last;
+    private int size;
+
+    // the offset within the segment returned by the last call to find()
+    private int found;
+
+    public String encoding()
+    {
+	return "quicklist";
+    }
+
+    public int size()
+    {
+	return size;
+    }
+
+    public void addFirst(String value)
+    {
+	if (first == null || first.count == SEGMENT)
+	    link(null, first);
+
+	first.addFirst(value);
+	size++;
+	modCount++;
+    }
+
+    public void addLast(String value)
+    {
+	if (last == null || last.count == SEGMENT)
+	    link(last, null);
+
+	last.addLast(value);
+	size++;
+	modCount++;
+    }
+
+    public String removeFirst()
+    {
+	if (size == 0)
+	    throw new NoSuchElementException();
+
+	Segment s = first;
+	String value = s.get(0);
+	s.removeFirst(1);
+	if (s.count == 0)
+	    unlink(s);
+
+	size--;
+	modCount++;
+	return value;
+    }
+
+    public String removeLast()
+    {
+	if (size == 0)
+	    throw new NoSuchElementException();
+
+	Segment s = last;
+	String value = s.get(s.count-1);
+	s.removeLast(1);
+	if (s.count == 0)
+	    unlink(s);
+
+	size--;
+	modCount++;
+	return value;
+    }
+
+    public String get(int index)
+    {
+	checkIndex(index, size);
+	Segment s = find(index);
+	return s.get(found);
+    }
+
+    public String set(int index, String value)
+    {
+	checkIndex(index, size);
+	Segment s = find(index);
+	String prev = s.get(found);
+	s.set(found, value);
+	return prev;
+    }
+
+    public boolean add(String value)
+    {
+	addLast(value);
+	return true;
+    }
+
+    public void add(int index, String value)
+    {
+	checkIndex(index, size+1);
+
+	if (index == 0) {
+	    addFirst(value);
+	    return;
+	}
+
+	if (index == size) {
+	    addLast(value);
+	    return;
+	}
+
+	Segment s = find(index);
+	int off = found;
+
+	if (s.count == SEGMENT) {
+	    // split the segment, moving its upper half to a new one
+	    Segment n = link(s, s.next);
+	    int half = SEGMENT/2;
+	    for (int i = half; i < SEGMENT; i++)
+		n.addLast(s.get(i));
+	    s.removeLast(SEGMENT - half);
+
+	    if (off >= half) {
+		s = n;
+		off -= half;
+	    }
+	}
+
+	s.insert(off, value);
+	size++;
+	modCount++;
+    }
+
+    public String remove(int index)
+    {
+	checkIndex(index, size);
+
+	if (index == 0)
+	    return removeFirst();
+
+	if (index == size-1)
+	    return removeLast();
+
+	Segment s = find(index);
+	String value = s.remove(found);
+	if (s.count == 0)
+	    unlink(s);
+
+	size--;
+	modCount++;
+	return value;
+    }
+
+    public void clear()
+    {
+	first = last = null;
+	size = 0;
+	modCount++;
+    }
+
+    /**
+     * Returns a copy of the entries from index from (inclusive)
+     * to index to (exclusive)
+     */
+    public List<String> range(int from, int to)
+    {
+	checkIndex(from, to+1);
+	checkIndex(to, size+1);
+
+	List<String> result = new ArrayList<String>(to - from);
+	if (from == to)
+	    return result;
+
+	Segment s = find(from);
+	int off = found;
+
+	for (int n = to - from; n > 0; s = s.next, off = 0) {
+	    for (; off < s.count && n > 0; off++, n--)
+		result.add(s.get(off));
+	}
+
+	return result;
+    }
+
+    /**
+     * Removes the first n entries
+     */
+    public void removeFirst(int n)
+    {
+	size -= n;
+	modCount++;
+
+	while (n > 0) {
+	    Segment s = first;
+	    if (s.count <= n) {
+		n -= s.count;
+		unlink(s);
+	    } else {
+		s.removeFirst(n);
+		n = 0;
+	    }
+	}
+    }
+
+    /**
+     * Removes the last n entries
+     */
+    public void removeLast(int n)
+    {
+	size -= n;
+	modCount++;
+
+	while (n > 0) {
+	    Segment s = last;
+	    if (s.count <= n) {
+		n -= s.count;
+		unlink(s);
+	    } else {
+		s.removeLast(n);
+		n = 0;
+	    }
+	}
+    }
+
+    /**
+     * Removes up to count entries equal to value, starting from the tail
+     * if reverse is true, in a single pass over the list
+     */
+    public int remove(String value, int count, boolean reverse)
+    {
+	int removed = 0;
+
+	if (!reverse) {
+	    for (Segment s = first; s != null && removed < count; ) {
+		Segment next = s.next;
+		int w = 0;
+		for (int r = 0; r < s.count; r++) {
+		    String v = s.get(r);
+		    if (removed < count && value.equals(v))
+			removed++;
+		    else
+			s.set(w++, v);
+		}
+		s.removeLast(s.count - w);
+		if (s.count == 0)
+		    unlink(s);
+		s = next;
+	    }
+	} else {
+	    for (Segment s = last; s != null && removed < count; ) {
+		Segment prev = s.prev;
+		int w = s.count-1;
+		for (int r = s.count-1; r >= 0; r--) {
+		    String v = s.get(r);
+		    if (removed < count && value.equals(v))
+			removed++;
+		    else
+			s.set(w--, v);
+		}
+		s.removeFirst(w + 1);
+		if (s.count == 0)
+		    unlink(s);
+		s = prev;
+	    }
+	}
+
+	size -= removed;
+	modCount++;
+	return removed;
+    }
+
+    public int indexOf(Object value)
+    {
+	int i = 0;
+	for (Segment s = first; s != null; s = s.next)
+	    for (int off = 0; off < s.count; off++, i++)
+		if (value.equals(s.get(off)))
+		    return i;
+
+	return -1;
+    }
+
+    public int lastIndexOf(Object value)
+    {
+	int i = size-1;
+	for (Segment s = last; s != null; s = s.prev)
+	    for (int off = s.count-1; off >= 0; off--, i--)
+		if (value.equals(s.get(off)))
+		    return i;
+
+	return -1;
+    }
+
+    public Iterator<String> iterator()
+    {
+	return new Iterator<String>() {
+	    Segment s = first;
+	    int off = 0;
+
+	    public boolean hasNext() {
+		return s != null && off < s.count;
+	    }
+
+	    public String next() {
+		if (!hasNext())
+		    throw new NoSuchElementException();
+
+		String value = s.get(off++);
+		if (off == s.count) {
+		    s = s.next;
+		    off = 0;
+		}
+		return value;
+	    }
+
+	    public void remove() {
+		throw new UnsupportedOperationException();
+	    }
+	};
+    }
+
+    // walks from the nearest end, skipping whole segments
+    private Segment find(int index)
+    {
+	Segment s;
+
+	if (index < size/2) {
+	    s = first;
+	    while (index >= s.count) {
+		index -= s.count;
+		s = s.next;
+	    }
+	} else {
+	    index = size - index;
+	    s = last;
+	    while (index > s.count) {
+		index -= s.count;
+		s = s.prev;
+	    }
+	    index = s.count - index;
+	}
+
+	found = index;
+	return s;
+    }
+
+    private Segment link(Segment prev, Segment next)
+    {
+	Segment s = new Segment();
+	s.prev = prev;
+	s.next = next;
+
+	if (prev != null)
+	    prev.next = s;
+	else
+	    first = s;
+
+	if (next != null)
+	    next.prev = s;
+	else
+	    last = s;
+
+	return s;
+    }
+
+    private void unlink(Segment s)
+    {
+	if (s.prev != null)
+	    s.prev.next = s.next;
+	else
+	    first = s.next;
+
+	if (s.next != null)
+	    s.next.prev = s.prev;
+	else
+	    last = s.prev;
+    }
+
+    private static void checkIndex(int index, int size)
+    {
+	if (index < 0 || index >= size)
+	    throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+    }
+}
@@ -0,0 +1,241 @@
+package org.aromatic.tardis;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The replies of a connection, encoded straight to bytes.
+ *
+ * Replies are appended to a buffer that is written to the connection
+ * with a single flush() once the requests received together have all
+ * been processed, rather than with a write per reply part. The common
+ * replies, small integers and length headers are encoded once and
+ * shared by all connections.
+ */
+class ReplyBuffer
+{
+    static final int SHARED_INTEGERS = 10000;
+    static final int SHARED_HEADERS = 32;
+
+    static final byte[] EOL = { '\r', '\n' };
+    static final byte[] OK = encode("+OK\r\n");
+    static final byte[] QUEUED = encode("+QUEUED\r\n");
+    static final byte[] PONG = encode("+PONG\r\n");
+    static final byte[] NIL = encode("$-1\r\n");
+    static final byte[] NILLIST = encode("*-1\r\n");
+
+    private static final byte[][] integers = new byte[SHARED_INTEGERS][];
+    private static final byte[][] bulkHeaders = new byte[SHARED_HEADERS][];
+    private static final byte[][] listHeaders = new byte[SHARED_HEADERS][];
+
+    static {
+	for (int i=0; i < SHARED_INTEGERS; i++)
+	    integers[i] = encode(":" + i + "\r\n");
+
+	for (int i=0; i < SHARED_HEADERS; i++) {
+	    bulkHeaders[i] = encode("$" + i + "\r\n");
+	    listHeaders[i] = encode("*" + i + "\r\n");
+	}
+    }
+
+    // the buffer isn't kept after a flush if it grew larger than this
+    static final int MAX_IDLE = 64*1024;
+
+    // pending replies are written out before they grow larger than this,
+    // even if there are more requests to process
+    static final int FLUSH_SIZE = 256*1024;
+
+    static final int BUFFER_SIZE = 4*1024;
+
+    private final int size;	// the initial buffer size
+    private byte buf[];
+    private int count = 0;
+    private int sent = 0;	// the part of buf already written
+    private boolean close = false;
+
+    ReplyBuffer()
+    {
+	this(BUFFER_SIZE);
+    }
+
+    ReplyBuffer(int size)
+    {
+	this.size = size;
+	this.buf = new byte[size];
+    }
+
+    public int size()
+    {
+	return count - sent;
+    }
+
+    public boolean isFull()
+    {
+	return count - sent >= FLUSH_SIZE;
+    }
+
+    /**
+     * True if there are replies that the connection didn't take yet
+     */
+    public boolean isPending()
+    {
+	return sent < count;
+    }
+
+    public void write(byte[] b)
+    {
+	write(b, 0, b.length);
+    }
+
+    public void write(byte[] b, int off, int len)
+    {
+	ensure(len);
+	System.arraycopy(b, off, buf, count, len);
+	count += len;
+    }
+
+    /**
+     * Writes an ASCII string
+     */
+    public void write(String s)
+    {
+	int len = s.length();
+	ensure(len);
+	for (int i=0; i < len; i++)
+	    buf[count++] = (byte) s.charAt(i);
+    }
+
+    public void status(String status)
+    {
+	ensure(status.length() + 3);
+	buf[count++] = '+';
+	write(status);
+	write(EOL);
+    }
+
+    public void error(String error)
+    {
+	write("-ERR ");
+	write(error != null ? error : "null");
+	write(EOL);
+    }
+
+    public void integer(long value)
+    {
+	if (value >= 0 && value < SHARED_INTEGERS)
+	    write(integers[(int) value]);
+	else
+	    line(':', value);
+    }
+
+    public void bulk(byte[] value)
+    {
+	if (value == null) {
+	    write(NIL);
+	    return;
+	}
+
+	if (value.length < SHARED_HEADERS)
+	    write(bulkHeaders[value.length]);
+	else
+	    line('$', value.length);
+
+	ensure(value.length + 2);
+	write(value);
+	write(EOL);
+    }
+
+    public void listHeader(int n)
+    {
+	if (n >= 0 && n < SHARED_HEADERS)
+	    write(listHeaders[n]);
+	else
+	    line('*', n);
+    }
+
+    /**
+     * Closes the connection once the pending replies are written
+     */
+    public void close()
+    {
+	close = true;
+    }
+
+    public boolean isClosing()
+    {
+	return close;
+    }
+
+    /**
+     * Writes the pending replies to the channel, returns false if a
+     * non-blocking channel didn't take all of them, the rest is written
+     * by the next flush
+     */
+    public boolean flush(WritableByteChannel channel)
+	throws IOException
+    {
+	while (sent < count) {
+	    int n = channel.write(ByteBuffer.wrap(buf, sent, count - sent));
+	    if (n <= 0)
+		return false;
+
+	    sent += n;
+	}
+
+	count = sent = 0;
+	if (buf.length > MAX_IDLE)
+	    buf = new byte[size];
+
+	return true;
+    }
+
+    // a line with a type prefix and a decimal value
+    private void line(char type, long value)
+    {
+	ensure(22);
+	buf[count++] = (byte) type;
+
+	if (value == Long.MIN_VALUE) {
+	    write(Long.toString(value));
+	    write(EOL);
+	    return;
+	}
+
+	if (value < 0) {
+	    buf[count++] = '-';
+	    value = -value;
+	}
+
+	int start = count;
+	do {
+	    buf[count++] = (byte) ('0' + value % 10);
+	    value /= 10;
+	} while (value > 0);
+
+	// the digits were written last to first
+	for (int i = start, j = count-1; i < j; i++, j--) {
+	    byte b = buf[i];
+	    buf[i] = buf[j];
+	    buf[j] = b;
+	}
+
+	buf[count++] = '\r';
+	buf[count++] = '\n';
+    }
+
+    private void ensure(int n)
+    {
+	if (buf.length - count >= n)
+	    return;
+
+	byte nbuf[] = new byte[Math.max(buf.length * 2, count + n)];
+	System.arraycopy(buf, 0, nbuf, 0, count);
+	buf = nbuf;
+    }
+
+    private static byte[] encode(String s)
+    {
+	return s.getBytes(Tardis.CHARSET);
+    }
+}
@@ -0,0 +1,366 @@
+package org.aromatic.tardis;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * An incremental parser for client requests, both multibulk
+ * (*argc $len arg ...) and inline (space separated arguments).
+ *
+ * Data read from the connection is appended to a single buffer, and the
+ * arguments of a request are returned as views (offset and length) into
+ * it, so no object is allocated per argument. When a request is not
+ * complete the parser keeps its position and resumes there once more
+ * data is read, the request is never parsed twice.
+ *
+ * The views are only valid until the next call to consume().
+ */
+class RespParser
+{
+    // protocol limits
+    static final int MAX_BULK = 1024*1024*1024;
+    static final int MAX_ARGS = 1024*1024;
+    static final int MAX_INLINE = 64*1024;
+
+    static final int BUFFER_SIZE = 16*1024;
+    static final int MIN_READ = 1024;
+
+    private final int size;	// the initial buffer size
+    private byte buf[];
+    private int start = 0;	// start of the current request
+    private int end = 0;	// end of the data read
+
+    // parsing state of the current request
+    private int pos = 0;
+    private int nargs = -1;	// -1 until the request header is parsed
+    private int argc = 0;
+    private int bulk = -1;	// length of the next bulk, -1 until parsed
+    private boolean inline = false;
+    private boolean inlineBulk = false;
+    private boolean complete = false;
+
+    private int offsets[] = new int[16];
+    private int lengths[] = new int[16];
+
+    RespParser()
+    {
+	this(BUFFER_SIZE);
+    }
+
+    RespParser(int size)
+    {
+	this.size = size;
+	this.buf = new byte[size];
+    }
+
+    /**
+     * Reads the available data from the channel, returns false at end
+     * of stream
+     */
+    public boolean read(ReadableByteChannel channel, int available)
+	throws IOException
+    {
+	while (available > 0) {
+	    ensure(Math.min(available, MAX_INLINE));
+
+	    int n = channel.read(ByteBuffer.wrap(buf, end, buf.length - end));
+	    if (n < 0)
+		return false;
+	    if (n == 0)
+		break;
+
+	    end += n;
+	    available -= n;
+	}
+
+	return true;
+    }
+
+    /**
+     * Reads from a blocking channel, waiting for some data to be
+     * available, returns false at end of stream
+     */
+    public boolean read(ReadableByteChannel channel)
+	throws IOException
+    {
+	ensure(MIN_READ);
+
+	int n = channel.read(ByteBuffer.wrap(buf, end, buf.length - end));
+	if (n < 0)
+	    return false;
+
+	end += n;
+	return true;
+    }
+
+    /**
+     * Appends the data read by the caller
+     */
+    public void append(ByteBuffer src)
+    {
+	int n = src.remaining();
+	ensure(n);
+	src.get(buf, end, n);
+	end += n;
+    }
+
+    /**
+     * Parses the current request, returns true when it's complete
+     */
+    public boolean parse()
+    {
+	if (complete)
+	    return true;
+
+	if (nargs < 0) {
+	    if (pos == end)
+		return false;
+
+	    if (buf[pos] == '*') {
+		int eol = eol(pos);
+		if (eol < 0)
+		    return false;
+
+		long n = number(pos+1, eol);
+		if (n < 0 || n > MAX_ARGS)
+		    throw new UnsupportedOperationException("invalid multibulk length");
+
+		nargs = (int) n;
+		pos = eol + 2;
+	    } else {
+		if (!parseInline())
+		    return false;
+
+		pos = eol(pos) + 2;
+		inline = true;
+		return complete = true;
+	    }
+	}
+
+	while (argc < nargs) {
+	    if (bulk < 0) {
+		int eol = eol(pos);
+		if (eol < 0)
+		    return false;
+
+		if (buf[pos] != '$')
+		    throw new UnsupportedOperationException("multi bulk protocol error");
+
+		long n = number(pos+1, eol);
+		if (n < 0 || n > MAX_BULK)
+		    throw new UnsupportedOperationException("invalid bulk write count");
+
+		bulk = (int) n;
+		pos = eol + 2;
+	    }
+
+	    if (end - pos < bulk + 2) {
+		ensure(bulk + 2);
+		return false;
+	    }
+
+	    add(pos, bulk);
+	    pos += bulk + 2;
+	    bulk = -1;
+	}
+
+	return complete = true;
+    }
+
+    /**
+     * The last argument of the current inline request is the length of a
+     * bulk value that follows it, the next call to parse() reads it and
+     * returns it in place of the length
+     */
+    public void readInlineBulk()
+    {
+	long n = number(offsets[argc-1], offsets[argc-1] + lengths[argc-1]);
+	if (n < 0 || n > MAX_BULK)
+	    throw new UnsupportedOperationException("invalid bulk write count");
+
+	argc--;
+	nargs = argc + 1;
+	bulk = (int) n;
+	inlineBulk = true;
+	complete = false;
+    }
+
+    public boolean isInline()
+    {
+	return inline && !inlineBulk;
+    }
+
+    /**
+     * The number of parts of the current request, command included
+     */
+    public int count()
+    {
+	return argc;
+    }
+
+    /**
+     * The id of the command of the current request in table, -1 if
+     * it isn't there
+     */
+    public int command(CommandTable table)
+    {
+	if (argc == 0)
+	    return table.get(buf, 0, 0);
+
+	return table.get(buf, offsets[0], lengths[0]);
+    }
+
+    /**
+     * The command name of the current request, in lower case
+     */
+    public String command()
+    {
+	if (argc == 0)
+	    return "";
+
+	int off = offsets[0];
+	int len = lengths[0];
+	char chars[] = new char[len];
+
+	for (int i=0; i < len; i++) {
+	    int c = buf[off+i] & 0xff;
+	    if (c >= 'A' && c <= 'Z')
+		c += 'a' - 'A';
+	    chars[i] = (char) c;
+	}
+
+	return new String(chars);
+    }
+
+    /**
+     * The arguments of the current request, command excluded
+     */
+    public Args args()
+    {
+	return argc == 0 ? Args.EMPTY : new Args(buf, offsets, lengths, 1, argc-1);
+    }
+
+    /**
+     * The bytes read of the request not complete yet, if any
+     */
+    public int pending()
+    {
+	return end - start;
+    }
+
+    /**
+     * Drops the current request, the parser moves to the next one
+     */
+    public void consume()
+    {
+	start = pos;
+	nargs = -1;
+	argc = 0;
+	bulk = -1;
+	inline = false;
+	inlineBulk = false;
+	complete = false;
+
+	if (start == end) {
+	    start = pos = end = 0;
+
+	    // don't hold on to the space taken by a large request
+	    if (buf.length > 4*MAX_INLINE)
+		buf = new byte[size];
+	}
+    }
+
+    // splits the line at pos on spaces, returns false if it's not complete
+    private boolean parseInline()
+    {
+	int eol = eol(pos);
+	if (eol < 0) {
+	    if (end - pos > MAX_INLINE)
+		throw new UnsupportedOperationException("too big inline request");
+	    return false;
+	}
+
+	argc = 0;
+	for (int i = pos; i < eol; ) {
+	    while (i < eol && buf[i] == ' ')
+		i++;
+
+	    int from = i;
+	    while (i < eol && buf[i] != ' ')
+		i++;
+
+	    if (i > from)
+		add(from, i - from);
+	}
+
+	nargs = argc;
+	return true;
+    }
+
+    // the offset of the \r\n ending the line at off, -1 if not read yet
+    private int eol(int off)
+    {
+	for (int i = off; i < end - 1; i++)
+	    if (buf[i] == '\r' && buf[i+1] == '\n')
+		return i;
+
+	return -1;
+    }
+
+    // the decimal number between from and to, -1 if not valid
+    private long number(int from, int to)
+    {
+	if (from == to || to - from > 18)
+	    return -1;
+
+	long n = 0;
+	for (int i = from; i < to; i++) {
+	    int d = buf[i] - '0';
+	    if (d < 0 || d > 9)
+		return -1;
+	    n = n * 10 + d;
+	}
+
+	return n;
+    }
+
+    private void add(int off, int len)
+    {
+	if (argc == offsets.length) {
+	    int noffsets[] = new int[argc * 2];
+	    int nlengths[] = new int[argc * 2];
+	    System.arraycopy(offsets, 0, noffsets, 0, argc);
+	    System.arraycopy(lengths, 0, nlengths, 0, argc);
+	    offsets = noffsets;
+	    lengths = nlengths;
+	}
+
+	offsets[argc] = off;
+	lengths[argc] = len;
+	argc++;
+    }
+
+    // makes room for n more bytes after the data read, moving the current
+    // request to the start of the buffer or growing it
+    private void ensure(int n)
+    {
+	if (buf.length - end >= n)
+	    return;
+
+	if (start > 0) {
+	    System.arraycopy(buf, start, buf, 0, end - start);
+	    for (int i=0; i < argc; i++)
+		offsets[i] -= start;
+	    pos -= start;
+	    end -= start;
+	    start = 0;
+	}
+
+	if (buf.length - end < n) {
+	    byte nbuf[] = new byte[Math.max(buf.length * 2, end + n)];
+	    System.arraycopy(buf, 0, nbuf, 0, end);
+	    buf = nbuf;
+	}
+    }
+}
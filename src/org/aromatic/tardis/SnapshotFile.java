@@ -0,0 +1,873 @@
+package org.aromatic.tardis;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The binary format of the snapshot files written by SAVE.
+ *
+ * The file starts with the "tardis" magic, the V_MAJOR and V_MINOR of
+ * the version that wrote it and the codec of its sections, its id and
+ * the id of its parent, followed by an index of the sections of the file
+ * and then by the sections themselves. Each section holds the keys of a
+ * DB in one of its lock stripes, and can be decoded on its own, so they
+ * are loaded in parallel or when a key is first needed.
+ *
+ * The index is a count of sections, an entry for each one (DB, stripe,
+ * offset, length, number of keys and CRC32 of its data) and the CRC32
+ * of the index. It is reserved when the file is created and filled in at the
+ * end, when the sections are known.
+ *
+ * A section is a stream of entries:
+ *
+ *   EXPIRE time		the expiry of the next entry, in ms
+ *   type key len value	a key and its value, encoded by type
+ *   DELETE key		the key was removed, in a delta
+ *
+ * A base file has all the keys, and no parent. A delta only has the keys
+ * changed or removed since the file it follows, its parent, and is
+ * applied on top of it.
+ *
+ * Lengths and counts are varints, strings are length prefixed, and
+ * the values are prefixed by their length in bytes, so they can be
+ * skipped and decoded later from a Mapping of the file. They are encoded
+ * by kind: string bytes, counters as a zigzag
+ * varint, lists and sets as a count and their elements, hashes as a
+ * count and field/value pairs, zsets as a count and member, score (the
+ * raw double) and score text.
+ *
+ * Both ends go through a buffer and a FileChannel, a single entry is
+ * encoded or decoded at a time.
+ *
+ * With the DEFLATE codec the data of a section is written as blocks,
+ * what the buffer held each time it was written out, each one deflated
+ * on its own: its raw length, its deflated length (0 if it didn't shrink
+ * and it's stored as is) and the data. The blocks are deflated on a pool
+ * of threads while the entries that follow are encoded. The offsets and
+ * lengths of the sections are those of their blocks in the file, the
+ * checksums those of the raw data. A compressed file can't be mapped.
+ */
+class SnapshotFile
+{
+    static final byte MAGIC[] = { 't', 'a', 'r', 'd', 'i', 's' };
+
+    // magic, major, minor, codec, id and parent
+    static final int HEADER_SIZE = MAGIC.length + 12 + 16;
+
+    // DB, stripe, offset, length, keys and checksum
+    static final int INDEX_ENTRY = 4 + 4 + 8 + 8 + 8 + 8;
+
+    // value types
+    static final int STRING = 0;
+    static final int COUNTER = 1;
+    static final int LIST = 2;
+    static final int SET = 3;
+    static final int ZSET = 4;
+    static final int HASH = 5;
+
+    // opcodes
+    static final int DELETE = 0xfb;
+    static final int EXPIRE = 0xfc;
+
+    // codecs
+    static final int NONE = 0;
+    static final int DEFLATE = 1;
+
+    static final String CODECS[] = { "none", "deflate" };
+
+    static final int BUFFER_SIZE = 256*1024;
+
+    // raw and deflated length
+    static final int BLOCK_HEADER = 8;
+
+    static class Section
+    {
+	int db;
+	int stripe;
+	long offset;
+	long length;
+	long keys;		// entries in a delta
+	long crc;
+
+	FileChannel channel;	// the file it was read from
+	int codec;
+	Mapping mapping;	// the file mapped, if the values are left there
+	Section next;		// the same stripe in the next delta
+    }
+
+    static class Index
+    {
+	int codec;
+	long id;
+	long parent;		// 0 for a base
+	List<Section> sections;
+    }
+
+    /**
+     * Reads and checks the header and the index
+     */
+    static Index readIndex(FileChannel channel)
+	throws IOException
+    {
+	ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 4);
+	readFully(channel, header, 0);
+
+	for (int i=0; i < MAGIC.length; i++)
+	    if (header.get() != MAGIC[i])
+		throw new IOException("not a tardis snapshot");
+
+	int major = header.getInt();
+	int minor = header.getInt();
+	if (major != Tardis.V_MAJOR || minor != Tardis.V_MINOR)
+	    throw new IOException("unsupported snapshot version "
+		+ major + "." + minor);
+
+	Index index = new Index();
+	index.codec = header.getInt();
+	if (index.codec < 0 || index.codec >= CODECS.length)
+	    throw new IOException("unsupported snapshot codec " + index.codec);
+
+	index.id = header.getLong();
+	index.parent = header.getLong();
+
+	int n = header.getInt();
+	if (n < 0 || n > 1024*1024)
+	    throw new IOException("corrupt snapshot, invalid index");
+
+	ByteBuffer entries = ByteBuffer.allocate(n * INDEX_ENTRY + 8);
+	readFully(channel, entries, HEADER_SIZE + 4);
+
+	CRC32 crc = new CRC32();
+	crc.update(entries.array(), 0, n * INDEX_ENTRY);
+	if (entries.getLong(n * INDEX_ENTRY) != crc.getValue())
+	    throw new IOException("corrupt snapshot, index checksum mismatch");
+
+	index.sections = new ArrayList<Section>(n);
+	for (int i=0; i < n; i++) {
+	    Section s = new Section();
+	    s.db = entries.getInt();
+	    s.stripe = entries.getInt();
+	    s.offset = entries.getLong();
+	    s.length = entries.getLong();
+	    s.keys = entries.getLong();
+	    s.crc = entries.getLong();
+	    s.channel = channel;
+	    s.codec = index.codec;
+	    index.sections.add(s);
+	}
+
+	return index;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer bb, long position)
+	throws IOException
+    {
+	while (bb.hasRemaining()) {
+	    int n = channel.read(bb, position);
+	    if (n < 0)
+		throw new EOFException("truncated snapshot");
+	    position += n;
+	}
+
+	bb.flip();
+    }
+
+    static class Writer implements Closeable
+    {
+	private final FileOutputStream file;
+	private final FileChannel channel;
+	private final CRC32 crc = new CRC32();
+	private byte buf[] = new byte[BUFFER_SIZE];
+	private int count = 0;
+	private long position = 0;	// the data written out
+
+	private final int capacity;	// of the index
+	private final List<Section> sections = new ArrayList<Section>();
+	private Section current;
+
+	// with DEFLATE, the blocks being deflated in file order, and the
+	// starts and ends of the sections between them
+	private ExecutorService deflaters = null;
+	private final LinkedList<Future<byte[]>> blocks = new LinkedList<Future<byte[]>>();
+	private final LinkedList<Mark> marks = new LinkedList<Mark>();
+	private long written = 0;	// the blocks written out
+	private int maxPending;
+
+	// a section starts or ends once the blocks before it are written
+	private static class Mark
+	{
+	    final Section section;
+	    final boolean end;
+	    final long block;	// the blocks queued before it
+
+	    Mark(Section section, boolean end, long block)
+	    {
+		this.section = section;
+		this.end = end;
+		this.block = block;
+	    }
+	}
+
+	/**
+	 * Creates the file with room for an index of the given
+	 * number of sections, parent is 0 for a base
+	 */
+	Writer(File f, int capacity, long id, long parent, int codec) throws IOException
+	{
+	    this.file = new FileOutputStream(f);
+	    this.channel = file.getChannel();
+	    this.capacity = capacity;
+
+	    writeRaw(MAGIC, 0, MAGIC.length);
+	    writeInt(Tardis.V_MAJOR);
+	    writeInt(Tardis.V_MINOR);
+	    writeInt(codec);
+	    writeLong(id);
+	    writeLong(parent);
+	    writeRaw(new byte[4 + capacity * INDEX_ENTRY + 8], 0,
+		4 + capacity * INDEX_ENTRY + 8);
+	    drain();
+
+	    if (codec == DEFLATE) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		maxPending = 2 * threads;
+		deflaters = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+		    public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "tardis-deflate");
+			t.setDaemon(true);
+			return t;
+		    }
+		});
+	    }
+	}
+
+	/**
+	 * Starts a section with the keys of a DB in a stripe
+	 */
+	public void beginSection(int db, int stripe) throws IOException
+	{
+	    if (sections.size() == capacity)
+		throw new IllegalStateException("too many sections");
+
+	    drain();
+	    crc.reset();
+
+	    current = new Section();
+	    current.db = db;
+	    current.stripe = stripe;
+	    sections.add(current);
+
+	    if (deflaters != null)
+		marks.add(new Mark(current, false, written + blocks.size()));
+	    else
+		current.offset = position;
+	}
+
+	public void endSection(long keys) throws IOException
+	{
+	    flush();
+
+	    current.keys = keys;
+	    current.crc = crc.getValue();
+
+	    if (deflaters != null)
+		marks.add(new Mark(current, true, written + blocks.size()));
+	    else
+		current.length = position - current.offset;
+	    current = null;
+	}
+
+	/**
+	 * True once enough is buffered to be worth a flush()
+	 */
+	public boolean isFull()
+	{
+	    return count >= BUFFER_SIZE;
+	}
+
+	public void writeByte(int b)
+	{
+	    ensure(1);
+	    buf[count++] = (byte) b;
+	}
+
+	public void writeInt(int v)
+	{
+	    ensure(4);
+	    for (int shift = 24; shift >= 0; shift -= 8)
+		buf[count++] = (byte) (v >>> shift);
+	}
+
+	public void writeLong(long v)
+	{
+	    ensure(8);
+	    for (int shift = 56; shift >= 0; shift -= 8)
+		buf[count++] = (byte) (v >>> shift);
+	}
+
+	public void writeDouble(double v)
+	{
+	    writeLong(Double.doubleToRawLongBits(v));
+	}
+
+	// 7 bits per byte, low bits first
+	public void writeVarint(long v)
+	{
+	    ensure(10);
+	    while ((v & ~0x7fL) != 0) {
+		buf[count++] = (byte) ((v & 0x7f) | 0x80);
+		v >>>= 7;
+	    }
+	    buf[count++] = (byte) v;
+	}
+
+	// a varint that is short for small negative values too
+	public void writeSigned(long v)
+	{
+	    writeVarint((v << 1) ^ (v >> 63));
+	}
+
+	public void writeBytes(byte[] b)
+	{
+	    writeVarint(b.length);
+	    writeRaw(b, 0, b.length);
+	}
+
+	/**
+	 * Starts a value, returns the mark to pass to endValue()
+	 */
+	public int beginValue()
+	{
+	    return count;
+	}
+
+	/**
+	 * Prefixes the value written since the mark with its length
+	 */
+	public void endValue(int mark)
+	{
+	    int len = count - mark;
+	    int n = 1;
+	    for (int v = len >>> 7; v != 0; v >>>= 7)
+		n++;
+
+	    ensure(n);
+	    System.arraycopy(buf, mark, buf, mark + n, len);
+	    for (int i = mark, v = len; i < mark + n; i++, v >>>= 7)
+		buf[i] = (byte) (i < mark + n - 1 ? (v & 0x7f) | 0x80 : v);
+	    count += n;
+	}
+
+	/**
+	 * Writes a string of one byte chars, see Tardis.CHARSET
+	 */
+	public void writeString(String s)
+	{
+	    int len = s.length();
+	    writeVarint(len);
+	    ensure(len);
+	    for (int i=0; i < len; i++)
+		buf[count++] = (byte) s.charAt(i);
+	}
+
+	/**
+	 * Writes out what is buffered
+	 */
+	public void flush() throws IOException
+	{
+	    crc.update(buf, 0, count);
+	    drain();
+	}
+
+	/**
+	 * Fills in the index, and syncs the file to disk
+	 */
+	public void finish() throws IOException
+	{
+	    flush();
+	    writePending(true);
+
+	    writeInt(sections.size());
+	    for (Section s : sections) {
+		writeInt(s.db);
+		writeInt(s.stripe);
+		writeLong(s.offset);
+		writeLong(s.length);
+		writeLong(s.keys);
+		writeLong(s.crc);
+	    }
+
+	    CRC32 check = new CRC32();
+	    check.update(buf, 4, count - 4);
+	    writeLong(check.getValue());
+
+	    ByteBuffer bb = ByteBuffer.wrap(buf, 0, count);
+	    for (long at = HEADER_SIZE; bb.hasRemaining(); )
+		at += channel.write(bb, at);
+
+	    count = 0;
+	    channel.force(true);
+	}
+
+	public void close() throws IOException
+	{
+	    if (deflaters != null)
+		deflaters.shutdownNow();
+	    file.close();
+	}
+
+	public void writeRaw(byte[] b, int off, int len)
+	{
+	    ensure(len);
+	    System.arraycopy(b, off, buf, count, len);
+	    count += len;
+	}
+
+	private void drain() throws IOException
+	{
+	    if (deflaters != null) {
+		if (count > 0) {
+		    final byte block[] = buf;
+		    final int len = count;
+		    blocks.add(deflaters.submit(new Callable<byte[]>() {
+			public byte[] call() {
+			    return deflate(block, len);
+			}
+		    }));
+
+		    buf = new byte[BUFFER_SIZE];
+		    count = 0;
+		}
+
+		writePending(false);
+		return;
+	    }
+
+	    ByteBuffer bb = ByteBuffer.wrap(buf, 0, count);
+	    while (bb.hasRemaining())
+		channel.write(bb);
+
+	    position += count;
+	    count = 0;
+
+	    // a large value made it grow
+	    if (buf.length > 4*BUFFER_SIZE)
+		buf = new byte[BUFFER_SIZE];
+	}
+
+	// writes out the blocks deflated, in order, and all of them if
+	// all is true or there are too many waiting
+	private void writePending(boolean all) throws IOException
+	{
+	    for (;;) {
+		while (!marks.isEmpty() && marks.getFirst().block == written) {
+		    Mark m = marks.removeFirst();
+		    if (m.end)
+			m.section.length = position - m.section.offset;
+		    else
+			m.section.offset = position;
+		}
+
+		if (blocks.isEmpty())
+		    break;
+
+		Future<byte[]> f = blocks.getFirst();
+		if (!all && !f.isDone() && blocks.size() <= maxPending)
+		    break;
+
+		byte block[];
+		try {
+		    block = f.get();
+		} catch(InterruptedException e) {
+		    throw new InterruptedIOException();
+		} catch(ExecutionException e) {
+		    throw new IOException(e.getCause().toString());
+		}
+
+		ByteBuffer bb = ByteBuffer.wrap(block);
+		while (bb.hasRemaining())
+		    channel.write(bb);
+		position += block.length;
+
+		blocks.removeFirst();
+		written++;
+	    }
+	}
+
+	// the block with its header, stored as is if it doesn't shrink
+	private static byte[] deflate(byte[] block, int len)
+	{
+	    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	    byte out[] = new byte[BLOCK_HEADER + len];
+	    int n = BLOCK_HEADER;
+	    try {
+		deflater.setInput(block, 0, len);
+		deflater.finish();
+		while (!deflater.finished() && n < out.length)
+		    n += deflater.deflate(out, n, out.length - n);
+	    } finally {
+		deflater.end();
+	    }
+
+	    int deflated = n - BLOCK_HEADER;
+	    if (n == out.length) {
+		System.arraycopy(block, 0, out, BLOCK_HEADER, len);
+		deflated = 0;
+	    }
+
+	    ByteBuffer header = ByteBuffer.wrap(out, 0, BLOCK_HEADER);
+	    header.putInt(len);
+	    header.putInt(deflated);
+
+	    if (deflated == 0)
+		return out;
+
+	    byte b[] = new byte[n];
+	    System.arraycopy(out, 0, b, 0, n);
+	    return b;
+	}
+
+	private void ensure(int n)
+	{
+	    if (buf.length - count >= n)
+		return;
+
+	    byte nbuf[] = new byte[Math.max(buf.length * 2, count + n)];
+	    System.arraycopy(buf, 0, nbuf, 0, count);
+	    buf = nbuf;
+	}
+    }
+
+    /**
+     * Reads the entries of a section
+     */
+    static class Reader
+    {
+	private final FileChannel channel;
+	private final Section section;
+	private final CRC32 crc = new CRC32();
+	private final byte buf[];
+	private int pos = 0;
+	private int end = 0;
+	private int checked = 0;	// buf up to here is in crc
+	private long next;		// the position of buf[end] in the data
+	private final long limit;	// the end of the section
+
+	// with DEFLATE, the file position of the next block and the
+	// current one inflated
+	private final boolean deflated;
+	private long at;
+	private byte block[] = new byte[0];
+	private int blockPos = 0;
+
+	Reader(FileChannel channel, Section section)
+	{
+	    this.channel = channel;
+	    this.section = section;
+	    this.buf = new byte[BUFFER_SIZE];
+	    this.next = section.offset;
+	    this.limit = section.offset + section.length;
+	    this.deflated = section.codec == DEFLATE;
+	    this.at = section.offset;
+	}
+
+	/**
+	 * Reads a value taken from a Mapping
+	 */
+	Reader(byte[] value)
+	{
+	    this.channel = null;
+	    this.section = null;
+	    this.buf = value;
+	    this.end = value.length;
+	    this.next = this.limit = 0;
+	    this.deflated = false;
+	}
+
+	/**
+	 * The position of the next byte to read in the data, in the file
+	 * unless it's compressed
+	 */
+	public long position()
+	{
+	    return next - (end - pos);
+	}
+
+	/**
+	 * Skips n bytes, the checksum can't be checked after this. Only
+	 * for files not compressed
+	 */
+	public void skip(long n) throws IOException
+	{
+	    if (n <= end - pos) {
+		pos += n;
+		return;
+	    }
+
+	    n -= end - pos;
+	    if (n > limit - next)
+		throw new EOFException("truncated snapshot");
+
+	    crc.update(buf, checked, end - checked);
+	    pos = end = checked = 0;
+	    next += n;
+	}
+
+	/**
+	 * True until the whole section is read
+	 */
+	public boolean hasMore()
+	{
+	    if (deflated)
+		return pos < end || blockPos < block.length || at < limit;
+
+	    return pos < end || next < limit;
+	}
+
+	public int readByte() throws IOException
+	{
+	    fill(1);
+	    return buf[pos++] & 0xff;
+	}
+
+	public int readInt() throws IOException
+	{
+	    fill(4);
+	    int v = 0;
+	    for (int i=0; i < 4; i++)
+		v = (v << 8) | (buf[pos++] & 0xff);
+	    return v;
+	}
+
+	public long readLong() throws IOException
+	{
+	    fill(8);
+	    long v = 0;
+	    for (int i=0; i < 8; i++)
+		v = (v << 8) | (buf[pos++] & 0xff);
+	    return v;
+	}
+
+	public double readDouble() throws IOException
+	{
+	    return Double.longBitsToDouble(readLong());
+	}
+
+	public long readVarint() throws IOException
+	{
+	    long v = 0;
+	    for (int shift = 0; shift < 64; shift += 7) {
+		int b = readByte();
+		v |= (long) (b & 0x7f) << shift;
+		if ((b & 0x80) == 0)
+		    return v;
+	    }
+
+	    throw new IOException("corrupt snapshot, invalid varint");
+	}
+
+	public long readSigned() throws IOException
+	{
+	    long v = readVarint();
+	    return (v >>> 1) ^ -(v & 1);
+	}
+
+	/**
+	 * A count or a length
+	 */
+	public int readLength() throws IOException
+	{
+	    long v = readVarint();
+	    if (v > Integer.MAX_VALUE)
+		throw new IOException("corrupt snapshot, invalid length " + v);
+	    return (int) v;
+	}
+
+	public byte[] readBytes() throws IOException
+	{
+	    return read(readLength());
+	}
+
+	public String readString() throws IOException
+	{
+	    int len = readLength();
+	    if (len > buf.length)
+		return new String(read(len), Tardis.CHARSET);
+
+	    fill(len);
+	    String s = new String(buf, pos, len, Tardis.CHARSET);
+	    pos += len;
+	    return s;
+	}
+
+	private byte[] read(int len) throws IOException
+	{
+	    byte b[] = new byte[len];
+
+	    for (int off = 0; off < len; ) {
+		fill(Math.min(len - off, buf.length));
+		int n = Math.min(len - off, end - pos);
+		System.arraycopy(buf, pos, b, off, n);
+		pos += n;
+		off += n;
+	    }
+
+	    return b;
+	}
+
+	/**
+	 * Checks the data read against the checksum of the section
+	 */
+	public void checksum() throws IOException
+	{
+	    crc.update(buf, checked, pos - checked);
+	    checked = pos;
+
+	    if (crc.getValue() != section.crc)
+		throw new IOException("corrupt snapshot, checksum mismatch"
+		    + " in a section of DB " + section.db);
+	}
+
+	// makes n bytes, up to the buffer size, available at pos
+	private void fill(int n) throws IOException
+	{
+	    if (end - pos >= n)
+		return;
+
+	    crc.update(buf, checked, pos - checked);
+	    System.arraycopy(buf, pos, buf, 0, end - pos);
+	    end -= pos;
+	    pos = checked = 0;
+
+	    while (end < n) {
+		int r = read(buf, end, buf.length - end);
+		if (r < 0)
+		    throw new EOFException("truncated snapshot");
+		end += r;
+		next += r;
+	    }
+	}
+
+	// reads up to len bytes of data, -1 at the end of the section
+	private int read(byte[] b, int off, int len) throws IOException
+	{
+	    if (!deflated) {
+		len = (int) Math.min(len, limit - next);
+		return len > 0 ? channel.read(ByteBuffer.wrap(b, off, len), next) : -1;
+	    }
+
+	    if (blockPos == block.length) {
+		if (at >= limit)
+		    return -1;
+		readBlock();
+	    }
+
+	    len = Math.min(len, block.length - blockPos);
+	    System.arraycopy(block, blockPos, b, off, len);
+	    blockPos += len;
+	    return len;
+	}
+
+	private void readBlock() throws IOException
+	{
+	    ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER);
+	    readFully(channel, header, at);
+	    int raw = header.getInt();
+	    int stored = header.getInt();
+	    at += BLOCK_HEADER;
+
+	    int size = stored == 0 ? raw : stored;
+	    if (raw <= 0 || stored < 0 || size > limit - at)
+		throw new IOException("corrupt snapshot, invalid block"
+		    + " in a section of DB " + section.db);
+
+	    byte data[] = new byte[size];
+	    readFully(channel, ByteBuffer.wrap(data), at);
+	    at += size;
+
+	    if (stored == 0)
+		block = data;
+	    else {
+		block = new byte[raw];
+		Inflater inflater = new Inflater();
+		try {
+		    inflater.setInput(data);
+
+		    // to the end of the stream, so its checksum is checked
+		    // before the data is used
+		    byte extra[] = new byte[1];
+		    int n = 0;
+		    while (!inflater.finished() && n <= raw) {
+			int r = n < raw ? inflater.inflate(block, n, raw - n)
+			    : inflater.inflate(extra);
+			if (r == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+			    break;
+			n += r;
+		    }
+		    if (n != raw || !inflater.finished())
+			throw new IOException("corrupt snapshot, invalid block"
+			    + " in a section of DB " + section.db);
+		} catch(DataFormatException e) {
+		    throw new IOException("corrupt snapshot, " + e.getMessage()
+			+ " in a section of DB " + section.db);
+		} finally {
+		    inflater.end();
+		}
+	    }
+
+	    blockPos = 0;
+	}
+    }
+
+    /**
+     * A file mapped in memory, in chunks since a buffer can't map more
+     * than 2GB. The values are taken from it as they are needed
+     */
+    static class Mapping
+    {
+	static final long CHUNK = 1L << 30;
+
+	private final MappedByteBuffer chunks[];
+
+	Mapping(FileChannel channel) throws IOException
+	{
+	    long size = channel.size();
+	    chunks = new MappedByteBuffer[(int) ((size + CHUNK - 1) / CHUNK)];
+	    for (int i=0; i < chunks.length; i++)
+		chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+		    i * CHUNK, Math.min(CHUNK, size - i * CHUNK));
+	}
+
+	/**
+	 * The len bytes at offset, they can span two chunks
+	 */
+	public byte[] bytes(long offset, int len)
+	{
+	    byte b[] = new byte[len];
+
+	    for (int off = 0; off < len; ) {
+		int chunk = (int) (offset / CHUNK);
+		int at = (int) (offset % CHUNK);
+		int n = (int) Math.min(len - off, CHUNK - at);
+
+		// a view of its own, the chunks are shared by all threads
+		ByteBuffer bb = chunks[chunk].duplicate();
+		bb.position(at);
+		bb.get(b, off, n);
+
+		off += n;
+		offset += n;
+	    }
+
+	    return b;
+	}
+    }
+}
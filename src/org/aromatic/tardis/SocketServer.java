@@ -1,1879 +1,2360 @@
-package org.aromatic.tardis;
-
-import org.xsocket.*;
-import org.xsocket.connection.*;
-import java.io.*;
-import java.nio.BufferUnderflowException;
-import java.nio.channels.ClosedChannelException;
-import java.util.*;
-import java.math.*;
-
-public class SocketServer implements IConnectionScoped,
-    IDataHandler, IConnectHandler, IDisconnectHandler
-{
-    protected static boolean DEBUG = false;
-
-    protected static String password = null;
-
-    protected static final String EOL = "\r\n";
-    protected static File tardisFile = new File("tardis.db");
-    protected static IServer srv = null;
-
-    protected static final int VARARGS = -1;
-
-    protected static final Map<String, Command> commands = 
-	    new HashMap<String, Command>();
-
-    protected static int connected = 0;
-
-    protected int selected;
-    protected boolean multi = false;
-    protected boolean authenticated = false;
-    protected List<Request> requests = new ArrayList<Request>();
-
-    @Override
-    public Object clone() throws CloneNotSupportedException {
-        return new SocketServer();
-    }
-
-    // Constructor
-    SocketServer()
-    {
-        selected = 0;
-    }
-
-    private static class Command {
-	public int nArgs = 0;
-	public boolean stringArg = false;
-
-	public String toString() {
-	    return this.getClass().getName() + " - nArgs:" + nArgs + ", stringArg:" + stringArg;
-        }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	}
-    }
-
-    //
-    // SERVER COMMANDS
-    //
-
-    private static class NopCommand extends Command {
-	NopCommand() { nArgs = 0; }
-    }
-
-    private static class PingCommand extends Command {
-	PingCommand() { nArgs = 0; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    printStatus(nbc, "PONG");
-	}
-    }
-	    
-    private static class QuitCommand extends Command {
-	QuitCommand() { nArgs = 0; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    nbc.close();
-	}
-    }
-
-    private static class ShutdownCommand extends Command {
-	ShutdownCommand() { nArgs = 0; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) {
-	    shutdownServer();
-	}
-    }
-	    
-    private static class SaveCommand extends Command {
-	SaveCommand(int type) { nArgs = 0; commandType = type; }
-
-	int commandType;
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    try {
-		Tardis.save(tardisFile);
-
-		if (commandType == 1)
-		    printStatus(nbc, "Background saving started");
-		else if (commandType == 2)
-		    printStatus(nbc, "Background append only file rewriting started");
-		else
-		    printStatus(nbc);
-	    } catch(Exception e) {
-		e.printStackTrace(System.out);
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class LastSaveCommand extends Command {
-	LastSaveCommand() { nArgs = 0; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    printInteger(nbc, tardisFile.lastModified());
-	}
-    }
-
-    private static class AuthCommand extends Command {
-	AuthCommand() { nArgs = 1; }
-    }
-
-    private static class SetCommand extends Command {
-	SetCommand() { nArgs = 2; } //stringArg = true; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    String value = args[1];
-
-	    tardis.set(key, value);
-	    printStatus(nbc);
-	}
-    }
-
-    //
-    // STRING COMMANDS
-    //
-
-    private static class GetCommand extends Command {
-	GetCommand() { nArgs = 1; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-
-	    try {
-		String value = tardis.get(key);
-		printResult(nbc, value);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class GetSetCommand extends Command {
-	GetSetCommand() { nArgs = 2; stringArg = true; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    String value = args[1];
-
-	    try {
-		String result = tardis.getset(key, value);
-		printResult(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class MgetCommand extends Command {
-	MgetCommand() { nArgs = VARARGS; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    List<String> values = tardis.mget(args);
-	    printList(nbc, values);
-	}
-    }
-
-    private static class SetnxCommand extends Command {
-	SetnxCommand() { nArgs = 2; stringArg = true; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    String value = args[1];
-
-	    boolean result = tardis.setnx(key, value);
-	    printInteger(nbc, result);
-	}
-    }
-
-    private static class MsetCommand extends Command {
-	MsetCommand() { nArgs = VARARGS; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    if (args.length % 2 != 0)
-	        printError(nbc, "wrong number of arguments");
-	    else {
-	        tardis.mset(args);
-	        printStatus(nbc);
-	    }
-	}
-    }
-
-    private static class MsetnxCommand extends Command {
-	MsetnxCommand() { nArgs = VARARGS; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    if (args.length % 2 != 0)
-	        printError(nbc, "wrong number of arguments");
-	    else {
-		boolean result = tardis.msetnx(args);
-		printInteger(nbc, result);
-	    }
-	}
-    }
-
-    private static class AppendCommand extends Command {
-	AppendCommand() { nArgs = 2; stringArg = true; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    String value = args[1];
-
-	    int result = tardis.append(key, value);
-	    printInteger(nbc, result);
-	}
-    }
-
-
-    private static class IncrCommand extends Command {
-	IncrCommand() { nArgs = 1; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-
-	    try {
-		long value = tardis.incr(key);
-		printInteger(nbc, value);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class IncrbyCommand extends Command {
-	IncrbyCommand() { nArgs = 2; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    long step = parseLong(args[1]);
-
-	    try {
-		long value = tardis.incrby(key, step);
-		printInteger(nbc, value);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class DecrCommand extends Command {
-	DecrCommand() { nArgs = 1; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-
-	    try {
-		long value = tardis.decr(key);
-		printInteger(nbc, value);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class DecrbyCommand extends Command {
-	DecrbyCommand() { nArgs = 2; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    long step = parseLong(args[1]);
-
-	    try {
-		long value = tardis.decrby(key, step);
-		printInteger(nbc, value);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class ExistsCommand extends Command {
-	ExistsCommand() { nArgs = 1; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-
-	    boolean result = tardis.exists(key);
-	    printInteger(nbc, result);
-	}
-    }
-
-    private static class DelCommand extends Command {
-	DelCommand() { nArgs = VARARGS; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    int result = tardis.del(args);
-	    printInteger(nbc, result);
-	}
-    }
-
-    private static class TypeCommand extends Command {
-	TypeCommand() { nArgs = 1; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-
-	    String result = tardis.type(key);
-	    printResult(nbc, result);
-	}
-    }
-
-    //
-    // KEY SPACE COMMANDS
-    //
-
-    private static class KeysCommand extends Command {
-	KeysCommand() { nArgs = 1; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String pattern = args[0];
-
-	    String result = tardis.keys(pattern);
-	    printResult(nbc, result);
-	}
-    }
-
-    private static class RandomkeyCommand extends Command {
-	RandomkeyCommand() { nArgs = 0; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String result = tardis.randomkey();
-	    printResult(nbc, result);
-	}
-    }
-
-    private static class RenameCommand extends Command {
-	RenameCommand() { nArgs = 2; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String oldname = args[0];
-	    String newname = args[1];
-
-	    try {
-		tardis.rename(oldname, newname);
-		printStatus(nbc);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class RenamenxCommand extends Command {
-	RenamenxCommand() { nArgs = 2; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String oldname = args[0];
-	    String newname = args[1];
-
-	    try {
-		boolean result = tardis.renamenx(oldname, newname);
-		printInteger(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class DbsizeCommand extends Command {
-	DbsizeCommand() { nArgs = 0; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    long result = tardis.dbsize();
-	    printInteger(nbc, result);
-	}
-    }
-
-    private static class ExpireCommand extends Command {
-	ExpireCommand() { nArgs = 2; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    long time = parseLong(args[1]) * 1000;
-
-	    boolean result = tardis.expireat(key, System.currentTimeMillis()+time);
-	    printInteger(nbc, result);
-	}
-    }
-
-    private static class ExpireatCommand extends Command {
-	ExpireatCommand() { nArgs = 2; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    long time = parseLong(args[1]) * 1000;
-
-	    boolean result = tardis.expireat(key, time);
-	    printInteger(nbc, result);
-	}
-    }
-
-    private static class TtlCommand extends Command {
-	TtlCommand() { nArgs = 1; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-
-	    long result = tardis.ttl(key);
-	    if (result > 0)
-		    result = (result+499)/1000;
-
-	    printInteger(nbc, result);
-	}
-    }
-
-    //
-    // LIST COMMANDS
-    //
-
-    private static class RpushCommand extends Command {
-	RpushCommand() { nArgs = 2; stringArg = true; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    String value = args[1];
-
-	    try {
-		int result = tardis.rpush(key, value);
-		printInteger(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class LpushCommand extends Command {
-	LpushCommand() { nArgs = 2; stringArg = true; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    String value = args[1];
-
-	    try {
-		int result = tardis.lpush(key, value);
-		printInteger(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class LlenCommand extends Command {
-	LlenCommand() { nArgs = 1; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-
-	    try {
-		int result = tardis.llen(key);
-		printInteger(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class LrangeCommand extends Command {
-	LrangeCommand() { nArgs = 3; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    int start = parseInteger(args[1]);
-	    int end = parseInteger(args[2]);
-
-	    try {
-		List<String> values = tardis.lrange(key, start, end);
-		printList(nbc, values);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class LtrimCommand extends Command {
-	LtrimCommand() { nArgs = 3; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    int start = parseInteger(args[1]);
-	    int end = parseInteger(args[2]);
-
-	    try {
-		tardis.ltrim(key, start, end);
-		printStatus(nbc);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class LindexCommand extends Command {
-	LindexCommand() { nArgs = 2; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    int index = parseInteger(args[1]);
-
-	    try {
-		String result = tardis.lindex(key, index);
-		printResult(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class LsetCommand extends Command {
-	LsetCommand() { nArgs = 3; stringArg = true; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    int index = parseInteger(args[1]);
-	    String value = args[2];
-
-	    try {
-		tardis.lset(key, index, value);
-		printStatus(nbc);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class LremCommand extends Command {
-	LremCommand() { nArgs = 3; stringArg = true; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    int count = parseInteger(args[1]);
-	    String value = args[2];
-
-	    try {
-		int result = tardis.lrem(key, count, value);
-		printInteger(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class LpopCommand extends Command {
-	LpopCommand() { nArgs = 1; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-
-	    try {
-		String result = tardis.lpop(key);
-		printResult(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class RpopCommand extends Command {
-	RpopCommand() { nArgs = 1; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-
-	    try {
-		String result = tardis.rpop(key);
-		printResult(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class RpoplpushCommand extends Command {
-	RpoplpushCommand() { nArgs = 2; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String src = args[0];
-	    String dest = args[1];
-
-	    try {
-		String result = tardis.rpoplpush(src, dest);
-		printResult(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    //
-    // SETS COMMANDS
-    //
-
-    private static class SaddCommand extends Command {
-	SaddCommand() { nArgs = 2; stringArg = true; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    String member = args[1];
-
-	    try {
-		boolean result = tardis.sadd(key, member);
-		printInteger(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class SremCommand extends Command {
-	SremCommand() { nArgs = 2; stringArg = true; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    String member = args[1];
-
-	    try {
-		boolean result = tardis.srem(key, member);
-		printInteger(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class SpopCommand extends Command {
-	SpopCommand() { nArgs = 1; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-
-	    try {
-		String result = tardis.spop(key);
-		printResult(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class SmoveCommand extends Command {
-	SmoveCommand() { nArgs = 3; stringArg = true; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String src = args[0];
-	    String dest = args[1];
-	    String member = args[2];
-
-	    try {
-		boolean result = tardis.smove(src, dest, member);
-		printInteger(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class ScardCommand extends Command {
-	ScardCommand() { nArgs = 1; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-
-	    try {
-		int result = tardis.scard(key);
-		printInteger(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class SismemberCommand extends Command {
-	SismemberCommand() { nArgs = 2; stringArg = true; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    String member = args[1];
-
-	    try {
-		boolean result = tardis.sismember(key, member);
-		printInteger(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class SmembersCommand extends Command {
-	SmembersCommand() { nArgs = VARARGS; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    try {
-		List<String> values = tardis.sinter(args);
-		printList(nbc, values);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class SrandmemberCommand extends Command {
-	SrandmemberCommand() { nArgs = 1; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-
-	    try {
-		String result = tardis.srandmember(key);
-		printResult(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class SinterCommand extends Command {
-	SinterCommand() { nArgs = VARARGS; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    try {
-		List<String> values = tardis.sinter(args);;
-		printList(nbc, values);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class SinterstoreCommand extends Command {
-	SinterstoreCommand() { nArgs = VARARGS; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    try {
-		int result = tardis.sinterstore(args);;
-		printInteger(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class SunionCommand extends Command {
-	SunionCommand() { nArgs = VARARGS; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    try {
-		List<String> values = tardis.sunion(args);;
-		printList(nbc, values);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class SunionstoreCommand extends Command {
-	SunionstoreCommand() { nArgs = VARARGS; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    try {
-		int result = tardis.sunionstore(args);;
-		printInteger(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class SdiffCommand extends Command {
-	SdiffCommand() { nArgs = VARARGS; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    try {
-		List<String> values = tardis.sdiff(args);;
-		printList(nbc, values);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class SdiffstoreCommand extends Command {
-	SdiffstoreCommand() { nArgs = VARARGS; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    try {
-		int result = tardis.sdiffstore(args);;
-		printInteger(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    //
-    // ZSETS COMMANDS
-    //
-
-    private static class ZaddCommand extends Command {
-	ZaddCommand() { nArgs = 3; stringArg = true; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    String score = args[1];
-	    String member = args[2];
-
-	    try {
-		boolean result = tardis.zadd(key, score, member);
-		printInteger(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class ZincrbyCommand extends Command {
-	ZincrbyCommand() { nArgs = 3; stringArg = true; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    String score = args[1];
-	    String member = args[2];
-
-	    try {
-		double result = tardis.zincrby(key, score, member);
-		printDouble(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class ZremCommand extends Command {
-	ZremCommand() { nArgs = 2; stringArg = true; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    String member = args[1];
-
-	    try {
-		boolean result = tardis.zrem(key, member);
-		printInteger(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class ZrangeCommand extends Command {
-	ZrangeCommand() { nArgs = VARARGS; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    try {
-		String key = args[0];
-		int start = parseInteger(args[1]);
-		int end = parseInteger(args[2]);
-		boolean withscores = (args.length > 3 
-		    && args[3].equalsIgnoreCase("WITHSCORES"));
-
-		List<String> values = tardis.zrange(
-		    key, start, end, false, withscores);
-
-		printList(nbc, values);
-	    } catch(ArrayIndexOutOfBoundsException e) {
-		printError(nbc, "wrong number of arguments for '" 
-		    + args[0].toLowerCase() + "' command");
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class ZrevrangeCommand extends Command {
-	ZrevrangeCommand() { nArgs = VARARGS; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    try {
-		String key = args[0];
-		int start = parseInteger(args[1]);
-		int end = parseInteger(args[2]);
-		boolean withscores = (args.length > 3 
-		    && args[3].equalsIgnoreCase("WITHSCORES"));
-
-		List<String> values = tardis.zrange(
-		    key, start, end, true, withscores);
-		printList(nbc, values);
-	    } catch(ArrayIndexOutOfBoundsException e) {
-		printError(nbc, "wrong number of arguments for '" 
-		    + args[0].toLowerCase() + "' command");
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class ZrangebyscoreCommand extends Command {
-	ZrangebyscoreCommand() { nArgs = VARARGS; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    try {
-	       String key = args[0];
-	       String min = args[1];
-	       String max = args[2];
-	       int offset = 0;
-	       int count = Integer.MAX_VALUE;
-	       boolean withscores = false;
-
-		for (int i=3; i < args.length; i++) {
-		    String arg = args[i];
-
-		    if ("LIMIT".equalsIgnoreCase(arg)) {
-			offset = parseInteger(args[++i]);
-			count = parseInteger(args[++i]);
-		    } else if ("WITHSCORES".equalsIgnoreCase(arg)) {
-			withscores = true;
-		    } else
-			throw new UnsupportedOperationException(Tardis.SYNTAX);
-		}
-	    
-		List<String> values = tardis.zrangebyscore(key, min, max, offset, count, withscores);
-		printList(nbc, values);
-	    } catch(ArrayIndexOutOfBoundsException e) {
-		printError(nbc, Tardis.SYNTAX);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class ZremrangebyscoreCommand extends Command {
-	ZremrangebyscoreCommand() { nArgs = 3; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    String min = args[1];
-	    String max = args[2];
-
-	    try {
-		int result = tardis.zremrangebyscore(key, min, max);
-		printInteger(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class Zremrangebyrank extends Command {
-	Zremrangebyrank() { nArgs = 3; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    int start = parseInteger(args[1]);
-	    int end = parseInteger(args[2]);
-
-	    try {
-		int result = tardis.zremrangebyrank(key, start, end);
-		printInteger(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class ZcardCommand extends Command {
-	ZcardCommand() { nArgs = 1; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-
-	    try {
-		int result = tardis.zcard(key);
-		printInteger(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class ZscoreCommand extends Command {
-	ZscoreCommand() { nArgs = 2; stringArg = true; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    String member = args[1];
-
-	    try {
-		String result = tardis.zscore(key, member);
-		printResult(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class ZrankCommand extends Command {
-	ZrankCommand() { nArgs = 2; stringArg = true; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    String member = args[1];
-
-	    try {
-		int result = tardis.zrank(key, member);
-		printResult(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class ZrevrankCommand extends Command {
-	ZrevrankCommand() { nArgs = 2; stringArg = true; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    String member = args[1];
-
-	    try {
-		int result = tardis.zrevrank(key, member);
-		printResult(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class ZcountCommand extends Command {
-	ZcountCommand() { nArgs = 3; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    try {
-		String key = args[0];
-		String min = args[1];
-		String max = args[2];
-
-		int result = tardis.zcount(key, min, max);
-
-		printInteger(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    //
-    // SORT
-    //
-
-    private static class SortCommand extends Command {
-	SortCommand() { nArgs = VARARGS; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = null;
-	    boolean asc = true;
-	    boolean alpha = false;
-	    String pattern_by = null;
-	    List<String> pattern_get = new ArrayList<String>();
-	    int start = 0;
-	    int count = Integer.MAX_VALUE;
-	    String store = null;
-
-	    try {
-		for (int i=0; i < args.length; i++) {
-		    String arg = args[i];
-
-		    if (i == 0)
-			key = arg;
-		    else if ("ASC".equalsIgnoreCase(arg))
-			asc = true;
-		    else if ("DESC".equalsIgnoreCase(arg))
-			asc = false;
-		    else if ("ALPHA".equalsIgnoreCase(arg))
-			alpha = true;
-		    else if ("BY".equalsIgnoreCase(arg))
-			pattern_by = args[++i];
-		    else if ("GET".equalsIgnoreCase(arg))
-			pattern_get.add(args[++i]);
-		    else if ("STORE".equalsIgnoreCase(arg))
-			store = args[++i];
-		    else if ("LIMIT".equalsIgnoreCase(arg)) {
-			start = parseInteger(args[++i]);
-			count = parseInteger(args[++i]);
-		    } else
-			throw new UnsupportedOperationException(Tardis.SYNTAX);
-		}
-
-		List<String> values = tardis.sort(key, asc, alpha, start, count, pattern_by, pattern_get, store);
-		printList(nbc, values);
-	    } catch(ArrayIndexOutOfBoundsException e) {
-		printError(nbc, Tardis.SYNTAX);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    //
-    // HASH COMMANDS
-    //
-
-    private static class HsetCommand extends Command {
-	HsetCommand() { nArgs = 3; stringArg = true; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    String field = args[1];
-	    String value = args[2];
-
-	    try {
-		boolean result = tardis.hset(key, field, value);
-		printInteger(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class HgetCommand extends Command {
-	HgetCommand() { nArgs = 2; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    String field = args[1];
-
-	    try {
-		String value = tardis.hget(key,field);
-		printResult(nbc, value);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class HdelCommand extends Command {
-	HdelCommand() { nArgs = 2; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    String field = args[1];
-
-	    try {
-		boolean result = tardis.hdel(key,field);
-		printInteger(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class HexistsCommand extends Command {
-	HexistsCommand() { nArgs = 2; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    String field = args[1];
-
-	    try {
-		boolean result = tardis.hexists(key,field);
-		printInteger(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class HincrbyCommand extends Command {
-	HincrbyCommand() { nArgs = 3; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    String field = args[1];
-	    long step = parseLong(args[2]);
-
-	    try {
-		long value = tardis.hincrby(key, field, step);
-		printInteger(nbc, value);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class HsetnxCommand extends Command {
-	HsetnxCommand() { nArgs = 3; stringArg = true; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    String field = args[1];
-	    String value = args[2];
-
-	    try {
-		boolean result = tardis.hsetnx(key, field, value);
-		printInteger(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class HlenCommand extends Command {
-	HlenCommand() { nArgs = 1; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-
-	    try {
-		long result = tardis.hlen(key);
-		printInteger(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class HgetallCommand extends Command {
-	HgetallCommand() { nArgs = 1; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    List<String> values = tardis.hgetall(key);
-	    printList(nbc, values);
-	}
-    }
-
-    private static class HkeysCommand extends Command {
-	HkeysCommand() { nArgs = 1; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    List<String> values = tardis.hkeys(key);
-	    printList(nbc, values);
-	}
-    }
-
-    private static class HvalsCommand extends Command {
-	HvalsCommand() { nArgs = 1; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    List<String> values = tardis.hvals(key);
-	    printList(nbc, values);
-	}
-    }
-
-    private static class HmsetCommand extends Command {
-	HmsetCommand() { nArgs = VARARGS; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    if (args.length < 3 || args.length % 2 != 1)
-	        printError(nbc, "wrong number of arguments");
-	    else {
-	        tardis.hmset(args);
-	        printStatus(nbc);
-	    }
-	}
-    }
-
-    private static class HmgetCommand extends Command {
-	HmgetCommand() { nArgs = VARARGS; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    if (args.length < 2 || args.length % 2 != 0)
-	        printError(nbc, "wrong number of arguments");
-	    else {
-	        tardis.hmget(args);
-	        printStatus(nbc);
-	    }
-	}
-    }
-
-    //
-    // MULTIPLE DB COMMANDS
-    //
-    
-    private static class SelectCommand extends Command {
-	private int selection = -1;
-
-	SelectCommand() { nArgs = 1; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    int index = parseInteger(args[0]);
-
-	    try {
-		Tardis.select(index);
-		selection = index;
-		printStatus(nbc);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-
-	public int getSelected() {
-		return selection;
-	}
-    }
-
-    private static class MoveCommand extends Command {
-	MoveCommand() { nArgs = 2; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String key = args[0];
-	    int index = parseInteger(args[1]);
-
-	    try {
-		boolean result = tardis.move(key, index);
-		printInteger(nbc, result);
-	    } catch(Exception e) {
-		printError(nbc, e.getMessage());
-	    }
-	}
-    }
-
-    private static class FlushdbCommand extends Command {
-	FlushdbCommand() { nArgs = 0; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    tardis.flushdb();
-	    printStatus(nbc);
-	}
-    }
-
-    private static class FlushallCommand extends Command {
-	FlushallCommand() { nArgs = 0; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    Tardis.flushall();
-	    printStatus(nbc);
-	}
-    }
-
-    private static class InfoCommand extends Command {
-	InfoCommand() { nArgs = 0; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    printResult(nbc, "version:"
-		    + Tardis.V_MAJOR
-		    + "."
-		    + Tardis.V_MINOR);
-	}
-    }
-
-    private static class DebugCommand extends Command {
-	DebugCommand() { nArgs = VARARGS; }
-
-	public void run(Tardis tardis, String args[], INonBlockingConnection nbc) throws IOException {
-	    String cmd = args[0];
-	    int len = args.length;
-	    if (cmd.equalsIgnoreCase("RELOAD") && len==1) {
-		try {
-		    Tardis.save(tardisFile);
-		    Tardis.flushall();
-		    Tardis.load(tardisFile);
-
-		    printStatus(nbc);
-		} catch(Exception e) {
-		    printError(nbc, e.getMessage());
-		}
-	    }
-
-	    if (cmd.equalsIgnoreCase("OBJECT") && len==2) {
-		printStatus(nbc);
-	    }
-
-	    else
-		printError(nbc,
-			"Syntax error, try DEBUG [SEGFAULT|OBJECT <key>"
-			+ "|SWAPIN <key>|SWAPOUT <key>|RELOAD]");
-        }
-    }
-
-    private static class Request {
-	public Command cmd;
-	public String args[];
-
-	Request(Command cmd, String args[]) {
-	    this.cmd = cmd;
-	    this.args = args;
-	}
-
-	public int run(int dbIndex, INonBlockingConnection nbc) throws IOException {
-	    Tardis tardis = Tardis.select(dbIndex);
-	    cmd.run(tardis, args, nbc);
-
-	    if (cmd instanceof SelectCommand)
-		dbIndex = ((SelectCommand)cmd).getSelected();
-
-	    return dbIndex;
-	}
-    }
-
-    public static void main(String[] args)
-    {
-	int port = 6379;
-	boolean commandList = false;
-
-	for (String arg : args) {
-		if (arg.equals("--debug"))
-			DEBUG = true;
-
-		else if (arg.equals("--list"))
-			commandList= true;
-		
-		else if (arg.startsWith("--password="))
-			password = arg.substring(11);
-
-		else if (arg.startsWith("--port="))
-			port = Integer.parseInt(arg.substring(7));
-
-		else {
-			System.out.println("invalid argument: " + arg);
-			System.exit(1);
-		}
-	}
-
-	if (DEBUG)
-		System.out.println("DEBUG enabled");
-
-	if (password != null)
-		System.out.println("AUTHENTICATION required");
-
-	commands.put("",	    new NopCommand());
-    	commands.put("ping",        new PingCommand());
-    	commands.put("quit",        new QuitCommand());
-    	commands.put("shutdown",    new ShutdownCommand());
-	commands.put("save",        new SaveCommand(0));
-	commands.put("bgsave",      new SaveCommand(1));
-	commands.put("bgrewriteaof",new SaveCommand(2));
-	commands.put("lastsave",    new LastSaveCommand());
-	commands.put("auth",        new AuthCommand());
-
-    	commands.put("set",         new SetCommand());
-    	commands.put("get",         new GetCommand());
-    	commands.put("getset",      new GetSetCommand());
-    	commands.put("mget",        new MgetCommand());
-    	commands.put("setnx",       new SetnxCommand());
-    	commands.put("mset",        new MsetCommand());
-    	commands.put("msetnx",      new MsetnxCommand());
-    	commands.put("append",      new AppendCommand());
-    	commands.put("incr",        new IncrCommand());
-    	commands.put("incrby",      new IncrbyCommand());
-    	commands.put("decr",        new DecrCommand());
-    	commands.put("decrby",      new DecrbyCommand());
-    	commands.put("exists",      new ExistsCommand());
-    	commands.put("del",         new DelCommand());
-    	commands.put("type",        new TypeCommand());
-
-    	commands.put("keys",        new KeysCommand());
-    	commands.put("randomkey",   new RandomkeyCommand());
-    	commands.put("rename",      new RenameCommand());
-    	commands.put("renamenx",    new RenamenxCommand());
-    	commands.put("dbsize",      new DbsizeCommand());
-    	commands.put("expire",      new ExpireCommand());
-    	commands.put("expireat",    new ExpireatCommand());
-    	commands.put("ttl",         new TtlCommand());
-
-	commands.put("rpush",       new RpushCommand());
-	commands.put("lpush",       new LpushCommand());
-	commands.put("llen",        new LlenCommand());
-	commands.put("lrange",      new LrangeCommand());
-	commands.put("ltrim",       new LtrimCommand());
-	commands.put("lindex",      new LindexCommand());
-	commands.put("lset",        new LsetCommand());
-	commands.put("lrem",        new LremCommand());
-	commands.put("lpop",        new LpopCommand());
-	commands.put("rpop",        new RpopCommand());
-	commands.put("rpoplpush",   new RpoplpushCommand());
-
-	commands.put("sadd",        new SaddCommand());
-	commands.put("srem",        new SremCommand());
-	commands.put("spop",        new SpopCommand());
-	commands.put("smove",       new SmoveCommand());
-        commands.put("scard",       new ScardCommand());
-	commands.put("sismember",   new SismemberCommand());
-	commands.put("smembers",    new SmembersCommand());
-	commands.put("srandmember", new SrandmemberCommand());
-	commands.put("sinter",      new SinterCommand());
-	commands.put("sinterstore", new SinterstoreCommand());
-	commands.put("sunion",      new SunionCommand());
-	commands.put("sunionstore", new SunionstoreCommand());
-	commands.put("sdiff",       new SdiffCommand());
-	commands.put("sdiffstore",  new SdiffstoreCommand());
-
-	commands.put("zadd",        new ZaddCommand());
-	commands.put("zrem",        new ZremCommand());
-	commands.put("zincrby",     new ZincrbyCommand());
-	commands.put("zrank",       new ZrankCommand());
-	commands.put("zrevrank",    new ZrevrankCommand());
-	commands.put("zrange",      new ZrangeCommand());
-	commands.put("zrevrange",   new ZrevrangeCommand());
-	commands.put("zrangebyscore",    new ZrangebyscoreCommand());
-	commands.put("zremrangebyrank",  new Zremrangebyrank());
-	commands.put("zremrangebyscore", new ZremrangebyscoreCommand());
-	commands.put("zcard",       new ZcardCommand());
-	commands.put("zscore",      new ZscoreCommand());
-	commands.put("zcount",      new ZcountCommand());
-
-	commands.put("sort",        new SortCommand());
-
-	commands.put("hdel",        new HdelCommand());
-	commands.put("hexists",     new HexistsCommand());
-	commands.put("hget",        new HgetCommand());
-	commands.put("hincrby",     new HincrbyCommand());
-	commands.put("hlen",        new HlenCommand());
-	commands.put("hset",        new HsetCommand());
-	commands.put("hsetnx",      new HsetnxCommand());
-	commands.put("hgetall",     new HgetallCommand());
-	commands.put("hkeys",       new HkeysCommand());
-	commands.put("hvals",       new HvalsCommand());
-
-	commands.put("select",      new SelectCommand());
-	commands.put("move",        new MoveCommand());
-	commands.put("flushdb",     new FlushdbCommand());
-	commands.put("flushall",    new FlushallCommand());
-
-	commands.put("info",        new InfoCommand());
-	commands.put("debug",       new DebugCommand());
-
-	commands.put("multi",	    new NopCommand()); // executed inline
-	commands.put("exec",	    new NopCommand()); // executed inline
-	commands.put("discard",	    new NopCommand()); // executed inline
-
-	if (commandList) {
-		System.out.println("Implemented commands:\n");
-
-		Object names[] = commands.keySet().toArray();
-		Arrays.sort(names);
-
-		for (Object name : names)
-			System.out.println(name);
-
-		return;
-	}
-
-	if (tardisFile.exists()) {
-	    System.out.println("loading data from " + tardisFile);
-	    try {
-		Tardis.load(tardisFile);
-	    } catch(Exception e) {
-		System.out.println(e);
-	    }
-	}
-
-        try {
-	    System.out.println("starting server on port " + port);
-            srv = new Server(port, new SocketServer());
-            srv.run();
-
-	    System.out.println("saving data to " + tardisFile);
-	    Tardis.save(tardisFile);
-        } catch(Exception ex) {
-            System.out.println("exception " + ex);
-        }
-    }
-
-    protected static void shutdownServer()
-    {
-        try {
-            srv.close();
-        } catch(Exception ex) {
-            System.out.println(ex);
-        }       
-    }
-
-
-    public boolean onConnect(INonBlockingConnection nbc) 
-        throws IOException, BufferUnderflowException, MaxReadSizeExceededException
-    {
-        synchronized(srv) {
-            connected++;
-        }
-
-	System.out.printf("%d clients connected\n", connected);
-        return true;
-    }
-
-    public boolean onDisconnect(INonBlockingConnection nbc) throws IOException
-    {
-        synchronized(srv) {
-            connected--;
-        }
-
-	System.out.printf("%d clients connected\n", connected);
-	return true;
-    }
-
-    public boolean onData(INonBlockingConnection nbc) 
-	  throws IOException, BufferUnderflowException, 
-	  ClosedChannelException, MaxReadSizeExceededException
-    {
-	nbc.markReadPosition();
-
-	try {
-	    String data = nbc.readStringByDelimiter(EOL);
-
-	    if (DEBUG)
-		System.out.println("req: " + data);
-
-	    String args[] = {};
-	    String cmdname = "";
-
-	    if (data.startsWith("*")) {
-		List<String> list = parseList(nbc, data);
-		if (list !=  null) {
-		    cmdname = list.remove(0).toLowerCase();
-		    args = list.toArray(new String[0]);
-		}
-	    } else {
-	        args = data.trim().split(" ", 2);
-	        cmdname = args[0].toLowerCase();
-
-	        if (args.length > 1)
-	    	    args = args[1].split(" ");
-	        else
-	            args = new String[0];
-	    }
-
-	    if (DEBUG) {
-		System.out.println("     " + cmdname + " " + Arrays.toString(args));
-	    }
-
-	    Command cmd = commands.get(cmdname);
-	    if (cmd != null) {
-		if (cmd.stringArg && ! data.startsWith("*")) {
-		    String arg = args[args.length-1];
-		    args[args.length-1] = parseString(nbc, arg);
-		}
-	    }
-
-	    if (DEBUG) {
-		System.out.println("cmd: " + cmdname 
-			+ ", info: " + cmd);
-	    }
-
-	    if (cmd == null)
-		printError(nbc, "unknown command");
-
-	    else if (cmd.nArgs != VARARGS && cmd.nArgs != args.length) {
-	        if (DEBUG) {
-		    System.out.println("command: " + cmdname);
-		    System.out.println("args: " + args.length);
-		}
-
-		printError(nbc, "wrong number of arguments for '" 
-		    + cmdname + "' command");
-	    }
-
-	    else if (password != null && !authenticated && !cmdname.equals("auth")) {
-//System.out.println("password: " + password);
-//System.out.println("authenticated: " + authenticated);
-//System.out.println("cmdname: " + cmdname);
-		printError(nbc, "operation not permitted");
-	    }
-
-	    else if (cmdname.equals("auth")) {
-		if (password == null || password.equals(args[0])) {
-		    authenticated = true;
-		    printStatus(nbc);
-		} else {
-		    authenticated = false;
-		    printError(nbc, "invalid password");
-		}
-	    }
-
-	    else if (cmdname.equals("multi")) {
-	        multi = true;
-	        printStatus(nbc);
-            } 
-
-	    else if (cmdname.equals("exec")) {
-		if (!multi)
-			printError(nbc, "EXEC without MULTI");
-		else {
-			multi = false;
-		
-			printList(nbc, requests.size());
-			while (! requests.isEmpty()) {
-				Request r = requests.remove(0);
-				selected = r.run(selected, nbc);
-			}
-
-		}
-	    }
-
-	    else if (cmdname.equals("discard")) {
-		if (!multi)
-			printError(nbc, "DISCARD without MULTI");
-		else {
-			multi = false;
-			requests.clear();
-			printStatus(nbc);
-		}
-	    }
-
-	    else if (multi) {
-		requests.add(new Request(cmd, args));
-		printStatus(nbc, "QUEUED");
-            }
-
-	    else {
-		Tardis tardis = Tardis.select(selected);
-		cmd.run(tardis, args, nbc);
-
-		if (cmd instanceof SelectCommand)
-		    selected = ((SelectCommand)cmd).getSelected();
-            }
-
-if (DEBUG) System.out.println("normal termination");
-	    nbc.removeReadMark();
-	} catch(UnsupportedOperationException e1) {
-if (DEBUG) { 
-	System.out.println("unsupported operation");
-}
-	    printError(nbc, e1.getMessage());
-	} catch(BufferUnderflowException e2) {
-if (DEBUG) { 
-	System.out.println("underflow ");
-	e2.printStackTrace();
-}
-	    nbc.resetToReadMark();
-	} catch(ClosedChannelException e3) {
-	    System.out.println("connection closed");
-	} catch(Exception e4) {
-	    e4.printStackTrace(System.out);
-	}
-	 
-	return true;
-    }
-
-    public static int parseInteger(String v)
-    {
-	try {
-	    return Integer.parseInt(v);
-	} catch(Exception e) {
-	    return 0;
-	}
-    }
-
-    public static long parseLong(String v)
-    {
-	try {
-	    return Long.parseLong(v);
-	} catch(Exception e) {
-	    return 0;
-	}
-    }
-
-    public static String parseString(INonBlockingConnection nbc, String v)
-	  throws IOException, BufferUnderflowException
-    {
-	long len = parseInteger(v);
-	if (len < 0 || len > 1024*1024*1024)
-	    throw new UnsupportedOperationException("invalid bulk write count");
-
-	byte result[] = nbc.readBytesByLength((int)len);
-	String sResult = new String(result);
-	
-// if (DEBUG) System.out.printf("received %d bytes '%s'\n", result.length, sResult);
-	nbc.readBytesByLength(2);
-	return sResult;
-    }
-
-    public static List<String> parseList(INonBlockingConnection nbc, String v)
-	  throws IOException, BufferUnderflowException
-    {
-	long n = parseInteger(v.substring(1));
-	if (n <= 0)
-		return null;
-
-	List<String> result = new ArrayList<String>();
-
-	for (int i=0; i < n; i++) {
-	    v = nbc.readStringByDelimiter(EOL);
-	    if (!v.startsWith("$"))
-	        throw new UnsupportedOperationException("multi bulk protocol error");
-		
-	    v = parseString(nbc, v.substring(1));
-	    result.add(v);
-	}
-
-	return result;
-    }
-
-    public static void printResult(INonBlockingConnection nbc, Object result) 
-	throws IOException
-    {
-	if (result == null)
-	    nbc.write("$-1" + EOL);
-	else {
-	    byte v[] = result.toString().getBytes();
-//System.out.printf("sent %d bytes, hashCode=%d\n", 
-//		v.length, Arrays.hashCode(v));
-	    nbc.write("$" + v.length + EOL);
-	    nbc.write(v);
-	    nbc.write(EOL);
-	}
-    }
-
-    public static void printEmpty(INonBlockingConnection nbc)
-	throws IOException
-    {
-	nbc.write(EOL);
-    }
-
-    public static void printStatus(INonBlockingConnection nbc)
-	throws IOException
-    {
-	printStatus(nbc, "OK");
-    }
-
-    public static void printStatus(INonBlockingConnection nbc, String status)
-	throws IOException
-    {
-	nbc.write("+" + status + EOL);
-    }
-
-    public static void printError(INonBlockingConnection nbc, String error)
-	throws IOException
-    {
-        System.out.println("error: " + error);
-	nbc.write("-ERR " + error + EOL);
-    }
-
-    public static void printDouble(INonBlockingConnection nbc, double value)
-	throws IOException
-    {
-	BigDecimal bd = (new BigDecimal(value)).round(MathContext.DECIMAL64);
-	nbc.write(":" + bd.toString() + EOL);
-    }
-
-    public static void printInteger(INonBlockingConnection nbc, boolean value)
-	throws IOException
-    {
-	printInteger(nbc, value ? 1 : 0);
-    }
-
-    public static void printInteger(INonBlockingConnection nbc, long value)
-	throws IOException
-    {
-	nbc.write(":" + value + EOL);
-    }
-
-	// this only writes the list header (number of elements in the list)
-    public static void printList(INonBlockingConnection nbc, int n)
-	throws IOException
-    {
-	nbc.write("*" + n + EOL);
-    }
-
-    public static void printList(INonBlockingConnection nbc, List<?> values)
-	throws IOException
-    {
-	if (values == null) {
-	    nbc.write("*-1" + EOL);
-	} else {
-	    int size = values.size();
-	    nbc.write("*" + size + EOL);
-
-	    for (Object v : values)
-		printResult(nbc, v);
-	}
-    }
-}
+package org.aromatic.tardis;
+
+import org.xsocket.*;
+import org.xsocket.connection.*;
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.math.*;
+
+public class SocketServer implements IConnectionScoped,
+    IDataHandler, IConnectHandler, IDisconnectHandler
+{
+    protected static boolean DEBUG = false;
+
+    protected static String password = null;
+
+    protected static final String CHARSET = Tardis.CHARSET.name();
+    protected static File tardisFile = new File("tardis.db");
+    protected static File appendFile = new File("appendonly.aof");
+    protected static Closeable srv = null;
+
+    protected static final int VARARGS = -1;
+
+    protected static final Map<String, Command> commands = 
+	    new HashMap<String, Command>();
+
+    // the commands by id, resolved from the request bytes with names
+    protected static final CommandTable names = new CommandTable();
+    protected static Command byId[] = new Command[0];
+
+    // command flags
+    protected static final int NOAUTH = 1;	// allowed before AUTH
+    protected static final int TRANSACTION = 2;	// never queued by MULTI
+    protected static final int WRITE = 4;	// logged to the append only file
+
+    protected static int connected = 0;
+
+    // runs the periodic background tasks
+    protected static final ScheduledExecutorService cron =
+	Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+	    public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, "tardis-cron");
+		t.setDaemon(true);
+		return t;
+	    }
+	});
+
+    // runs the background saves
+    protected static final ExecutorService saver =
+	Executors.newSingleThreadExecutor(new ThreadFactory() {
+	    public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, "tardis-save");
+		t.setDaemon(true);
+		return t;
+	    }
+	});
+
+    protected static final AtomicBoolean bgsaving = new AtomicBoolean();
+    protected static volatile long bgsaveStart = 0;
+
+    // the automatic saves, seconds and changes: a save starts once there
+    // were that many changes and it's that long since the last one
+    protected static final List<long[]> saveRules = new ArrayList<long[]>();
+
+    // how often the rules are checked, and how long to wait before
+    // trying again after a failed save
+    protected static final long SAVE_CHECK_PERIOD = 1000;
+    protected static final long SAVE_RETRY_DELAY = 5000;
+
+    protected static final AtomicBoolean bgrewriting = new AtomicBoolean();
+    protected static volatile boolean lastRewriteOk = true;
+
+    // the state of a connection, the transports create a SocketServer
+    // for each one and pass it what they read, see process()
+    protected int selected;
+    protected boolean multi = false;
+    protected boolean authenticated = false;
+    protected List<Request> requests = new ArrayList<Request>();
+    protected RespParser parser;
+    protected ReplyBuffer out;
+
+    // the write being run, and the last one logged by the requests
+    // being processed, see call()
+    protected AppendOnlyFile.Entry logging;
+    protected AppendOnlyFile.Entry logged;
+
+    // set by the transports that can't block, run once the replies
+    // held back for a sync can be sent, see flush()
+    protected Runnable onSync;
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        return new SocketServer();
+    }
+
+    // Constructor
+    SocketServer()
+    {
+        this(RespParser.BUFFER_SIZE, ReplyBuffer.BUFFER_SIZE);
+    }
+
+    // with the initial size of the request and reply buffers
+    SocketServer(int readSize, int writeSize)
+    {
+        selected = 0;
+        parser = new RespParser(readSize);
+        out = new ReplyBuffer(writeSize);
+    }
+
+    private static class Command {
+	public int id = -1;
+	public String name;
+	public int nArgs = 0;
+	public int flags = 0;
+	public boolean stringArg = false;
+
+	public String toString() {
+	    return this.getClass().getName() + " - nArgs:" + nArgs + ", stringArg:" + stringArg;
+        }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	}
+
+	// the commands that work on the connection rather than
+	// on the selected DB override this
+	public void run(SocketServer session, Args args, ReplyBuffer out) throws IOException {
+	    run(Tardis.select(session.selected), args, out);
+	}
+    }
+
+    //
+    // SERVER COMMANDS
+    //
+
+    private static class NopCommand extends Command {
+	NopCommand() { nArgs = 0; }
+    }
+
+    private static class PingCommand extends Command {
+	PingCommand() { nArgs = 0; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    out.write(ReplyBuffer.PONG);
+	}
+    }
+	    
+    private static class QuitCommand extends Command {
+	QuitCommand() { nArgs = 0; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    out.close();
+	}
+    }
+
+    private static class ShutdownCommand extends Command {
+	ShutdownCommand() { nArgs = 0; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) {
+	    shutdownServer();
+	}
+    }
+	    
+    private static class SaveCommand extends Command {
+	SaveCommand(int type) { nArgs = 0; commandType = type; }
+
+	int commandType;
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    if (commandType == 0) {
+		if (bgsaving.get()) {
+		    printError(out, BGSAVING);
+		    return;
+		}
+
+		try {
+		    Tardis.save(tardisFile);
+		    printStatus(out);
+		} catch(Exception e) {
+		    e.printStackTrace(System.out);
+		    printError(out, e.getMessage());
+		}
+	    } else if (commandType == 2) {
+		if (Tardis.journal == null)
+		    printError(out, NOAOF);
+		else if (!bgrewrite())
+		    printError(out, BGREWRITING);
+		else
+		    printStatus(out, "Background append only file rewriting started");
+	    } else if (!bgsave())
+		printError(out, BGSAVING);
+	    else
+		printStatus(out, "Background saving started");
+	}
+    }
+
+    protected static final String BGSAVING = "Background save already in progress";
+    protected static final String BGREWRITING = "Background append only file rewriting already in progress";
+    protected static final String NOAOF = "Append only file is not enabled";
+
+    /**
+     * Starts a save on the saver thread, returns false if one is
+     * already running
+     */
+    protected static boolean bgsave()
+    {
+	if (!bgsaving.compareAndSet(false, true))
+	    return false;
+
+	bgsaveStart = System.currentTimeMillis();
+	try {
+	    saver.execute(new Runnable() {
+		public void run() {
+		    try {
+			Tardis.save(tardisFile);
+			System.out.println("background save done in "
+			    + Tardis.lastSaveDuration + " ms");
+		    } catch(Exception e) {
+			System.out.println("background save failed: " + e);
+		    } finally {
+			bgsaving.set(false);
+		    }
+		}
+	    });
+	} catch(RejectedExecutionException e) {
+	    bgsaving.set(false);
+	    throw e;
+	}
+
+	return true;
+    }
+
+    /**
+     * The ms to the next save due by the rules, -1 if none is
+     */
+    protected static long nextSave()
+    {
+	long changes = Tardis.changesSinceLastSave();
+	long next = -1;
+
+	for (long rule[] : saveRules) {
+	    if (changes < rule[1])
+		continue;
+
+	    long due = Tardis.lastSave + rule[0] * 1000;
+	    if (next < 0 || due < next)
+		next = due;
+	}
+
+	if (next < 0)
+	    return -1;
+
+	if (!Tardis.lastSaveOk)
+	    next = Math.max(next, bgsaveStart + SAVE_RETRY_DELAY);
+	return Math.max(next - System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * Starts a rewrite of the append only file on the saver thread, after
+     * the running save if any. Returns false if one is already running
+     */
+    protected static boolean bgrewrite()
+    {
+	if (!bgrewriting.compareAndSet(false, true))
+	    return false;
+
+	try {
+	    saver.execute(new Runnable() {
+		public void run() {
+		    long start = System.currentTimeMillis();
+		    try {
+			AppendOnlyFile log = Tardis.journal;
+			if (log != null) {
+			    Tardis.rewrite(log.file(), log);
+			    System.out.println("append only file rewritten in "
+				+ (System.currentTimeMillis() - start) + " ms");
+			}
+			lastRewriteOk = true;
+		    } catch(Exception e) {
+			System.out.println("append only file rewrite failed: " + e);
+			lastRewriteOk = false;
+		    } finally {
+			bgrewriting.set(false);
+		    }
+		}
+	    });
+	} catch(RejectedExecutionException e) {
+	    bgrewriting.set(false);
+	    throw e;
+	}
+
+	return true;
+    }
+
+    private static class LastSaveCommand extends Command {
+	LastSaveCommand() { nArgs = 0; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    printInteger(out, Tardis.lastSave);
+	}
+    }
+
+    private static class AuthCommand extends Command {
+	AuthCommand() { nArgs = 1; flags = NOAUTH | TRANSACTION; }
+
+	public void run(SocketServer session, Args args, ReplyBuffer out) throws IOException {
+	    if (password == null || password.equals(args.string(0))) {
+		session.authenticated = true;
+		printStatus(out);
+	    } else {
+		session.authenticated = false;
+		printError(out, "invalid password");
+	    }
+	}
+    }
+
+    private static class MultiCommand extends Command {
+	MultiCommand() { nArgs = 0; flags = TRANSACTION; }
+
+	public void run(SocketServer session, Args args, ReplyBuffer out) throws IOException {
+	    session.multi = true;
+	    printStatus(out);
+	}
+    }
+
+    private static class ExecCommand extends Command {
+	ExecCommand() { nArgs = 0; flags = TRANSACTION; }
+
+	public void run(SocketServer session, Args args, ReplyBuffer out) throws IOException {
+	    if (!session.multi)
+		printError(out, "EXEC without MULTI");
+	    else {
+		session.multi = false;
+
+		List<Request> requests = session.requests;
+		printList(out, requests.size());
+		while (! requests.isEmpty()) {
+		    Request r = requests.remove(0);
+		    session.call(r.cmd, r.args);
+		}
+	    }
+	}
+    }
+
+    private static class DiscardCommand extends Command {
+	DiscardCommand() { nArgs = 0; flags = TRANSACTION; }
+
+	public void run(SocketServer session, Args args, ReplyBuffer out) throws IOException {
+	    if (!session.multi)
+		printError(out, "DISCARD without MULTI");
+	    else {
+		session.multi = false;
+		session.requests.clear();
+		printStatus(out);
+	    }
+	}
+    }
+
+    private static class SetCommand extends Command {
+	SetCommand() { nArgs = 2; flags = WRITE; } //stringArg = true; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    byte[] value = args.bytes(1);
+
+	    tardis.set(key, value);
+	    printStatus(out);
+	}
+    }
+
+    //
+    // STRING COMMANDS
+    //
+
+    private static class GetCommand extends Command {
+	GetCommand() { nArgs = 1; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+
+	    try {
+		byte[] value = tardis.get(key);
+		printResult(out, value);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class GetSetCommand extends Command {
+	GetSetCommand() { nArgs = 2; flags = WRITE; stringArg = true; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    byte[] value = args.bytes(1);
+
+	    try {
+		byte[] result = tardis.getset(key, value);
+		printResult(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class MgetCommand extends Command {
+	MgetCommand() { nArgs = VARARGS; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    List<byte[]> values = tardis.mget(args.strings());
+	    printList(out, values);
+	}
+    }
+
+    private static class SetnxCommand extends Command {
+	SetnxCommand() { nArgs = 2; flags = WRITE; stringArg = true; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    byte[] value = args.bytes(1);
+
+	    boolean result = tardis.setnx(key, value);
+	    printInteger(out, result);
+	}
+    }
+
+    private static class MsetCommand extends Command {
+	MsetCommand() { nArgs = VARARGS; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    if (args.length() % 2 != 0)
+	        printError(out, "wrong number of arguments");
+	    else {
+	        tardis.mset(keys(args), values(args));
+	        printStatus(out);
+	    }
+	}
+    }
+
+    private static class MsetnxCommand extends Command {
+	MsetnxCommand() { nArgs = VARARGS; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    if (args.length() % 2 != 0)
+	        printError(out, "wrong number of arguments");
+	    else {
+		boolean result = tardis.msetnx(keys(args), values(args));
+		printInteger(out, result);
+	    }
+	}
+    }
+
+    private static class AppendCommand extends Command {
+	AppendCommand() { nArgs = 2; flags = WRITE; stringArg = true; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    byte[] value = args.bytes(1);
+
+	    int result = tardis.append(key, value);
+	    printInteger(out, result);
+	}
+    }
+
+
+    private static class IncrCommand extends Command {
+	IncrCommand() { nArgs = 1; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+
+	    try {
+		long value = tardis.incr(key);
+		printInteger(out, value);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class IncrbyCommand extends Command {
+	IncrbyCommand() { nArgs = 2; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    long step = args.longValue(1);
+
+	    try {
+		long value = tardis.incrby(key, step);
+		printInteger(out, value);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class DecrCommand extends Command {
+	DecrCommand() { nArgs = 1; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+
+	    try {
+		long value = tardis.decr(key);
+		printInteger(out, value);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class DecrbyCommand extends Command {
+	DecrbyCommand() { nArgs = 2; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    long step = args.longValue(1);
+
+	    try {
+		long value = tardis.decrby(key, step);
+		printInteger(out, value);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class ExistsCommand extends Command {
+	ExistsCommand() { nArgs = 1; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+
+	    boolean result = tardis.exists(key);
+	    printInteger(out, result);
+	}
+    }
+
+    private static class DelCommand extends Command {
+	DelCommand() { nArgs = VARARGS; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    int result = tardis.del(args.strings());
+	    printInteger(out, result);
+	}
+    }
+
+    private static class TypeCommand extends Command {
+	TypeCommand() { nArgs = 1; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+
+	    String result = tardis.type(key);
+	    printResult(out, result);
+	}
+    }
+
+    //
+    // KEY SPACE COMMANDS
+    //
+
+    private static class KeysCommand extends Command {
+	KeysCommand() { nArgs = 1; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String pattern = args.string(0);
+
+	    String result = tardis.keys(pattern);
+	    printResult(out, result);
+	}
+    }
+
+    private static class RandomkeyCommand extends Command {
+	RandomkeyCommand() { nArgs = 0; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String result = tardis.randomkey();
+	    printResult(out, result);
+	}
+    }
+
+    private static class RenameCommand extends Command {
+	RenameCommand() { nArgs = 2; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String oldname = args.string(0);
+	    String newname = args.string(1);
+
+	    try {
+		tardis.rename(oldname, newname);
+		printStatus(out);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class RenamenxCommand extends Command {
+	RenamenxCommand() { nArgs = 2; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String oldname = args.string(0);
+	    String newname = args.string(1);
+
+	    try {
+		boolean result = tardis.renamenx(oldname, newname);
+		printInteger(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class DbsizeCommand extends Command {
+	DbsizeCommand() { nArgs = 0; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    long result = tardis.dbsize();
+	    printInteger(out, result);
+	}
+    }
+
+    private static class ExpireCommand extends Command {
+	ExpireCommand() { nArgs = 2; flags = WRITE; }
+
+	// logged with the time it expires at
+	public void run(SocketServer session, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    long time = System.currentTimeMillis() + args.longValue(1) * 1000;
+
+	    boolean result = Tardis.select(session.selected).expireat(key, time);
+	    session.journal("pexpireat", key, Long.toString(time));
+	    printInteger(out, result);
+	}
+    }
+
+    private static class ExpireatCommand extends Command {
+	ExpireatCommand() { nArgs = 2; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    long time = args.longValue(1) * 1000;
+
+	    boolean result = tardis.expireat(key, time);
+	    printInteger(out, result);
+	}
+    }
+
+    private static class PexpireatCommand extends Command {
+	PexpireatCommand() { nArgs = 2; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    long time = args.longValue(1);
+
+	    boolean result = tardis.expireat(key, time);
+	    printInteger(out, result);
+	}
+    }
+
+    private static class TtlCommand extends Command {
+	TtlCommand() { nArgs = 1; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+
+	    long result = tardis.ttl(key);
+	    if (result > 0)
+		    result = (result+499)/1000;
+
+	    printInteger(out, result);
+	}
+    }
+
+    //
+    // LIST COMMANDS
+    //
+
+    private static class RpushCommand extends Command {
+	RpushCommand() { nArgs = 2; flags = WRITE; stringArg = true; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    String value = args.string(1);
+
+	    try {
+		int result = tardis.rpush(key, value);
+		printInteger(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class LpushCommand extends Command {
+	LpushCommand() { nArgs = 2; flags = WRITE; stringArg = true; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    String value = args.string(1);
+
+	    try {
+		int result = tardis.lpush(key, value);
+		printInteger(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class LlenCommand extends Command {
+	LlenCommand() { nArgs = 1; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+
+	    try {
+		int result = tardis.llen(key);
+		printInteger(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class LrangeCommand extends Command {
+	LrangeCommand() { nArgs = 3; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    int start = args.integer(1);
+	    int end = args.integer(2);
+
+	    try {
+		List<String> values = tardis.lrange(key, start, end);
+		printList(out, values);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class LtrimCommand extends Command {
+	LtrimCommand() { nArgs = 3; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    int start = args.integer(1);
+	    int end = args.integer(2);
+
+	    try {
+		tardis.ltrim(key, start, end);
+		printStatus(out);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class LindexCommand extends Command {
+	LindexCommand() { nArgs = 2; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    int index = args.integer(1);
+
+	    try {
+		String result = tardis.lindex(key, index);
+		printResult(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class LsetCommand extends Command {
+	LsetCommand() { nArgs = 3; flags = WRITE; stringArg = true; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    int index = args.integer(1);
+	    String value = args.string(2);
+
+	    try {
+		tardis.lset(key, index, value);
+		printStatus(out);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class LremCommand extends Command {
+	LremCommand() { nArgs = 3; flags = WRITE; stringArg = true; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    int count = args.integer(1);
+	    String value = args.string(2);
+
+	    try {
+		int result = tardis.lrem(key, count, value);
+		printInteger(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class LpopCommand extends Command {
+	LpopCommand() { nArgs = 1; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+
+	    try {
+		String result = tardis.lpop(key);
+		printResult(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class RpopCommand extends Command {
+	RpopCommand() { nArgs = 1; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+
+	    try {
+		String result = tardis.rpop(key);
+		printResult(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class RpoplpushCommand extends Command {
+	RpoplpushCommand() { nArgs = 2; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String src = args.string(0);
+	    String dest = args.string(1);
+
+	    try {
+		String result = tardis.rpoplpush(src, dest);
+		printResult(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    //
+    // SETS COMMANDS
+    //
+
+    private static class SaddCommand extends Command {
+	SaddCommand() { nArgs = 2; flags = WRITE; stringArg = true; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    String member = args.string(1);
+
+	    try {
+		boolean result = tardis.sadd(key, member);
+		printInteger(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class SremCommand extends Command {
+	SremCommand() { nArgs = 2; flags = WRITE; stringArg = true; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    String member = args.string(1);
+
+	    try {
+		boolean result = tardis.srem(key, member);
+		printInteger(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class SpopCommand extends Command {
+	SpopCommand() { nArgs = 1; flags = WRITE; }
+
+	// the member is random, it's logged as removed
+	public void run(SocketServer session, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+
+	    try {
+		String result = Tardis.select(session.selected).spop(key);
+		if (result != null)
+		    session.journal("srem", key, result);
+		else
+		    session.journal();
+		printResult(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class SmoveCommand extends Command {
+	SmoveCommand() { nArgs = 3; flags = WRITE; stringArg = true; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String src = args.string(0);
+	    String dest = args.string(1);
+	    String member = args.string(2);
+
+	    try {
+		boolean result = tardis.smove(src, dest, member);
+		printInteger(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class ScardCommand extends Command {
+	ScardCommand() { nArgs = 1; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+
+	    try {
+		int result = tardis.scard(key);
+		printInteger(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class SismemberCommand extends Command {
+	SismemberCommand() { nArgs = 2; stringArg = true; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    String member = args.string(1);
+
+	    try {
+		boolean result = tardis.sismember(key, member);
+		printInteger(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class SmembersCommand extends Command {
+	SmembersCommand() { nArgs = VARARGS; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    try {
+		List<String> values = tardis.sinter(args.strings());
+		printList(out, values);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class SrandmemberCommand extends Command {
+	SrandmemberCommand() { nArgs = 1; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+
+	    try {
+		String result = tardis.srandmember(key);
+		printResult(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class SinterCommand extends Command {
+	SinterCommand() { nArgs = VARARGS; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    try {
+		List<String> values = tardis.sinter(args.strings());;
+		printList(out, values);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class SinterstoreCommand extends Command {
+	SinterstoreCommand() { nArgs = VARARGS; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    try {
+		int result = tardis.sinterstore(args.strings());;
+		printInteger(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class SunionCommand extends Command {
+	SunionCommand() { nArgs = VARARGS; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    try {
+		List<String> values = tardis.sunion(args.strings());;
+		printList(out, values);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class SunionstoreCommand extends Command {
+	SunionstoreCommand() { nArgs = VARARGS; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    try {
+		int result = tardis.sunionstore(args.strings());;
+		printInteger(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class SdiffCommand extends Command {
+	SdiffCommand() { nArgs = VARARGS; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    try {
+		List<String> values = tardis.sdiff(args.strings());;
+		printList(out, values);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class SdiffstoreCommand extends Command {
+	SdiffstoreCommand() { nArgs = VARARGS; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    try {
+		int result = tardis.sdiffstore(args.strings());;
+		printInteger(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    //
+    // ZSETS COMMANDS
+    //
+
+    private static class ZaddCommand extends Command {
+	ZaddCommand() { nArgs = 3; flags = WRITE; stringArg = true; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    String score = args.string(1);
+	    String member = args.string(2);
+
+	    try {
+		boolean result = tardis.zadd(key, score, member);
+		printInteger(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class ZincrbyCommand extends Command {
+	ZincrbyCommand() { nArgs = 3; flags = WRITE; stringArg = true; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    String score = args.string(1);
+	    String member = args.string(2);
+
+	    try {
+		double result = tardis.zincrby(key, score, member);
+		printDouble(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class ZremCommand extends Command {
+	ZremCommand() { nArgs = 2; flags = WRITE; stringArg = true; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    String member = args.string(1);
+
+	    try {
+		boolean result = tardis.zrem(key, member);
+		printInteger(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class ZrangeCommand extends Command {
+	ZrangeCommand() { nArgs = VARARGS; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    try {
+		String key = args.string(0);
+		int start = args.integer(1);
+		int end = args.integer(2);
+		boolean withscores = (args.length() > 3 
+		    && args.equalsIgnoreCase(3, "WITHSCORES"));
+
+		List<String> values = tardis.zrange(
+		    key, start, end, false, withscores);
+
+		printList(out, values);
+	    } catch(ArrayIndexOutOfBoundsException e) {
+		printError(out, "wrong number of arguments for '" 
+		    + args.string(0).toLowerCase() + "' command");
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class ZrevrangeCommand extends Command {
+	ZrevrangeCommand() { nArgs = VARARGS; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    try {
+		String key = args.string(0);
+		int start = args.integer(1);
+		int end = args.integer(2);
+		boolean withscores = (args.length() > 3 
+		    && args.equalsIgnoreCase(3, "WITHSCORES"));
+
+		List<String> values = tardis.zrange(
+		    key, start, end, true, withscores);
+		printList(out, values);
+	    } catch(ArrayIndexOutOfBoundsException e) {
+		printError(out, "wrong number of arguments for '" 
+		    + args.string(0).toLowerCase() + "' command");
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class ZrangebyscoreCommand extends Command {
+	ZrangebyscoreCommand() { nArgs = VARARGS; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    try {
+	       String key = args.string(0);
+	       String min = args.string(1);
+	       String max = args.string(2);
+	       int offset = 0;
+	       int count = Integer.MAX_VALUE;
+	       boolean withscores = false;
+
+		for (int i=3; i < args.length(); i++) {
+		    String arg = args.string(i);
+
+		    if ("LIMIT".equalsIgnoreCase(arg)) {
+			offset = args.integer(++i);
+			count = args.integer(++i);
+		    } else if ("WITHSCORES".equalsIgnoreCase(arg)) {
+			withscores = true;
+		    } else
+			throw new UnsupportedOperationException(Tardis.SYNTAX);
+		}
+	    
+		List<String> values = tardis.zrangebyscore(key, min, max, offset, count, withscores);
+		printList(out, values);
+	    } catch(ArrayIndexOutOfBoundsException e) {
+		printError(out, Tardis.SYNTAX);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class ZremrangebyscoreCommand extends Command {
+	ZremrangebyscoreCommand() { nArgs = 3; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    String min = args.string(1);
+	    String max = args.string(2);
+
+	    try {
+		int result = tardis.zremrangebyscore(key, min, max);
+		printInteger(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class Zremrangebyrank extends Command {
+	Zremrangebyrank() { nArgs = 3; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    int start = args.integer(1);
+	    int end = args.integer(2);
+
+	    try {
+		int result = tardis.zremrangebyrank(key, start, end);
+		printInteger(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class ZcardCommand extends Command {
+	ZcardCommand() { nArgs = 1; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+
+	    try {
+		int result = tardis.zcard(key);
+		printInteger(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class ZscoreCommand extends Command {
+	ZscoreCommand() { nArgs = 2; stringArg = true; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    String member = args.string(1);
+
+	    try {
+		String result = tardis.zscore(key, member);
+		printResult(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class ZrankCommand extends Command {
+	ZrankCommand() { nArgs = 2; stringArg = true; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    String member = args.string(1);
+
+	    try {
+		int result = tardis.zrank(key, member);
+		printResult(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class ZrevrankCommand extends Command {
+	ZrevrankCommand() { nArgs = 2; stringArg = true; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    String member = args.string(1);
+
+	    try {
+		int result = tardis.zrevrank(key, member);
+		printResult(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class ZcountCommand extends Command {
+	ZcountCommand() { nArgs = 3; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    try {
+		String key = args.string(0);
+		String min = args.string(1);
+		String max = args.string(2);
+
+		int result = tardis.zcount(key, min, max);
+
+		printInteger(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    //
+    // SORT
+    //
+
+    private static class SortCommand extends Command {
+	SortCommand() { nArgs = VARARGS; flags = WRITE; }
+
+	// it's only a write with STORE
+	public void run(SocketServer session, Args args, ReplyBuffer out) throws IOException {
+	    Tardis tardis = Tardis.select(session.selected);
+	    String key = null;
+	    boolean asc = true;
+	    boolean alpha = false;
+	    String pattern_by = null;
+	    List<String> pattern_get = new ArrayList<String>();
+	    int start = 0;
+	    int count = Integer.MAX_VALUE;
+	    String store = null;
+
+	    try {
+		for (int i=0; i < args.length(); i++) {
+		    String arg = args.string(i);
+
+		    if (i == 0)
+			key = arg;
+		    else if ("ASC".equalsIgnoreCase(arg))
+			asc = true;
+		    else if ("DESC".equalsIgnoreCase(arg))
+			asc = false;
+		    else if ("ALPHA".equalsIgnoreCase(arg))
+			alpha = true;
+		    else if ("BY".equalsIgnoreCase(arg))
+			pattern_by = args.string(++i);
+		    else if ("GET".equalsIgnoreCase(arg))
+			pattern_get.add(args.string(++i));
+		    else if ("STORE".equalsIgnoreCase(arg))
+			store = args.string(++i);
+		    else if ("LIMIT".equalsIgnoreCase(arg)) {
+			start = args.integer(++i);
+			count = args.integer(++i);
+		    } else
+			throw new UnsupportedOperationException(Tardis.SYNTAX);
+		}
+
+		if (store == null)
+		    session.journal();
+
+		List<String> values = tardis.sort(key, asc, alpha, start, count, pattern_by, pattern_get, store);
+		printList(out, values);
+	    } catch(ArrayIndexOutOfBoundsException e) {
+		printError(out, Tardis.SYNTAX);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    //
+    // HASH COMMANDS
+    //
+
+    private static class HsetCommand extends Command {
+	HsetCommand() { nArgs = 3; flags = WRITE; stringArg = true; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    String field = args.string(1);
+	    String value = args.string(2);
+
+	    try {
+		boolean result = tardis.hset(key, field, value);
+		printInteger(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class HgetCommand extends Command {
+	HgetCommand() { nArgs = 2; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    String field = args.string(1);
+
+	    try {
+		String value = tardis.hget(key,field);
+		printResult(out, value);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class HdelCommand extends Command {
+	HdelCommand() { nArgs = 2; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    String field = args.string(1);
+
+	    try {
+		boolean result = tardis.hdel(key,field);
+		printInteger(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class HexistsCommand extends Command {
+	HexistsCommand() { nArgs = 2; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    String field = args.string(1);
+
+	    try {
+		boolean result = tardis.hexists(key,field);
+		printInteger(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class HincrbyCommand extends Command {
+	HincrbyCommand() { nArgs = 3; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    String field = args.string(1);
+	    long step = args.longValue(2);
+
+	    try {
+		long value = tardis.hincrby(key, field, step);
+		printInteger(out, value);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class HsetnxCommand extends Command {
+	HsetnxCommand() { nArgs = 3; flags = WRITE; stringArg = true; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    String field = args.string(1);
+	    String value = args.string(2);
+
+	    try {
+		boolean result = tardis.hsetnx(key, field, value);
+		printInteger(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class HlenCommand extends Command {
+	HlenCommand() { nArgs = 1; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+
+	    try {
+		long result = tardis.hlen(key);
+		printInteger(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class HgetallCommand extends Command {
+	HgetallCommand() { nArgs = 1; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    List<String> values = tardis.hgetall(key);
+	    printList(out, values);
+	}
+    }
+
+    private static class HkeysCommand extends Command {
+	HkeysCommand() { nArgs = 1; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    List<String> values = tardis.hkeys(key);
+	    printList(out, values);
+	}
+    }
+
+    private static class HvalsCommand extends Command {
+	HvalsCommand() { nArgs = 1; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    List<String> values = tardis.hvals(key);
+	    printList(out, values);
+	}
+    }
+
+    private static class HmsetCommand extends Command {
+	HmsetCommand() { nArgs = VARARGS; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    if (args.length() < 3 || args.length() % 2 != 1)
+	        printError(out, "wrong number of arguments");
+	    else {
+	        tardis.hmset(args.strings());
+	        printStatus(out);
+	    }
+	}
+    }
+
+    private static class HmgetCommand extends Command {
+	HmgetCommand() { nArgs = VARARGS; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    if (args.length() < 2 || args.length() % 2 != 0)
+	        printError(out, "wrong number of arguments");
+	    else {
+	        tardis.hmget(args.strings());
+	        printStatus(out);
+	    }
+	}
+    }
+
+    //
+    // MULTIPLE DB COMMANDS
+    //
+    
+    private static class SelectCommand extends Command {
+	SelectCommand() { nArgs = 1; }
+
+	// the selected DB is kept by the connection
+	public void run(SocketServer session, Args args, ReplyBuffer out) throws IOException {
+	    try {
+		int index = args.integer(0);
+		Tardis.select(index);
+		session.selected = index;
+		printStatus(out);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class MoveCommand extends Command {
+	MoveCommand() { nArgs = 2; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String key = args.string(0);
+	    int index = args.integer(1);
+
+	    try {
+		boolean result = tardis.move(key, index);
+		printInteger(out, result);
+	    } catch(Exception e) {
+		printError(out, e.getMessage());
+	    }
+	}
+    }
+
+    private static class FlushdbCommand extends Command {
+	FlushdbCommand() { nArgs = 0; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    tardis.flushdb();
+	    printStatus(out);
+	}
+    }
+
+    private static class FlushallCommand extends Command {
+	FlushallCommand() { nArgs = 0; flags = WRITE; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    Tardis.flushall();
+	    printStatus(out);
+	}
+    }
+
+    private static class InfoCommand extends Command {
+	InfoCommand() { nArgs = 0; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    boolean bg = bgsaving.get();
+	    double progress = Tardis.saveProgress();
+
+	    StringBuilder info = new StringBuilder();
+	    info.append("version:")
+		.append(Tardis.V_MAJOR).append('.').append(Tardis.V_MINOR)
+		.append("\r\nrdb_bgsave_in_progress:").append(bg ? 1 : 0)
+		.append("\r\nrdb_last_save_time:").append(Tardis.lastSave / 1000)
+		.append("\r\nrdb_last_bgsave_status:").append(Tardis.lastSaveOk ? "ok" : "err")
+		.append("\r\nrdb_last_bgsave_time_ms:").append(Tardis.lastSaveDuration)
+		.append("\r\nrdb_current_bgsave_time_ms:")
+		.append(bg ? System.currentTimeMillis() - bgsaveStart : -1)
+		.append("\r\nrdb_save_progress:")
+		.append(progress < 0 ? "-" : String.format("%.2f%%", progress))
+		.append("\r\nrdb_deltas:").append(Tardis.deltas());
+
+	    long next = nextSave();
+	    info.append("\r\nchanges_since_last_save:").append(Tardis.changesSinceLastSave())
+		.append("\r\nnext_save_in_sec:").append(next < 0 ? -1 : (next + 999) / 1000);
+
+	    AppendOnlyFile log = Tardis.journal;
+	    info.append("\r\naof_enabled:").append(log != null ? 1 : 0);
+	    if (log != null)
+		info.append("\r\naof_fsync:").append(AppendOnlyFile.POLICIES[log.policy()])
+		    .append("\r\naof_last_write_status:").append(log.lastWriteOk() ? "ok" : "err")
+		    .append("\r\naof_current_size:").append(log.size())
+		    .append("\r\naof_rewrite_in_progress:").append(bgrewriting.get() ? 1 : 0)
+		    .append("\r\naof_last_bgrewrite_status:").append(lastRewriteOk ? "ok" : "err");
+
+	    double loaded = Tardis.loadProgress();
+	    info.append("\r\nloading:").append(loaded < 0 ? 0 : 1);
+	    if (loaded >= 0)
+		info.append("\r\nloading_loaded_perc:")
+		    .append(String.format("%.2f", loaded));
+
+	    printResult(out, info.toString());
+	}
+    }
+
+    private static class DebugCommand extends Command {
+	DebugCommand() { nArgs = VARARGS; }
+
+	public void run(Tardis tardis, Args args, ReplyBuffer out) throws IOException {
+	    String cmd = args.string(0);
+	    int len = args.length();
+	    if (cmd.equalsIgnoreCase("RELOAD") && len==1) {
+		try {
+		    Tardis.save(tardisFile);
+		    Tardis.flushall();
+		    Tardis.load(tardisFile);
+
+		    printStatus(out);
+		} catch(Exception e) {
+		    printError(out, e.getMessage());
+		}
+	    }
+
+	    else if (cmd.equalsIgnoreCase("OBJECT") && len==2) {
+		String encoding = tardis.encoding(args.string(1));
+		if (encoding == null)
+		    printError(out, Tardis.NOKEY);
+		else
+		    printStatus(out, "Value at:0 refcount:1 encoding:" + encoding);
+	    }
+
+	    else
+		printError(out,
+			"Syntax error, try DEBUG [SEGFAULT|OBJECT <key>"
+			+ "|SWAPIN <key>|SWAPOUT <key>|RELOAD]");
+        }
+    }
+
+    private static class Request {
+	public Command cmd;
+	public Args args;
+
+	Request(Command cmd, Args args) {
+	    this.cmd = cmd;
+	    this.args = args;
+	}
+    }
+
+    public static void main(String[] args)
+    {
+	int port = 6379;
+	int ioThreads = Runtime.getRuntime().availableProcessors();
+	boolean commandList = false;
+	boolean lazyLoad = false;
+	boolean appendOnly = false;
+	int appendFsync = AppendOnlyFile.EVERYSEC;
+	String transport = "xsocket";
+
+	for (String arg : args) {
+		if (arg.equals("--debug"))
+			DEBUG = true;
+
+		else if (arg.equals("--list"))
+			commandList= true;
+		
+		else if (arg.startsWith("--password="))
+			password = arg.substring(11);
+
+		else if (arg.startsWith("--port="))
+			port = Integer.parseInt(arg.substring(7));
+
+		else if (arg.equals("--transport=xsocket")
+			|| arg.equals("--transport=nio")
+			|| arg.equals("--transport=threads"))
+			transport = arg.substring(12);
+
+		else if (arg.equals("--lazy-load"))
+			lazyLoad = true;
+
+		else if (arg.startsWith("--save=")) {
+			// seconds:changes[,seconds:changes...]
+			for (String rule : arg.substring(7).split(",")) {
+				String parts[] = rule.split(":");
+				if (parts.length != 2) {
+					System.out.println("invalid save rule: " + rule);
+					System.exit(1);
+				}
+
+				saveRules.add(new long[] { Long.parseLong(parts[0]),
+					Long.parseLong(parts[1]) });
+			}
+		}
+
+		else if (arg.startsWith("--compression=")
+			&& Arrays.asList(SnapshotFile.CODECS).contains(arg.substring(14)))
+			Tardis.compression = Arrays.asList(SnapshotFile.CODECS).indexOf(arg.substring(14));
+
+		else if (arg.equals("--mmap"))
+			Tardis.mmap = true;
+
+		else if (arg.startsWith("--delta-saves="))
+			Tardis.maxDeltas = Integer.parseInt(arg.substring(14));
+
+		else if (arg.equals("--appendonly"))
+			appendOnly = true;
+
+		else if (arg.startsWith("--appendfsync=")
+			&& Arrays.asList(AppendOnlyFile.POLICIES).contains(arg.substring(14)))
+			appendFsync = Arrays.asList(AppendOnlyFile.POLICIES).indexOf(arg.substring(14));
+
+		else if (arg.startsWith("--io-threads="))
+			ioThreads = Integer.parseInt(arg.substring(13));
+
+		else if (arg.startsWith("--packed-max-entries="))
+			ListPack.MAX_ENTRIES = Integer.parseInt(arg.substring(21));
+
+		else if (arg.startsWith("--packed-max-value="))
+			ListPack.MAX_VALUE = Integer.parseInt(arg.substring(19));
+
+		else {
+			System.out.println("invalid argument: " + arg);
+			System.exit(1);
+		}
+	}
+
+	if (DEBUG)
+		System.out.println("DEBUG enabled");
+
+	if (password != null)
+		System.out.println("AUTHENTICATION required");
+
+	commands.put("",	    new NopCommand());
+    	commands.put("ping",        new PingCommand());
+    	commands.put("quit",        new QuitCommand());
+    	commands.put("shutdown",    new ShutdownCommand());
+	commands.put("save",        new SaveCommand(0));
+	commands.put("bgsave",      new SaveCommand(1));
+	commands.put("bgrewriteaof",new SaveCommand(2));
+	commands.put("lastsave",    new LastSaveCommand());
+	commands.put("auth",        new AuthCommand());
+
+    	commands.put("set",         new SetCommand());
+    	commands.put("get",         new GetCommand());
+    	commands.put("getset",      new GetSetCommand());
+    	commands.put("mget",        new MgetCommand());
+    	commands.put("setnx",       new SetnxCommand());
+    	commands.put("mset",        new MsetCommand());
+    	commands.put("msetnx",      new MsetnxCommand());
+    	commands.put("append",      new AppendCommand());
+    	commands.put("incr",        new IncrCommand());
+    	commands.put("incrby",      new IncrbyCommand());
+    	commands.put("decr",        new DecrCommand());
+    	commands.put("decrby",      new DecrbyCommand());
+    	commands.put("exists",      new ExistsCommand());
+    	commands.put("del",         new DelCommand());
+    	commands.put("type",        new TypeCommand());
+
+    	commands.put("keys",        new KeysCommand());
+    	commands.put("randomkey",   new RandomkeyCommand());
+    	commands.put("rename",      new RenameCommand());
+    	commands.put("renamenx",    new RenamenxCommand());
+    	commands.put("dbsize",      new DbsizeCommand());
+    	commands.put("expire",      new ExpireCommand());
+    	commands.put("expireat",    new ExpireatCommand());
+    	commands.put("pexpireat",   new PexpireatCommand());
+    	commands.put("ttl",         new TtlCommand());
+
+	commands.put("rpush",       new RpushCommand());
+	commands.put("lpush",       new LpushCommand());
+	commands.put("llen",        new LlenCommand());
+	commands.put("lrange",      new LrangeCommand());
+	commands.put("ltrim",       new LtrimCommand());
+	commands.put("lindex",      new LindexCommand());
+	commands.put("lset",        new LsetCommand());
+	commands.put("lrem",        new LremCommand());
+	commands.put("lpop",        new LpopCommand());
+	commands.put("rpop",        new RpopCommand());
+	commands.put("rpoplpush",   new RpoplpushCommand());
+
+	commands.put("sadd",        new SaddCommand());
+	commands.put("srem",        new SremCommand());
+	commands.put("spop",        new SpopCommand());
+	commands.put("smove",       new SmoveCommand());
+        commands.put("scard",       new ScardCommand());
+	commands.put("sismember",   new SismemberCommand());
+	commands.put("smembers",    new SmembersCommand());
+	commands.put("srandmember", new SrandmemberCommand());
+	commands.put("sinter",      new SinterCommand());
+	commands.put("sinterstore", new SinterstoreCommand());
+	commands.put("sunion",      new SunionCommand());
+	commands.put("sunionstore", new SunionstoreCommand());
+	commands.put("sdiff",       new SdiffCommand());
+	commands.put("sdiffstore",  new SdiffstoreCommand());
+
+	commands.put("zadd",        new ZaddCommand());
+	commands.put("zrem",        new ZremCommand());
+	commands.put("zincrby",     new ZincrbyCommand());
+	commands.put("zrank",       new ZrankCommand());
+	commands.put("zrevrank",    new ZrevrankCommand());
+	commands.put("zrange",      new ZrangeCommand());
+	commands.put("zrevrange",   new ZrevrangeCommand());
+	commands.put("zrangebyscore",    new ZrangebyscoreCommand());
+	commands.put("zremrangebyrank",  new Zremrangebyrank());
+	commands.put("zremrangebyscore", new ZremrangebyscoreCommand());
+	commands.put("zcard",       new ZcardCommand());
+	commands.put("zscore",      new ZscoreCommand());
+	commands.put("zcount",      new ZcountCommand());
+
+	commands.put("sort",        new SortCommand());
+
+	commands.put("hdel",        new HdelCommand());
+	commands.put("hexists",     new HexistsCommand());
+	commands.put("hget",        new HgetCommand());
+	commands.put("hincrby",     new HincrbyCommand());
+	commands.put("hlen",        new HlenCommand());
+	commands.put("hset",        new HsetCommand());
+	commands.put("hsetnx",      new HsetnxCommand());
+	commands.put("hgetall",     new HgetallCommand());
+	commands.put("hkeys",       new HkeysCommand());
+	commands.put("hvals",       new HvalsCommand());
+
+	commands.put("select",      new SelectCommand());
+	commands.put("move",        new MoveCommand());
+	commands.put("flushdb",     new FlushdbCommand());
+	commands.put("flushall",    new FlushallCommand());
+
+	commands.put("info",        new InfoCommand());
+	commands.put("debug",       new DebugCommand());
+
+	commands.put("multi",	    new MultiCommand());
+	commands.put("exec",	    new ExecCommand());
+	commands.put("discard",	    new DiscardCommand());
+
+	for (Map.Entry<String, Command> e : commands.entrySet())
+	    register(e.getKey(), e.getValue());
+
+	if (commandList) {
+		System.out.println("Implemented commands:\n");
+
+		Object names[] = commands.keySet().toArray();
+		Arrays.sort(names);
+
+		for (Object name : names)
+			System.out.println(name);
+
+		return;
+	}
+
+	if (appendOnly) {
+	    // the data comes from the append only file, or from the
+	    // snapshot the first time, and then goes to both
+	    try {
+		long start = System.currentTimeMillis();
+		if (appendFile.exists()) {
+		    System.out.println("loading data from " + appendFile);
+		    replay(appendFile);
+		} else {
+		    if (tardisFile.exists()) {
+			System.out.println("loading data from " + tardisFile);
+			Tardis.lastSave = tardisFile.lastModified();
+			Tardis.load(tardisFile);
+		    }
+
+		    Tardis.rewrite(appendFile, null);
+		}
+		System.out.println("data loaded in "
+		    + (System.currentTimeMillis() - start) + " ms");
+
+		Tardis.journal = new AppendOnlyFile(appendFile, appendFsync);
+	    } catch(Exception e) {
+		System.out.println("error loading data: " + e);
+		System.exit(1);
+	    }
+	} else if (tardisFile.exists()) {
+	    System.out.println("loading data from " + tardisFile);
+	    try {
+		Tardis.lastSave = tardisFile.lastModified();
+
+		// with --lazy-load the data is loaded while serving,
+		// the keys not loaded yet are loaded when needed
+		Tardis.open(tardisFile);
+		Thread loader = new Thread("tardis-loader") {
+		    public void run() {
+			long start = System.currentTimeMillis();
+			try {
+			    Tardis.loadAll(Runtime.getRuntime().availableProcessors());
+			    System.out.println("data loaded in "
+				+ (System.currentTimeMillis() - start) + " ms");
+			} catch(Exception e) {
+			    // serving without it, the next save would
+			    // overwrite the snapshot
+			    System.out.println("error loading data: " + e);
+			    System.exit(1);
+			}
+		    }
+		};
+
+		if (lazyLoad) {
+		    loader.setDaemon(true);
+		    loader.start();
+		} else
+		    loader.run();
+	    } catch(Exception e) {
+		System.out.println("error loading data: " + e);
+		System.exit(1);
+	    }
+	}
+
+	// reclaim expired keys even if they are never accessed again
+	cron.scheduleAtFixedRate(new Runnable() {
+	    public void run() {
+		try {
+		    Tardis.expireCycle(Tardis.EXPIRE_BUDGET);
+		} catch(Throwable t) {
+		    t.printStackTrace(System.out);
+		}
+	    }
+	}, Tardis.EXPIRE_PERIOD, Tardis.EXPIRE_PERIOD, TimeUnit.MILLISECONDS);
+
+	// the automatic saves
+	if (!saveRules.isEmpty()) {
+	    cron.scheduleAtFixedRate(new Runnable() {
+		public void run() {
+		    try {
+			long changes = Tardis.changesSinceLastSave();
+			if (nextSave() == 0 && !bgsaving.get() && bgsave())
+			    System.out.println(changes + " changes in "
+				+ (System.currentTimeMillis() - Tardis.lastSave) / 1000
+				+ " seconds, saving");
+		    } catch(Throwable t) {
+			t.printStackTrace(System.out);
+		    }
+		}
+	    }, SAVE_CHECK_PERIOD, SAVE_CHECK_PERIOD, TimeUnit.MILLISECONDS);
+	}
+
+        try {
+	    System.out.println("starting server on port " + port);
+	    if (transport.equals("nio")) {
+		NioServer server = new NioServer(port, ioThreads);
+		srv = server;
+		server.run();
+	    } else if (transport.equals("threads")) {
+		ThreadServer server = new ThreadServer(port);
+		srv = server;
+		server.run();
+	    } else {
+		Server server = new Server(port, new SocketServer());
+		srv = server;
+		server.run();
+	    }
+
+	    AppendOnlyFile log = Tardis.journal;
+	    if (log != null) {
+		Tardis.journal = null;
+		log.close();
+	    }
+
+	    System.out.println("saving data to " + tardisFile);
+	    Tardis.save(tardisFile);
+        } catch(Exception ex) {
+            System.out.println("exception " + ex);
+        }
+    }
+
+    /**
+     * Runs the commands in the append only file. A command cut short at
+     * the end, if the server stopped while writing it, is dropped from
+     * the file
+     */
+    protected static void replay(File f)
+	throws IOException
+    {
+	SocketServer session = new SocketServer();
+	session.authenticated = true;
+
+	// the replies are dropped
+	WritableByteChannel none = new WritableByteChannel() {
+	    public int write(ByteBuffer src) {
+		int n = src.remaining();
+		src.position(src.limit());
+		return n;
+	    }
+
+	    public boolean isOpen() {
+		return true;
+	    }
+
+	    public void close() {
+	    }
+	};
+
+	FileChannel in = FileChannel.open(f.toPath(),
+	    StandardOpenOption.READ, StandardOpenOption.WRITE);
+	try {
+	    ByteBuffer buf = ByteBuffer.allocate(RespParser.BUFFER_SIZE * 4);
+	    long offset = 0;
+
+	    while (in.read(buf) > 0) {
+		buf.flip();
+		offset += buf.remaining();
+		session.parser.append(buf);
+		buf.clear();
+
+		session.process(none);
+		if (session.out.isClosing())
+		    throw new IOException("bad request in " + f
+			+ " before offset " + offset);
+	    }
+
+	    int pending = session.parser.pending();
+	    if (pending > 0) {
+		System.out.println("dropping the last " + pending
+		    + " bytes of " + f + ", not a complete command");
+		in.truncate(offset - pending);
+	    }
+	} finally {
+	    in.close();
+	}
+    }
+
+    protected static void shutdownServer()
+    {
+        try {
+            srv.close();
+        } catch(Exception ex) {
+            System.out.println(ex);
+        }       
+    }
+
+
+    private static void register(String name, Command cmd)
+    {
+	cmd.name = name;
+	cmd.id = names.add(name);
+
+	if (cmd.id >= byId.length)
+	    byId = Arrays.copyOf(byId, names.size());
+	byId[cmd.id] = cmd;
+    }
+
+    protected static void connected(int n)
+    {
+        synchronized(commands) {
+            connected += n;
+	    System.out.printf("%d clients connected\n", connected);
+        }
+    }
+
+    public boolean onConnect(INonBlockingConnection nbc) 
+        throws IOException, BufferUnderflowException, MaxReadSizeExceededException
+    {
+	connected(1);
+        return true;
+    }
+
+    public boolean onDisconnect(INonBlockingConnection nbc) throws IOException
+    {
+	connected(-1);
+	return true;
+    }
+
+    public boolean onData(INonBlockingConnection nbc) 
+	  throws IOException, BufferUnderflowException, 
+	  ClosedChannelException, MaxReadSizeExceededException
+    {
+	try {
+	    if (!parser.read(nbc, nbc.available())) {
+		nbc.close();
+		return true;
+	    }
+
+	    // xSocket queues everything written, the replies are never
+	    // left pending
+	    process(nbc);
+	    if (out.isClosing())
+		nbc.close();
+	} catch(ClosedChannelException e3) {
+	    System.out.println("connection closed");
+	} catch(Exception e4) {
+	    e4.printStackTrace(System.out);
+	}
+	 
+	return true;
+    }
+
+    /**
+     * Runs the requests received so far and writes the replies to the
+     * channel.
+     *
+     * If a non-blocking channel doesn't take all the replies it returns
+     * with the replies pending, and the remaining requests not run yet:
+     * once the channel is writable again the transport must flush the
+     * replies and call process() again. The transport closes the
+     * connection once there are no pending replies and the reply
+     * buffer isClosing().
+     */
+    void process(WritableByteChannel channel)
+	throws IOException
+    {
+	try {
+	    while (!out.isClosing() && parser.parse()) {
+		int id = parser.command(names);
+		Command cmd = id < 0 ? null : byId[id];
+
+		// inline commands send their last argument as a bulk
+		if (cmd != null && cmd.stringArg && parser.isInline()
+		&& parser.count() > 1) {
+		    parser.readInlineBulk();
+		    continue;
+		}
+
+		try {
+		    execute(cmd, parser.args());
+		} catch(UnsupportedOperationException e1) {
+if (DEBUG) { 
+	System.out.println("unsupported operation");
+}
+		    printError(out, e1.getMessage());
+		} finally {
+		    parser.consume();
+		}
+
+		// don't buffer the replies to a long pipeline all at once
+		if (out.isFull() && !flush(channel))
+		    return;
+	    }
+	} catch(UnsupportedOperationException e2) {
+	    // protocol error, the rest of the stream can't be parsed
+	    printError(out, e2.getMessage());
+	    out.close();
+	}
+
+	// all the replies to the requests received together
+	flush(channel);
+    }
+
+    // with appendfsync always, the replies to the writes are sent once
+    // they are on disk. The calling thread waits for it, unless onSync
+    // is set: then the replies are held back, and the transport calls
+    // flush() again once onSync is run
+    boolean flush(WritableByteChannel channel)
+	throws IOException
+    {
+	AppendOnlyFile log = Tardis.journal;
+	if (logged != null && log != null) {
+	    if (onSync == null)
+		log.await(logged);
+	    else if (!log.synced(logged, onSync))
+		return false;
+	}
+	logged = null;
+
+	return out.flush(channel);
+    }
+
+    /**
+     * True while the replies are held back for a sync
+     */
+    boolean isSyncing()
+    {
+	return logged != null;
+    }
+
+    private void execute(Command cmd, Args args)
+	throws IOException
+    {
+	if (DEBUG) {
+	    System.out.println("req: " + parser.command() + " " + args);
+	    System.out.println("cmd: " + parser.command() 
+		    + ", info: " + cmd);
+	}
+
+	if (cmd == null)
+	    printError(out, "unknown command");
+
+	else if (cmd.nArgs != VARARGS && cmd.nArgs != args.length()) {
+	    if (DEBUG) {
+		System.out.println("command: " + cmd.name);
+		System.out.println("args: " + args.length());
+	    }
+
+	    printError(out, "wrong number of arguments for '" 
+		+ cmd.name + "' command");
+	}
+
+	else if (password != null && !authenticated
+	&& (cmd.flags & NOAUTH) == 0)
+	    printError(out, "operation not permitted");
+
+	else if (multi && (cmd.flags & TRANSACTION) == 0) {
+	    // the arguments are views on the read buffer, keep a copy
+	    requests.add(new Request(cmd, args.copy()));
+	    out.write(ReplyBuffer.QUEUED);
+	}
+
+	else
+	    call(cmd, args);
+    }
+
+    // runs the command, and logs it if it's a write
+    private void call(Command cmd, Args args)
+	throws IOException
+    {
+	AppendOnlyFile log = Tardis.journal;
+	if (log == null || (cmd.flags & WRITE) == 0) {
+	    cmd.run(this, args, out);
+	    return;
+	}
+
+	boolean ok = false;
+	logging = log.begin(selected, cmd.name, args);
+	try {
+	    cmd.run(this, args, out);
+	    ok = true;
+	} finally {
+	    if (log.end(logging, ok))
+		logged = logging;
+	    logging = null;
+	}
+    }
+
+    /**
+     * Logs the write being run as the given command instead, for the
+     * ones that wouldn't replay the same (or nothing if it's empty)
+     */
+    protected void journal(Object... argv)
+    {
+	if (logging != null)
+	    logging.rewrite(argv);
+    }
+
+    // the keys and values of a key value pairs argument list (MSET)
+    protected static String[] keys(Args args)
+    {
+	String keys[] = new String[args.length()/2];
+	for (int i=0; i < keys.length; i++)
+	    keys[i] = args.string(2*i);
+	return keys;
+    }
+
+    protected static byte[][] values(Args args)
+    {
+	byte values[][] = new byte[args.length()/2][];
+	for (int i=0; i < values.length; i++)
+	    values[i] = args.bytes(2*i+1);
+	return values;
+    }
+
+    public static void printResult(ReplyBuffer out, Object result)
+    {
+	// string values are written as stored, everything else
+	// is encoded back with the same charset used for keys
+	if (result == null || result instanceof byte[])
+	    out.bulk((byte[]) result);
+	else
+	    out.bulk(Tardis.bytes(result.toString()));
+    }
+
+    public static void printEmpty(ReplyBuffer out)
+    {
+	out.write(ReplyBuffer.EOL);
+    }
+
+    public static void printStatus(ReplyBuffer out)
+    {
+	out.write(ReplyBuffer.OK);
+    }
+
+    public static void printStatus(ReplyBuffer out, String status)
+    {
+	out.status(status);
+    }
+
+    public static void printError(ReplyBuffer out, String error)
+    {
+        System.out.println("error: " + error);
+	out.error(error);
+    }
+
+    public static void printDouble(ReplyBuffer out, double value)
+    {
+	BigDecimal bd = (new BigDecimal(value)).round(MathContext.DECIMAL64);
+	out.write(":" + bd.toString());
+	out.write(ReplyBuffer.EOL);
+    }
+
+    public static void printInteger(ReplyBuffer out, boolean value)
+    {
+	printInteger(out, value ? 1 : 0);
+    }
+
+    public static void printInteger(ReplyBuffer out, long value)
+    {
+	out.integer(value);
+    }
+
+	// this only writes the list header (number of elements in the list)
+    public static void printList(ReplyBuffer out, int n)
+    {
+	out.listHeader(n);
+    }
+
+    public static void printList(ReplyBuffer out, List<?> values)
+    {
+	if (values == null) {
+	    out.write(ReplyBuffer.NILLIST);
+	} else {
+	    out.listHeader(values.size());
+
+	    for (Object v : values)
+		printResult(out, v);
+	}
+    }
+}
@@ -1,23 +1,33 @@
 package org.aromatic.tardis;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 import java.util.regex.*;
 import java.io.*;
 import java.math.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.*;
 
-class Tardis implements Serializable
+class Tardis
 {
-    protected static final long serialVersionUID = -1;
     protected static final int V_MAJOR = 0;
-    protected static final int V_MINOR = 20;
+    protected static final int V_MINOR = 26;
 
     protected static final String ERRDBID = "invalid DB index";
     protected static final String NOKEY = "no such key";
     protected static final String RANGE = "index out of range";
+    protected static final String NOTDOUBLE = "value is not a double";
     protected static final String SYNTAX = "syntax error";
     protected static final String SAMEKEY = "source and destination objects are the same";
     protected static final String WRONGTYPE = "Operation against a key holding the wrong kind of value";
 
+    // keys, members and fields are strings with one char per byte,
+    // string values are stored as the raw bytes sent by the client
+    protected static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
     private static final List<String> EMPTYLIST = new ArrayList<String>(0);
     private static final Random random = 
         new Random(System.currentTimeMillis());
@@ -26,132 +36,1423 @@ class Tardis implements Serializable
     private static final Pattern FLOATPATTERN = Pattern.compile(
         "[+-]?([0-9]+)(\\.[0-9]+)?([Ee][+-]?[0-9]*)?");
 
-    protected static Tardis[] DB = new Tardis[16];
+    // number of lock stripes per DB. It must stay at 64 since the set of
+    // stripes held by a command is tracked as a bit mask in a long
+    private static final int STRIPES = 64;
+    private static final long ALLSTRIPES = -1L;
+
+    // MOVE is the only command locking keys in two DBs, serialize them
+    private static final Object MOVELOCK = new Object();
+
+    // one snapshot at a time, see SNAPSHOTS
+    private static final Object SAVELOCK = new Object();
+
+    // the outcome of the last save, for INFO and LASTSAVE, lastSave
+    // is the time it completed
+    protected static volatile long lastSave = System.currentTimeMillis();
+    protected static volatile long lastSaveDuration = -1;
+    protected static volatile boolean lastSaveOk = true;
+
+    // the DBs being saved, for saveProgress()
+    private static volatile Tardis[] saving = null;
+
+    // the changes of the DBs saved by the last save, see changes()
+    private static volatile long savedChanges = 0;
+
+    // with mmap the snapshot is mapped and its values are decoded as
+    // they are used, see Mapped. It's set before any DB is loaded
+    protected static boolean mmap = false;
+
+    // the codec of the snapshots saved, see SnapshotFile
+    protected static int compression = SnapshotFile.NONE;
+
+    // how many saves write a delta after a full one, 0 to always save
+    // in full. It's set before any DB is created, see DELTAS
+    protected static int maxDeltas = 0;
+
+    // the files of the last snapshot saved or loaded: the base, the id
+    // of the last one and the deltas after the base. Updated under SAVELOCK
+    private static File base = null;
+    private static long lastId = 0;
+    private static volatile int deltas = 0;
+    private static long deltaSize = 0;
+
+    // active expiry runs every EXPIRE_PERIOD ms for up to EXPIRE_BUDGET ms
+    protected static final long EXPIRE_PERIOD = 100;
+    protected static final long EXPIRE_BUDGET = 25;
+
+    protected static volatile Tardis[] DB = new Tardis[16];
+
+    // the append only file, if it's enabled
+    protected static volatile AppendOnlyFile journal = null;
+
+    final Map<String, Object> repository;
+    final Map<String, Long> expiry = new ConcurrentHashMap<String, Long>();
+    final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+    // keys in expiry ordered by deadline
+    private final PriorityQueue<Deadline> deadlines =
+        new PriorityQueue<Deadline>();
+
+    // the snapshot being saved, if any
+    private volatile Snapshot snapshot;
+
+    // the keys changed, by stripe, counted under the stripe lock. The
+    // counters are PADDING longs apart so they don't share cache lines
+    private static final int PADDING = 8;
+    private final long changes[] = new long[STRIPES * PADDING];
+
+    // the keys changed since the last snapshot, null if they are not
+    // tracked, and whether the DB was flushed meanwhile. Both are guarded
+    // by the stripe locks, see DELTAS
+    private Set<String> dirty;
+    private boolean flushed = false;
+
+    // the snapshot being loaded and its sections not loaded yet, by
+    // stripe, see LOADING
+    private volatile Loading loading;
+    private SnapshotFile.Section unloaded[];
+
+    Tardis()
+    {
+        this(16);
+    }
+
+    Tardis(int capacity)
+    {
+        repository = new ConcurrentHashMap<String, Object>(capacity);
+
+        for (int i=0; i < STRIPES; i++)
+            stripes[i] = new ReentrantLock();
+
+        if (maxDeltas > 0)
+            dirty = newDirtySet();
+    }
+
+    /**
+     * Saves the DBs as they are when it's called, while they keep
+     * being updated. The data goes to a temporary file that replaces
+     * f once it's complete, so f is never left half written.
+     *
+     * With maxDeltas set, when f is the base of the last snapshot only
+     * the keys changed since then are saved, to the next delta of f
+     */
+    public static void save(File f) throws Exception {
+        synchronized(SAVELOCK) {
+            long start = System.currentTimeMillis();
+            boolean ok = false;
+
+            // a new base once there are maxDeltas deltas, or they add
+            // up to half its size: loading them costs more than they save
+            Tardis[] dbs = freeze(null, true, f.equals(base)
+                && deltas < maxDeltas && deltaSize < f.length() / 2);
+
+            boolean delta = false;
+            for (Tardis db : dbs)
+                if (db != null && db.snapshot.delta != null) delta = true;
+
+            File target = delta ? deltaFile(f, deltas+1) : f;
+            File tmp = new File(target.getPath() + ".tmp");
+            long id = newId();
+
+            saving = dbs;
+            try {
+                int sections = 0;
+                for (Tardis db : dbs)
+                    if (db != null) sections += STRIPES;
+
+                SnapshotFile.Writer out = new SnapshotFile.Writer(tmp, sections,
+                    id, delta ? lastId : 0, compression);
+                try {
+                    for (int i=0; i < dbs.length; i++)
+                        if (dbs[i] != null)
+                            dbs[i].writeTo(new SectionOutput(out, delta), i);
+
+                    out.finish();
+                } finally {
+                    out.close();
+                }
+
+                Files.move(tmp.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+                ok = true;
+
+                long saved = 0;
+                for (Tardis db : dbs)
+                    if (db != null) saved += db.snapshot.changes;
+                savedChanges = saved;
+
+                if (delta) {
+                    deltas++;
+                    deltaSize += target.length();
+                } else {
+                    // not part of the new base, if they are left behind
+                    // they are ignored when loading
+                    for (int i=1; deltaFile(f, i).delete(); i++)
+                        ;
+
+                    base = f;
+                    deltas = 0;
+                    deltaSize = 0;
+                }
+                lastId = id;
+            } finally {
+                saving = null;
+                for (Tardis db : dbs) {
+                    if (db == null)
+                        continue;
+
+                    // the changes are still to be saved
+                    Snapshot s = db.snapshot;
+                    if (!ok && s.changed != null) {
+                        db.lock(ALLSTRIPES);
+                        try {
+                            db.dirty.addAll(s.changed);
+                            db.flushed |= s.flushed;
+                        } finally {
+                            db.unlockStripes(ALLSTRIPES);
+                        }
+                    }
+                    db.snapshot = null;
+                }
+
+                if (!ok)
+                    tmp.delete();
+
+                long now = System.currentTimeMillis();
+                lastSaveDuration = now - start;
+                lastSaveOk = ok;
+                if (ok)
+                    lastSave = now;
+            }
+        }
+    }
+
+    /**
+     * The percentage of the keys written by the running save,
+     * -1 if there is none
+     */
+    public static double saveProgress()
+    {
+        Tardis[] dbs = saving;
+        if (dbs == null)
+            return -1;
+
+        long total = 0, written = 0;
+        for (Tardis db : dbs) {
+            Snapshot s = db != null ? db.snapshot : null;
+            if (s != null) {
+                total += s.total;
+                written += s.written;
+            }
+        }
+
+        return total == 0 ? 0 : 100.0 * Math.min(written, total) / total;
+    }
+
+    // the keys changed since the DB was created, read without the
+    // locks it's a close count
+    private long changes()
+    {
+        long n = 0;
+        for (int i=0; i < STRIPES; i++)
+            n += changes[i * PADDING];
+        return n;
+    }
+
+    /**
+     * The keys changed since the last save, or since the DBs were loaded
+     */
+    public static long changesSinceLastSave()
+    {
+        long n = 0;
+        for (Tardis db : DB)
+            if (db != null) n += db.changes();
+        return Math.max(n - savedChanges, 0);
+    }
+
+    /**
+     * Replaces the DBs with the ones in the file, its sections are
+     * decoded in parallel
+     */
+    public static void load(File f) throws Exception {
+        open(f);
+        loadAll(Runtime.getRuntime().availableProcessors());
+    }
+
+    // with a mapping the values larger than MAPPED_MIN are left in the
+    // file, see Mapped, and the checksum is not checked since most of
+    // the data is never read
+    private void readFrom(SnapshotFile.Reader in, int stripe,
+        SnapshotFile.Mapping mapping)
+        throws IOException
+    {
+        long expire = -1;
+
+        while (in.hasMore()) {
+            int op = in.readByte();
+
+            if (op == SnapshotFile.EXPIRE)
+                expire = in.readLong();
+            else {
+                String key = in.readString();
+                if (stripe(key) != stripe)
+                    throw new IOException("corrupt snapshot, " + key
+                        + " is in the wrong section");
+
+                if (op == SnapshotFile.DELETE) {
+                    repository.remove(key);
+                    expiry.remove(key);
+                    continue;
+                }
+
+                int length = in.readLength();
+                long at = in.position();
+                if (mapping != null && length > MAPPED_MIN) {
+                    if (op < SnapshotFile.STRING || op > SnapshotFile.HASH)
+                        throw new IOException("corrupt snapshot, unknown type " + op);
+
+                    in.skip(length);
+                    repository.put(key, new Mapped(mapping, op, at, length));
+                } else {
+                    repository.put(key, readValue(op, in));
+                    if (in.position() != at + length)
+                        throw new IOException("corrupt snapshot, " + key
+                            + " has the wrong length");
+                }
+
+                // a delta replaces the expiry it had in the base too
+                if (expire >= 0) {
+                    setExpiry(key, expire);
+                    expire = -1;
+                } else
+                    expiry.remove(key);
+            }
+        }
+
+        if (mapping == null)
+            in.checksum();
+    }
+
+    // writes the snapshot of the DB, a section per stripe
+    private void writeTo(Output out, int index)
+        throws IOException
+    {
+        Snapshot s = snapshot;
+
+        for (int st = 0; st < STRIPES; st++) {
+            out.beginSection(index, st);
+            long keys = 0;
+            long mask = 1L << st;
+
+            for (String key : s.keys.get(st)) {
+                lock(mask);
+                try {
+                    Frozen f = s.preserved.remove(key);
+                    if (f != null) {
+                        if (out.write(key, f.value, f.expire))
+                            keys++;
+                    } else if (out.write(key, repository.get(key), expiry.get(key)))
+                        keys++;
+
+                    s.done.add(key);
+                    s.written++;
+                } finally {
+                    unlock(mask);
+                }
+
+                // the entries are encoded under the lock, but written
+                // out without holding it
+                if (out.isFull())
+                    out.flush();
+            }
+
+            lock(mask);
+            try {
+                s.done.clear();
+                s.stripe = st+1;
+            } finally {
+                unlock(mask);
+            }
+
+            // the keys of the stripe removed before they were reached,
+            // there are no more once the stripe is done
+            for (Iterator<Map.Entry<String, Frozen>> i = s.preserved.entrySet().iterator(); i.hasNext(); ) {
+                Map.Entry<String, Frozen> e = i.next();
+                if (stripe(e.getKey()) != st)
+                    continue;
+
+                if (out.write(e.getKey(), e.getValue().value, e.getValue().expire))
+                    keys++;
+                i.remove();
+
+                if (out.isFull())
+                    out.flush();
+            }
+
+            out.endSection(keys);
+        }
+    }
+
+    // returns false if there is no value to write
+    private static boolean writeEntry(SnapshotFile.Writer out, String key, Object value, Long expire)
+        throws IOException
+    {
+        if (value == null)
+            return false;
+
+        if (expire != null) {
+            out.writeByte(SnapshotFile.EXPIRE);
+            out.writeLong(expire.longValue());
+        }
+
+        // a mapped value is copied as it was encoded
+        if (value instanceof Mapped) {
+            Mapped m = (Mapped) value;
+            byte b[] = m.file.bytes(m.offset, m.length);
+            out.writeByte(m.type);
+            out.writeString(key);
+            out.writeVarint(b.length);
+            out.writeRaw(b, 0, b.length);
+            return true;
+        }
+
+        out.writeByte(typeOf(value));
+        out.writeString(key);
+
+        int mark = out.beginValue();
+        if (value instanceof byte[])
+            out.writeBytes((byte[]) value);
+        else if (value instanceof Counter)
+            out.writeSigned(((Counter) value).value);
+        else if (value instanceof PackedList)
+            writeStrings(out, (PackedList) value);
+        else if (value instanceof PackedSet)
+            writeStrings(out, (PackedSet) value);
+        else if (value instanceof PackedMap) {
+            PackedMap m = (PackedMap) value;
+            out.writeVarint(m.size());
+            for (Map.Entry<String, String> e : m.entrySet()) {
+                out.writeString(e.getKey());
+                out.writeString(e.getValue());
+            }
+        } else
+            ((ZSet) value).writeTo(out);
+        out.endValue(mark);
+
+        return true;
+    }
+
+    private static void writeStrings(SnapshotFile.Writer out, Collection<String> c)
+    {
+        out.writeVarint(c.size());
+        for (String s : c)
+            out.writeString(s);
+    }
+
+    private static int typeOf(Object value)
+        throws IOException
+    {
+        if (value instanceof byte[])
+            return SnapshotFile.STRING;
+        if (value instanceof Counter)
+            return SnapshotFile.COUNTER;
+        if (value instanceof PackedList)
+            return SnapshotFile.LIST;
+        if (value instanceof PackedSet)
+            return SnapshotFile.SET;
+        if (value instanceof PackedMap)
+            return SnapshotFile.HASH;
+        if (value instanceof ZSet)
+            return SnapshotFile.ZSET;
+
+        throw new IOException("can't save a " + value.getClass().getName());
+    }
+
+    private static Object readValue(int type, SnapshotFile.Reader in)
+        throws IOException
+    {
+        switch (type) {
+        case SnapshotFile.STRING:
+            return in.readBytes();
+
+        case SnapshotFile.COUNTER:
+            return new Counter(in.readSigned());
+
+        case SnapshotFile.LIST: {
+            int n = in.readLength();
+            List<String> values = new ArrayList<String>(n);
+            for (int i=0; i < n; i++)
+                values.add(in.readString());
+            return new PackedList(values);
+        }
+
+        case SnapshotFile.SET: {
+            int n = in.readLength();
+            HashSet<String> members = new HashSet<String>(n * 4 / 3 + 1);
+            for (int i=0; i < n; i++)
+                members.add(in.readString());
+            return new PackedSet(members);
+        }
+
+        case SnapshotFile.HASH: {
+            PackedMap map = new PackedMap();
+            for (int n = in.readLength(); n > 0; n--)
+                map.put(in.readString(), in.readString());
+            return map;
+        }
+
+        case SnapshotFile.ZSET:
+            return ZSet.readFrom(in);
+
+        default:
+            throw new IOException("corrupt snapshot, unknown type " + type);
+        }
+    }
+
+    /**
+     * Writes the DBs to f as the commands that rebuild them, as they are
+     * when it's called, while they keep being updated. With the append
+     * only file log running the writes it logs meanwhile are added, and
+     * f replaces it, otherwise f is replaced once it's complete
+     */
+    public static void rewrite(File f, AppendOnlyFile log) throws Exception {
+        synchronized(SAVELOCK) {
+            boolean ok = false;
+
+            File tmp = new File(f.getPath() + ".tmp");
+            FileChannel channel = FileChannel.open(tmp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+            AppendOnlyFile.Rewrite rewrite = log != null ? log.new Rewrite() : null;
+            Tardis[] dbs = null;
+            try {
+                dbs = freeze(rewrite, false, false);
+
+                CommandOutput out = new CommandOutput(channel);
+                for (int i=0; i < dbs.length; i++)
+                    if (dbs[i] != null)
+                        dbs[i].writeTo(out, i);
+
+                out.flush();
+                channel.force(false);
+
+                if (rewrite != null)
+                    rewrite.finish(channel, tmp);
+                else {
+                    channel.close();
+                    Files.move(tmp.toPath(), f.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                }
+                ok = true;
+            } finally {
+                if (dbs != null)
+                    for (Tardis db : dbs)
+                        if (db != null) db.snapshot = null;
+
+                if (!ok) {
+                    if (rewrite != null)
+                        rewrite.abort();
+                    channel.close();
+                    tmp.delete();
+                }
+            }
+        }
+    }
+
+    // the commands that rebuild the key, the expire time is set last
+    // since writing to a volatile key deletes it. An empty list left by
+    // its last pop has no commands, it's dropped
+    private static void writeCommands(ReplyBuffer out, String key, Object value, Long expire)
+        throws IOException
+    {
+        if (value instanceof Mapped)
+            value = ((Mapped) value).decode();
+
+        if (value instanceof byte[])
+            AppendOnlyFile.command(out, "set", key, value);
+        else if (value instanceof Counter)
+            AppendOnlyFile.command(out, "set", key, Long.toString(((Counter) value).value));
+        else if (value instanceof PackedList) {
+            for (String s : (PackedList) value)
+                AppendOnlyFile.command(out, "rpush", key, s);
+        } else if (value instanceof PackedSet) {
+            for (String s : (PackedSet) value)
+                AppendOnlyFile.command(out, "sadd", key, s);
+        } else if (value instanceof PackedMap) {
+            for (Map.Entry<String, String> e : ((PackedMap) value).entrySet())
+                AppendOnlyFile.command(out, "hset", key, e.getKey(), e.getValue());
+        } else if (value instanceof ZSet)
+            ((ZSet) value).writeCommands(out, key);
+        else
+            throw new IOException("can't save a " + value.getClass().getName());
+
+        if (expire != null)
+            AppendOnlyFile.command(out, "pexpireat", key, expire.toString());
+    }
+
+    //
+    // SNAPSHOTS
+    //
+    // A save works on the data as it was when it started, without stopping
+    // the commands for the time it takes. The start is a single point in
+    // time for all DBs, taken with all their stripes locked. From there
+    // the saving thread walks the keys stripe by stripe, and a command
+    // about to change a key it didn't reach yet first preserves the value
+    // as it was (a copy if it's changed in place), so the commands only
+    // pay for the values they change, once per save.
+    //
+    // All of this happens under the key's stripe lock, like the commands.
+    //
+
+    private static class Frozen
+    {
+	final Object value;	// null if the key didn't exist
+	final Long expire;
+
+	Frozen(Object value, Long expire)
+	{
+	    this.value = value;
+	    this.expire = expire;
+	}
+    }
+
+    private static class Snapshot
+    {
+	// the values changed before the saving thread got to them
+	final Map<String, Frozen> preserved = new ConcurrentHashMap<String, Frozen>();
+
+	// the keys at the start, by stripe
+	final List<List<String>> keys = new ArrayList<List<String>>(STRIPES);
+
+	// for a delta the keys it saves, null for a full snapshot
+	Set<String> delta = null;
+
+	// the changes of the DB at the start
+	long changes = 0;
+
+	// for a save, the keys changed since the last one and whether the
+	// DB was flushed meanwhile, they are restored if it fails
+	Set<String> changed = null;
+	boolean flushed = false;
+
+	// the stripe being saved, the ones before it are done
+	volatile int stripe = 0;
+
+	// the keys of the current stripe already saved
+	final Set<String> done = new HashSet<String>();
+
+	// progress, updated by the saving thread only
+	volatile long total = 0;
+	volatile long written = 0;
+    }
+
+    // where a snapshot goes, a section per stripe of each DB
+    private interface Output
+    {
+	void beginSection(int db, int stripe) throws IOException;
+
+	// returns false if there is no value to write
+	boolean write(String key, Object value, Long expire) throws IOException;
+
+	boolean isFull();
+
+	void flush() throws IOException;
+
+	void endSection(long keys) throws IOException;
+    }
+
+    // to a snapshot file. A delta has the keys removed too
+    private static class SectionOutput implements Output
+    {
+	final SnapshotFile.Writer out;
+	final boolean delta;
+
+	SectionOutput(SnapshotFile.Writer out, boolean delta)
+	{
+	    this.out = out;
+	    this.delta = delta;
+	}
+
+	public void beginSection(int db, int stripe) throws IOException {
+	    out.beginSection(db, stripe);
+	}
+
+	public boolean write(String key, Object value, Long expire) throws IOException {
+	    if (value == null && delta) {
+		out.writeByte(SnapshotFile.DELETE);
+		out.writeString(key);
+		return true;
+	    }
+
+	    return writeEntry(out, key, value, expire);
+	}
+
+	public boolean isFull() {
+	    return out.isFull();
+	}
+
+	public void flush() throws IOException {
+	    out.flush();
+	}
+
+	public void endSection(long keys) throws IOException {
+	    out.endSection(keys);
+	}
+    }
+
+    // as commands, to an append only file. The keys expired already
+    // are left out
+    private static class CommandOutput implements Output
+    {
+	final FileChannel channel;
+	final ReplyBuffer out = new ReplyBuffer();
+	final long now = System.currentTimeMillis();
+
+	CommandOutput(FileChannel channel)
+	{
+	    this.channel = channel;
+	}
+
+	public void beginSection(int db, int stripe) {
+	    if (stripe == 0)
+		AppendOnlyFile.command(out, "select", Integer.toString(db));
+	}
+
+	public boolean write(String key, Object value, Long expire) throws IOException {
+	    if (value == null || (expire != null && expire.longValue() <= now))
+		return false;
+
+	    writeCommands(out, key, value, expire);
+	    return true;
+	}
+
+	public boolean isFull() {
+	    return out.isFull();
+	}
+
+	public void flush() throws IOException {
+	    out.flush(channel);
+	}
+
+	public void endSection(long keys) {
+	}
+    }
+
+    // starts a snapshot of all DBs, and the rewrite of the append only
+    // file if any: the writes logged from here on are not in the snapshot.
+    // For a save the changes tracked so far go to the snapshot, a delta
+    // has only those, unless a DB was flushed
+    private static Tardis[] freeze(AppendOnlyFile.Rewrite rewrite,
+        boolean save, boolean delta)
+    {
+	Tardis[] dbs;
+
+	// no DB is created meanwhile, the writes to it would be logged
+	// before the start
+	synchronized(MOVELOCK) {
+	    synchronized(DB) {
+		dbs = DB.clone();
+
+		for (Tardis db : dbs)
+		    if (db != null) db.lock(ALLSTRIPES);
+
+		try {
+		    for (Tardis db : dbs)
+			if (db != null && (db.dirty == null || db.flushed))
+			    delta = false;
+
+		    for (Tardis db : dbs) {
+			if (db == null)
+			    continue;
+
+			Snapshot s = new Snapshot();
+			s.changes = db.changes();
+			if (save && db.dirty != null) {
+			    s.changed = db.dirty;
+			    s.flushed = db.flushed;
+			    if (delta)
+				s.delta = s.changed;
+
+			    db.dirty = newDirtySet();
+			    db.flushed = false;
+			}
+			db.snapshot = s;
+		    }
+
+		    if (rewrite != null)
+			rewrite.start();
+		} finally {
+		    for (Tardis db : dbs)
+			if (db != null) db.unlockStripes(ALLSTRIPES);
+		}
+	    }
+	}
+
+	// keys added from here on are not saved, and the ones removed
+	// are preserved, so the keys seen here are at least all those
+	// the snapshot needs
+	for (Tardis db : dbs) {
+	    if (db == null)
+		continue;
+
+	    Snapshot s = db.snapshot;
+	    for (int i=0; i < STRIPES; i++)
+		s.keys.add(new ArrayList<String>());
+	    for (String key : s.delta != null ? s.delta : db.repository.keySet()) {
+		s.keys.get(stripe(key)).add(key);
+		s.total++;
+	    }
+	}
+
+	return dbs;
+    }
+
+    // preserves the key, in the stripe locked by the caller, before
+    // it's changed. Only writes call it: it counts a change towards
+    // the auto-save and marks the key for the next delta
+    private void touch(String key)
+    {
+	touch(key, true);
+    }
+
+    // copy is false when the value is replaced or removed rather than
+    // changed in place
+    private void touch(String key, boolean copy)
+    {
+	int st = stripe(key);
+	changes[st * PADDING]++;
+
+	Set<String> d = dirty;
+	if (d != null)
+	    d.add(key);
+
+	Snapshot s = snapshot;
+	if (s != null)
+	    preserve(s, key, st, copy);
+
+	// a mapped value is decoded to be changed in place
+	if (copy && mmap) {
+	    Object v = repository.get(key);
+	    if (v instanceof Mapped)
+		repository.put(key, ((Mapped) v).decode());
+	}
+    }
+
+    private void preserve(Snapshot s, String key, int st, boolean copy)
+    {
+	int saving = s.stripe;
+	if (st < saving || (st == saving && s.done.contains(key))
+	|| s.preserved.containsKey(key)
+	|| (s.delta != null && !s.delta.contains(key)))
+	    return;
+
+	Object v = repository.get(key);
+	s.preserved.put(key, new Frozen(copy ? copyOf(v) : v, expiry.get(key)));
+    }
+
+    //
+    // DELTAS
+    //
+    // With maxDeltas set each DB tracks the keys changed since the last
+    // save, as touch() sees them, and a save can write just those, and
+    // the ones removed, to a delta of the base file. A snapshot is loaded
+    // as the base and then its deltas in order, each file has the id of
+    // the one it follows so a delta left from an older base is ignored.
+    //
+    // Flushing a DB drops its keys without touching them, the next save
+    // is a full one.
+    //
+
+    private static Set<String> newDirtySet()
+    {
+	return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+    // the n-th delta of f
+    private static File deltaFile(File f, int n)
+    {
+	return new File(f.getPath() + "." + n);
+    }
+
+    private static long newId()
+    {
+	long id;
+	while ((id = random.nextLong()) == 0)
+	    ;
+	return id;
+    }
+
+    /**
+     * The number of deltas of the last snapshot saved or loaded
+     */
+    public static int deltas()
+    {
+	return deltas;
+    }
+
+    private static Object copyOf(Object v)
+    {
+	if (v instanceof Counter)
+	    return new Counter(((Counter) v).value);
+	if (v instanceof PackedList)
+	    return ((PackedList) v).copy();
+	if (v instanceof PackedSet)
+	    return ((PackedSet) v).copy();
+	if (v instanceof PackedMap)
+	    return ((PackedMap) v).copy();
+	if (v instanceof ZSet)
+	    return ((ZSet) v).copy();
+
+	// strings are never changed in place
+	return v;
+    }
+
+    //
+    // LOADING
+    //
+    // A snapshot is loaded a section, the keys of a stripe of a DB, at
+    // a time. The DBs are replaced as soon as the file is opened, and
+    // a stripe is loaded by whoever locks it first: the loader threads
+    // going through all of them, or a command that needs its keys. So
+    // commands can be served while the rest is still loading.
+    //
+
+    private static class Loading
+    {
+	final List<FileInputStream> files;	// the base and its deltas
+	final Tardis dbs[];
+	final long total;	// bytes
+	final AtomicLong loaded = new AtomicLong();
+	final AtomicInteger remaining = new AtomicInteger();
+
+	Loading(List<FileInputStream> files, Tardis dbs[], long total)
+	{
+	    this.files = files;
+	    this.dbs = dbs;
+	    this.total = total;
+	}
+
+	// a section was loaded, the files are closed after the last one
+	void done(SnapshotFile.Section s)
+	{
+	    loaded.addAndGet(s.length);
+	    if (remaining.decrementAndGet() > 0)
+		return;
+
+	    for (Tardis db : dbs)
+		if (db != null) db.loading = null;
+
+	    synchronized(Loading.class) {
+		if (current == this)
+		    current = null;
+	    }
+
+	    close(files);
+	}
+    }
+
+    private static void close(List<FileInputStream> files)
+    {
+	for (FileInputStream file : files) {
+	    try {
+		file.close();
+	    } catch(IOException e) {
+		System.out.println(e);
+	    }
+	}
+    }
+
+    private static volatile Loading current = null;
+
+    // values up to this size are decoded when loading even with mmap,
+    // a Mapped is not much smaller
+    private static final int MAPPED_MIN = 32;
+
+    // a value left in the mapped snapshot, it's decoded every time it's
+    // read. It's never changed: a write decodes it first, see touch()
+    private static class Mapped
+    {
+	static final String TYPES[] = { "string", "string", "list", "set", "zset", "hash" };
+
+	final SnapshotFile.Mapping file;
+	final int type;		// as encoded in the file
+	final long offset;
+	final int length;
+
+	Mapped(SnapshotFile.Mapping file, int type, long offset, int length)
+	{
+	    this.file = file;
+	    this.type = type;
+	    this.offset = offset;
+	    this.length = length;
+	}
+
+	String type()
+	{
+	    return TYPES[type];
+	}
+
+	Object decode()
+	{
+	    try {
+		return readValue(type, new SnapshotFile.Reader(file.bytes(offset, length)));
+	    } catch(IOException e) {
+		throw new UnsupportedOperationException(
+		    "error loading the snapshot: " + e.getMessage());
+	    }
+	}
+    }
+
+    // the value of the key, a mapped one is decoded but left mapped
+    private Object value(String key)
+    {
+	Object v = repository.get(key);
+	return v instanceof Mapped ? ((Mapped) v).decode() : v;
+    }
+
+    /**
+     * Replaces the DBs with the ones in the file and its deltas, without
+     * loading them. Their keys are loaded by loadAll(), or when they are
+     * first used
+     */
+    public static void open(File f) throws IOException {
+        List<FileInputStream> files = new ArrayList<FileInputStream>();
+        try {
+            FileInputStream file = new FileInputStream(f);
+            files.add(file);
+            SnapshotFile.Index index = map(file, SnapshotFile.readIndex(file.getChannel()));
+            List<SnapshotFile.Section> sections =
+                new ArrayList<SnapshotFile.Section>(index.sections);
+
+            long id = index.id;
+            long size = 0;
+            for (int n = 1; deltaFile(f, n).exists(); n++) {
+                File d = deltaFile(f, n);
+                file = new FileInputStream(d);
+                files.add(file);
+
+                index = map(file, SnapshotFile.readIndex(file.getChannel()));
+                if (index.parent != id) {
+                    System.out.println("ignoring " + d + ", it doesn't follow " + f);
+                    file.close();
+                    files.remove(file);
+                    break;
+                }
+
+                sections.addAll(index.sections);
+                id = index.id;
+                size += d.length();
+            }
+
+            long keys[] = new long[DB.length];
+            long total = 0;
+            for (SnapshotFile.Section s : sections) {
+                if (s.db < 0 || s.db >= keys.length)
+                    throw new IOException(ERRDBID + " " + s.db);
+                if (s.stripe < 0 || s.stripe >= STRIPES)
+                    throw new IOException("corrupt snapshot, invalid stripe " + s.stripe);
+                keys[s.db] += s.keys;
+                total += s.length;
+            }
+
+            Tardis[] dbs = new Tardis[DB.length];
+            for (SnapshotFile.Section s : sections)
+                if (dbs[s.db] == null)
+                    dbs[s.db] = new Tardis((int) Math.min(keys[s.db] * 4 / 3 + 16,
+                        Integer.MAX_VALUE));
+
+            // the sections of a stripe are chained in file order
+            Loading l = new Loading(files, dbs, total);
+            for (SnapshotFile.Section s : sections) {
+                Tardis db = dbs[s.db];
+                if (s.keys == 0)
+                    continue;
+
+                if (db.unloaded == null) {
+                    db.unloaded = new SnapshotFile.Section[STRIPES];
+                    db.loading = l;
+                }
+
+                SnapshotFile.Section last = db.unloaded[s.stripe];
+                if (last == null)
+                    db.unloaded[s.stripe] = s;
+                else {
+                    while (last.next != null)
+                        last = last.next;
+                    last.next = s;
+                }
+                l.remaining.incrementAndGet();
+            }
+
+            if (l.remaining.get() > 0)
+                current = l;
+            else
+                close(files);
+
+            synchronized(SAVELOCK) {
+                savedChanges = 0;
+                base = f;
+                lastId = id;
+                deltas = files.size() - 1;
+                deltaSize = size;
+            }
+
+            DB = dbs;
+        } catch(IOException e) {
+            close(files);
+            throw e;
+        }
+    }
+
+    // with mmap, the values of the sections are left in the file. Not
+    // if it's compressed, they are decoded as usual
+    private static SnapshotFile.Index map(FileInputStream file, SnapshotFile.Index index)
+        throws IOException
+    {
+        if (mmap && index.codec == SnapshotFile.NONE) {
+            SnapshotFile.Mapping mapping = new SnapshotFile.Mapping(file.getChannel());
+            for (SnapshotFile.Section s : index.sections)
+                s.mapping = mapping;
+        }
+
+        return index;
+    }
+
+    /**
+     * Loads the rest of the snapshot opened by open() on the given
+     * number of threads, returns once it's all loaded
+     */
+    public static void loadAll(int threads) throws Exception {
+        Loading l = current;
+        if (l == null)
+            return;
+
+        ExecutorService loaders = Executors.newFixedThreadPool(Math.max(threads, 1));
+        try {
+            List<Future<Object>> results = new ArrayList<Future<Object>>();
+
+            for (final Tardis db : l.dbs) {
+                if (db == null || db.loading == null)
+                    continue;
+
+                for (int st = 0; st < STRIPES; st++) {
+                    final long mask = 1L << st;
+                    results.add(loaders.submit(new Callable<Object>() {
+                        public Object call() {
+                            db.lock(mask);
+                            db.unlock(mask);
+                            return null;
+                        }
+                    }));
+                }
+            }
+
+            for (Future<Object> r : results) {
+                try {
+                    r.get();
+                } catch(ExecutionException e) {
+                    Throwable t = e.getCause();
+                    if (t instanceof Exception)
+                        throw (Exception) t;
+                    throw e;
+                }
+            }
+        } finally {
+            loaders.shutdownNow();
+        }
+    }
+
+    /**
+     * The percentage of the snapshot loaded, -1 if none is loading
+     */
+    public static double loadProgress()
+    {
+        Loading l = current;
+        if (l == null)
+            return -1;
+
+        return l.total == 0 ? 0 : 100.0 * l.loaded.get() / l.total;
+    }
+
+    // loads the sections of the stripes in mask, the caller holds
+    // their locks
+    private void load(long mask)
+    {
+	Loading l = loading;
+	if (l == null)
+	    return;
+
+	for (long m = mask; m != 0; m &= m-1) {
+	    int st = Long.numberOfTrailingZeros(m);
+
+	    // the base first, then the deltas
+	    for (SnapshotFile.Section s; (s = unloaded[st]) != null; ) {
+		try {
+		    readFrom(new SnapshotFile.Reader(s.channel, s), st, s.mapping);
+		} catch(IOException e) {
+		    throw new UnsupportedOperationException(
+			"error loading the snapshot: " + e.getMessage());
+		}
+
+		unloaded[st] = s.next;
+		l.done(s);
+	    }
+	}
+    }
+
+    // drops the sections of the stripes in mask without loading them
+    private void discard(long mask)
+    {
+	Loading l = loading;
+	if (l == null)
+	    return;
+
+	for (long m = mask; m != 0; m &= m-1) {
+	    int st = Long.numberOfTrailingZeros(m);
+	    for (SnapshotFile.Section s; (s = unloaded[st]) != null; ) {
+		unloaded[st] = s.next;
+		l.done(s);
+	    }
+	}
+    }
+
+    // for the commands reading the key space without locking it
+    private void loaded(String key)
+    {
+	if (loading != null)
+	    unlock(lock(key));
+    }
+
+    private void loaded()
+    {
+	if (loading != null) {
+	    lock(ALLSTRIPES);
+	    unlockStripes(ALLSTRIPES);
+	}
+    }
+
+    //
+    // KEY SPACE LOCKING
+    //
+    // Commands lock the stripes their keys hash to, multi-key commands
+    // always take them in ascending stripe order so they can't deadlock.
+    //
+
+    private static int stripe(String key)
+    {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return h & (STRIPES-1);
+    }
+
+    private long lock(String key)
+    {
+        long mask = 1L << stripe(key);
+        lock(mask);
+        return mask;
+    }
+
+    private long lock(String key1, String key2)
+    {
+        long mask = (1L << stripe(key1)) | (1L << stripe(key2));
+        lock(mask);
+        return mask;
+    }
+
+    private long lock(String keys[], int first, int step)
+    {
+        long mask = 0;
+        for (int i=first; i < keys.length; i += step)
+            mask |= 1L << stripe(keys[i]);
+        lock(mask);
+        return mask;
+    }
+
+    private void lock(long mask)
+    {
+        lockStripes(mask);
 
-    Map<String, Object> repository = new HashMap<String, Object>();
-    Map<String, Long> expiry = new HashMap<String, Long>();
+        // a stripe is only used once its keys are loaded
+        if (loading != null) {
+            try {
+                load(mask);
+            } catch(RuntimeException e) {
+                unlock(mask);
+                throw e;
+            }
+        }
+    }
 
-    public static void save(File f) throws Exception {
-        FileOutputStream fos = new FileOutputStream(f);
-        ObjectOutputStream oos = new ObjectOutputStream(fos);
-        oos.writeUTF("tardis");
-        oos.writeInt(V_MAJOR);
-        oos.writeInt(V_MINOR);
-        oos.writeObject(DB);
-        oos.close();
+    private void lockStripes(long mask)
+    {
+        for (long m = mask; m != 0; m &= m-1)
+            stripes[Long.numberOfTrailingZeros(m)].lock();
     }
 
-    public static void load(File f) throws Exception {
-        FileInputStream fis = new FileInputStream(f);
-        ObjectInputStream ois = new ObjectInputStream(fis);
+    private void unlock(long mask)
+    {
+        // a write is logged while its keys are still locked, so the
+        // writes to a key are logged in the order they are applied
+        AppendOnlyFile log = journal;
+        if (log != null)
+            log.applied();
 
-        String magic = ois.readUTF();
-        int major = ois.readInt();
-        int minor = ois.readInt();
+        unlockStripes(mask);
+    }
 
-        DB = (Tardis[]) ois.readObject();
-        ois.close();
+    // without logging the write being run, for the locks taken before it
+    private void unlockStripes(long mask)
+    {
+        for (long m = mask; m != 0; m &= m-1)
+            stripes[Long.numberOfTrailingZeros(m)].unlock();
     }
 
     //
     // COMMANDS OPERATING ON STRING VALUES
     //
 
-    public synchronized void set(String key, String value)
+    public void set(String key, byte[] value)
     {
-	checkExpiry(key, true);
-        repository.put(key, (Object)value);
+	long locked = lock(key);
+	try {
+	    checkExpiry(key, true);
+	    repository.put(key, stringObject(value));
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized String get(String key)
+    public byte[] get(String key)
     {
-	checkExpiry(key);
+	long locked = lock(key);
+	try {
+	    checkExpiry(key);
 
-        Object v = repository.get(key);
-        if (v instanceof String)
-            return (String) v;
+	    Object v = value(key);
+	    if (isString(v))
+		return stringValue(v);
 
-        if (v == null)
-            return null;
+	    if (v == null)
+		return null;
 
-        throw new UnsupportedOperationException(WRONGTYPE);
+	    throw new UnsupportedOperationException(WRONGTYPE);
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized String getset(String key, String value)
+    public byte[] getset(String key, byte[] value)
     {
-	checkExpiry(key, true);
+	long locked = lock(key);
+	try {
+	    checkExpiry(key, true);
 
-        Object v = repository.get(key);
-        if (v instanceof String || v == null)
-            return (String) repository.put(key, value);
+	    Object v = repository.get(key);
+	    if (isString(v) || v == null)
+		return stringValue(repository.put(key, stringObject(value)));
 
-        throw new UnsupportedOperationException(WRONGTYPE);
+	    throw new UnsupportedOperationException(WRONGTYPE);
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized List<String> mget(String keys[])
+    public List<byte[]> mget(String keys[])
     {
-        List<String> result = new LinkedList<String>();
+        List<byte[]> result = new ArrayList<byte[]>(keys.length);
 
-        for (String key : keys) {
-	    checkExpiry(key);
+	long locked = lock(keys, 0, 1);
+	try {
+	    for (String key : keys) {
+		checkExpiry(key);
 
-            Object v = repository.get(key);
-            if (v instanceof String)
-                result.add((String) v);
-            else
-                result.add(null);
-        }
+		Object v = value(key);
+		if (isString(v))
+		    result.add(stringValue(v));
+		else
+		    result.add(null);
+	    }
+	} finally {
+	    unlock(locked);
+	}
 
         return result;
     }
 
-    public synchronized boolean setnx(String key, Object value)
+    public boolean setnx(String key, Object value)
     {
-	checkExpiry(key, true);
+	long locked = lock(key);
+	try {
+	    checkExpiry(key, true);
 
-        if (repository.containsKey(key))
-            return false;
+	    if (repository.containsKey(key))
+		return false;
 
-        repository.put(key, value);
-        return true;
+	    repository.put(key, value instanceof byte[]
+		? stringObject((byte[]) value) : value);
+	    return true;
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized int append(String key, String value)
+    public int append(String key, byte[] value)
     {
-	checkExpiry(key, true);
+	long locked = lock(key);
+	try {
+	    checkExpiry(key, true);
 
-	StringBuilder sb = new StringBuilder();
+	    Object v = repository.get(key);
+	    if (v == null)
+		v = new byte[0];
+	    else if (! isString(v))
+		throw new UnsupportedOperationException(WRONGTYPE);
 
-        Object v = repository.get(key);
-	if (v instanceof String)
-	    sb.append((String)v);
-	else if (v != null)
-            throw new UnsupportedOperationException(WRONGTYPE);
+	    byte[] prev = stringValue(v);
+	    byte[] result = new byte[prev.length + value.length];
+	    System.arraycopy(prev, 0, result, 0, prev.length);
+	    System.arraycopy(value, 0, result, prev.length, value.length);
 
-	sb.append(value);
-	repository.put(key, sb.toString());
-        return sb.length();
+	    repository.put(key, result);
+	    return result.length;
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized void mset(String keyValues[]) {
-        for (int i=0; i < keyValues.length-1; i += 2)
-		checkExpiry(keyValues[i], true);
+    public void mset(String keys[], byte[] values[]) {
+	long locked = lock(keys, 0, 1);
+	try {
+	    for (int i=0; i < keys.length; i++)
+		checkExpiry(keys[i], true);
 
-        for (int i=0; i < keyValues.length-1; i += 2)
-            repository.put(keyValues[i], (Object) keyValues[i+1]);
+	    for (int i=0; i < keys.length; i++)
+		repository.put(keys[i], stringObject(values[i]));
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized boolean msetnx(String keyValues[]) {
-        for (int i=0; i < keyValues.length-1; i += 2)
-		checkExpiry(keyValues[i], true);
+    public boolean msetnx(String keys[], byte[] values[]) {
+	long locked = lock(keys, 0, 1);
+	try {
+	    for (int i=0; i < keys.length; i++)
+		checkExpiry(keys[i], true);
 
-        for (int i=0; i < keyValues.length-1; i += 2)
-            if (repository.get(keyValues[i]) != null) return false;
+	    for (int i=0; i < keys.length; i++)
+		if (repository.get(keys[i]) != null) return false;
 
-        for (int i=0; i < keyValues.length-1; i += 2)
-            repository.put(keyValues[i], (Object) keyValues[i+1]);
+	    for (int i=0; i < keys.length; i++)
+		repository.put(keys[i], stringObject(values[i]));
         
-        return true;
+	    return true;
+	} finally {
+	    unlock(locked);
+	}
     }
 
     public long incr(String key)
@@ -159,19 +1460,30 @@ class Tardis implements Serializable
         return incrby(key, 1);
     }
 
-    public synchronized long incrby(String key, long n)
+    public long incrby(String key, long n)
     {
-        Object value = repository.get(key);
-	long v = 0;
-        if (value != null) {
-            if (! (value instanceof String))
-                throw new UnsupportedOperationException(WRONGTYPE);
+	long locked = lock(key);
+	try {
+	    touch(key);
+	    Object value = repository.get(key);
+
+	    // hot counters are updated in place
+	    if (value instanceof Counter)
+		return ((Counter) value).value += n;
 
-            v = getInteger((String)value);
+	    long v = 0;
+	    if (value != null) {
+		if (! (value instanceof byte[]))
+		    throw new UnsupportedOperationException(WRONGTYPE);
+
+		v = getInteger(string((byte[])value));
+	    }
+	    v += n;
+	    repository.put(key, new Counter(v));
+	    return v;
+	} finally {
+	    unlock(locked);
 	}
-        v += n;
-        repository.put(key, Long.toString(v));
-        return v;
     }
 
     public long decr(String key)
@@ -179,43 +1491,44 @@ class Tardis implements Serializable
         return decrby(key, 1);
     }
 
-    public synchronized long decrby(String key, long n)
+    public long decrby(String key, long n)
     {
-        Object value = repository.get(key);
-	long v = 0;
-        if (value != null) {
-            if (! (value instanceof String))
-                throw new UnsupportedOperationException(WRONGTYPE);
-
-            v = getInteger((String)value);
-        }
-        v -= n;
-        repository.put(key, Long.toString(v));
-        return v;
+        return incrby(key, -n);
     }
 
-    public synchronized boolean exists(String key)
+    public boolean exists(String key)
     {
+        loaded(key);
         return repository.containsKey(key);
     }
 
-    public synchronized int del(String keys[])
+    public int del(String keys[])
     {
         int n = 0;
 
-        for (String key : keys) {
-            if (repository.remove(key) != null) n++;
-        }
+	long locked = lock(keys, 0, 1);
+	try {
+	    for (String key : keys) {
+		touch(key, false);
+		expiry.remove(key);
+		if (repository.remove(key) != null) n++;
+	    }
+	} finally {
+	    unlock(locked);
+	}
 
         return n;
     }
 
-    public synchronized String type(String key)
+    public String type(String key)
     {
+        loaded(key);
         Object v = repository.get(key);
         if (v == null)
             return "none";
-        if (v instanceof String)
+        if (v instanceof Mapped)
+            return ((Mapped) v).type();
+        if (isString(v))
             return "string";
         if (v instanceof List)
             return "list";
@@ -233,8 +1546,9 @@ class Tardis implements Serializable
     // COMMANDS OPERATING ON THE KEY SPACE
     //
     
-    public synchronized String keys(String pattern) 
+    public String keys(String pattern)
     {
+        loaded();
         Set<String> keySet = repository.keySet();
         if (keySet.size() == 0)
             return "";
@@ -287,57 +1601,92 @@ class Tardis implements Serializable
         }
     }
 
-    public synchronized String randomkey()
+    public String randomkey()
     {
+        loaded();
         return getRandom(repository.keySet());
     }
 
-    public synchronized void rename(String oldname, String newname)
+    public void rename(String oldname, String newname)
     {
         if (oldname.equals(newname))
             throw new UnsupportedOperationException(SAMEKEY);
 
-        Object v = repository.remove(oldname);
-        if (v == null)
-            throw new UnsupportedOperationException(NOKEY);
+	long locked = lock(oldname, newname);
+	try {
+	    checkExpiry(oldname);
+
+	    if (!repository.containsKey(oldname))
+		throw new UnsupportedOperationException(NOKEY);
 
-        repository.put(newname, v);
+	    touch(oldname);
+	    touch(newname, false);
+
+	    Object v = repository.remove(oldname);
+	    repository.put(newname, v);
+	    moveExpiry(oldname, newname);
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized boolean renamenx(String oldname, String newname)
+    public boolean renamenx(String oldname, String newname)
     {
         if (oldname.equals(newname))
             throw new UnsupportedOperationException(SAMEKEY);
 
-        if (!repository.containsKey(oldname))
-            throw new UnsupportedOperationException(NOKEY);
+	long locked = lock(oldname, newname);
+	try {
+	    checkExpiry(oldname);
+	    checkExpiry(newname);
 
-        if (repository.containsKey(newname))
-            return false;    
+	    if (!repository.containsKey(oldname))
+		throw new UnsupportedOperationException(NOKEY);
 
-        Object v = repository.remove(oldname);
-        repository.put(newname, v);
-        return true;
+	    if (repository.containsKey(newname))
+		return false;
+
+	    touch(oldname);
+	    touch(newname, false);
+
+	    Object v = repository.remove(oldname);
+	    repository.put(newname, v);
+	    moveExpiry(oldname, newname);
+	    return true;
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized boolean expireat(String key, long time) {
-	checkExpiry(key);
+    public boolean expireat(String key, long time) {
+	long locked = lock(key);
+	try {
+	    checkExpiry(key);
 
-	if (expiry.containsKey(key))
-	    return false;
+	    if (expiry.containsKey(key))
+		return false;
 
-	expiry.put(key, time);
-	return true;
+	    touch(key);
+	    setExpiry(key, time);
+	    return true;
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized long ttl(String key) {
-	checkExpiry(key);
+    public long ttl(String key) {
+	long locked = lock(key);
+	try {
+	    checkExpiry(key);
 
-	Long expire = expiry.get(key);
-	if (expire == null)
-	    return -1;
-	else
-	    return expire.longValue() - System.currentTimeMillis();
+	    Long expire = expiry.get(key);
+	    if (expire == null)
+		return -1;
+	    else
+		return expire.longValue() - System.currentTimeMillis();
+	} finally {
+	    unlock(locked);
+	}
     }
 
     private boolean checkExpiry(String key) 
@@ -351,225 +1700,419 @@ class Tardis implements Serializable
 	&& (expire.longValue() <= System.currentTimeMillis() || remove)) {
 System.out.println(key + " expired at " + (expire.longValue()/1000)
 	+ ", now " + (System.currentTimeMillis()/1000));
+	    touch(key, false);
 	    expiry.remove(key);
 	    repository.remove(key);
 	    return true;
-	} else
-	    return false;
+	}
+
+	// the caller is going to change it
+	if (remove)
+	    touch(key);
+
+	return false;
+    }
+
+    private void setExpiry(String key, long time)
+    {
+	expiry.put(key, time);
+
+	synchronized(deadlines) {
+	    deadlines.add(new Deadline(time, key));
+	}
+    }
+
+    // the key was renamed, the new name takes the expiry of the old one
+    private void moveExpiry(String oldname, String newname)
+    {
+	expiry.remove(newname);
+
+	Long expire = expiry.remove(oldname);
+	if (expire != null)
+	    setExpiry(newname, expire.longValue());
+    }
+
+    //
+    // ACTIVE EXPIRY
+    //
+    // Besides being checked when accessed, keys with an expiry are kept in
+    // a min-heap by deadline and a periodic cycle removes the ones past it,
+    // within a time budget. Heap entries are not removed when a key is
+    // deleted or renamed, they are checked against expiry when popped.
+    //
+
+    private static class Deadline implements Comparable<Deadline>
+    {
+	final long time;
+	final String key;
+
+	Deadline(long time, String key)
+	{
+	    this.time = time;
+	    this.key = key;
+	}
+
+	public int compareTo(Deadline o)
+	{
+	    return time < o.time ? -1 : (time > o.time ? 1 : 0);
+	}
+    }
+
+    /**
+     * Removes expired keys from all DBs, for up to budget ms
+     */
+    public static int expireCycle(long budget)
+    {
+	long now = System.currentTimeMillis();
+	long stop = System.nanoTime() + budget * 1000000L;
+	int expired = 0;
+
+	for (Tardis db : DB) {
+	    if (db != null)
+		expired += db.expireKeys(now, stop);
+
+	    if (System.nanoTime() >= stop)
+		break;
+	}
+
+	return expired;
+    }
+
+    private int expireKeys(long now, long stop)
+    {
+	int expired = 0;
+
+	for (int n = 1; ; n++) {
+	    Deadline d;
+
+	    synchronized(deadlines) {
+		d = deadlines.peek();
+		if (d == null || d.time > now)
+		    break;
+
+		deadlines.poll();
+	    }
+
+	    long locked = lock(d.key);
+	    try {
+		Long expire = expiry.get(d.key);
+		if (expire != null && expire.longValue() == d.time) {
+		    touch(d.key, false);
+		    expiry.remove(d.key);
+		    repository.remove(d.key);
+		    expired++;
+		}
+	    } finally {
+		unlock(locked);
+	    }
+
+	    if ((n & 15) == 0 && System.nanoTime() >= stop)
+		break;
+	}
+
+	// drop the stale entries if they are the majority
+	synchronized(deadlines) {
+	    if (deadlines.size() > 2 * expiry.size() + 1024) {
+		deadlines.clear();
+		for (Map.Entry<String, Long> e : expiry.entrySet())
+		    deadlines.add(new Deadline(e.getValue(), e.getKey()));
+	    }
+	}
+
+	return expired;
+    }
+
+    public int dbsize()
+    {
+        int n = repository.size();
+
+        // the keys still to be loaded, as counted when saved. Those of
+        // a stripe with deltas are only known once they are applied
+        if (loading != null) {
+            for (SnapshotFile.Section s : unloaded) {
+                if (s != null && s.next != null) {
+                    loaded();
+                    return repository.size();
+                }
+                if (s != null) n += s.keys;
+            }
+        }
+
+        return n;
     }
 
-    public synchronized int dbsize()
+    public String encoding(String key)
     {
-        return repository.size();
+	long locked = lock(key);
+	try {
+	    checkExpiry(key);
+
+	    Object v = value(key);
+	    if (v == null)
+		return null;
+	    if (v instanceof byte[])
+		return "raw";
+	    if (v instanceof Counter)
+		return "int";
+	    if (v instanceof PackedList)
+		return ((PackedList) v).encoding();
+	    if (v instanceof PackedSet)
+		return ((PackedSet) v).encoding();
+	    if (v instanceof PackedMap)
+		return ((PackedMap) v).encoding();
+	    if (v instanceof ZSet)
+		return "skiplist";
+
+	    return "unknown";
+	} finally {
+	    unlock(locked);
+	}
     }
 
     //
     // COMMANDS OPERATING ON A LIST
     //
     
-    private ArrayList<String> getList(String key, boolean create) {
-        Object v = repository.get(key);
+    private PackedList getList(String key, boolean create) {
+        Object v = value(key);
         if (v == null) {
             if (create) {
-                v = (Object) new ArrayList<String>();
+                v = (Object) new PackedList();
                 repository.put(key, v);
             }
-        } else if (! (v instanceof List))
+        } else if (! (v instanceof PackedList))
             throw new UnsupportedOperationException(WRONGTYPE);
 
-        return (ArrayList<String>) v;
+        return (PackedList) v;
     }
 
-    public synchronized int rpush(String key, String value)
+    public int rpush(String key, String value)
     {
-	checkExpiry(key, true);
-        ArrayList<String> list = getList(key, true);
-        list.add(value);
-	return list.size();
+	long locked = lock(key);
+	try {
+	    checkExpiry(key, true);
+	    List<String> list = getList(key, true);
+	    list.add(value);
+	    return list.size();
+	} finally {
+	    unlock(locked);
+	}
     }
     
-    public synchronized int lpush(String key, String value)
-    {
-	checkExpiry(key, true);
-        ArrayList<String> list = getList(key, true);
-        list.add(0, value);
-	return list.size();
+    public int lpush(String key, String value)
+    {
+	long locked = lock(key);
+	try {
+	    checkExpiry(key, true);
+	    List<String> list = getList(key, true);
+	    list.add(0, value);
+	    return list.size();
+	} finally {
+	    unlock(locked);
+	}
     }
     
-    public synchronized int llen(String key)
+    public int llen(String key)
     {
-	checkExpiry(key);
-        ArrayList<String> list = getList(key, false);
-        return list==null ? 0 : list.size();
+	long locked = lock(key);
+	try {
+	    checkExpiry(key);
+	    List<String> list = getList(key, false);
+	    return list==null ? 0 : list.size();
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized List<String> lrange(String key, int start, int end)
+    public List<String> lrange(String key, int start, int end)
     {
-	checkExpiry(key);
-        ArrayList<String> list = getList(key, false);
-        if (list == null)
-            return EMPTYLIST;
+	long locked = lock(key);
+	try {
+	    checkExpiry(key);
+	    PackedList list = getList(key, false);
+	    if (list == null)
+		return EMPTYLIST;
 
-        int size = list.size();
+	    int size = list.size();
 
-        if (start < 0) {
-            start += size;
-            if (start < 0)
-                start = 0;
-        }
+	    if (start < 0) {
+		start += size;
+		if (start < 0)
+		    start = 0;
+	    }
 
-        if (end < 0) {
-            end += size;
-            if (end < 0)
-                end = 0;
-        }
+	    if (end < 0) {
+		end += size;
+		if (end < 0)
+		    end = 0;
+	    }
 
-	if (start > end)
-	    return EMPTYLIST;
+	    if (end >= size)
+		end = size-1;
 
-        if (end >= size)
-            end = size-1;
+	    if (start > end)
+		return EMPTYLIST;
 
-        ArrayList<String> result = new ArrayList<String>(list.subList(start, end+1));
-        return result;
+	    return list.range(start, end+1);
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized void ltrim(String key, int start, int end)
+    public void ltrim(String key, int start, int end)
     {
-	checkExpiry(key);
-        ArrayList<String> list = getList(key, false);
-        if (list == null)
-            return;
+	long locked = lock(key);
+	try {
+	    checkExpiry(key);
+	    if (!repository.containsKey(key))
+		return;
 
-        int size = list.size();
+	    // promote a mapped list before reading it, or the trim would
+	    // be applied to a throwaway copy
+	    touch(key);
+	    PackedList list = getList(key, false);
 
-        if (start < 0)
-            start += size;
+	    int size = list.size();
 
-        if (end < 0)
-            end += size;
-        else
-            end++;
+	    if (start < 0) {
+		start += size;
+		if (start < 0)
+		    start = 0;
+	    }
 
-        if (start > end || start >= size) {
-            list.clear();
-            return;
-        }
+	    if (end < 0)
+		end += size;
 
-        while (end < size) {
-            list.remove(end);
-            size--;
-        }
+	    if (start > end || start >= size) {
+		list.clear();
+		return;
+	    }
 
-        for (int i=0; i < start; i++)
-            list.remove(0);
+	    if (end >= size)
+		end = size-1;
+
+	    list.trim(start, end);
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized String lindex(String key, int index)
+    public String lindex(String key, int index)
     {
-	checkExpiry(key);
-        ArrayList<String> list = getList(key, false);
-        if (list == null)
-            return null;
+	long locked = lock(key);
+	try {
+	    checkExpiry(key);
+	    List<String> list = getList(key, false);
+	    if (list == null)
+		return null;
 
-        int size = list.size();
+	    int size = list.size();
 
-        if (index < 0)
-            index += size;
+	    if (index < 0)
+		index += size;
 
-        if (index < 0 || index >= size)
-            return null;
+	    if (index < 0 || index >= size)
+		return null;
 
-        return list.get(index);
+	    return list.get(index);
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized void lset(String key, int index, String value)
+    public void lset(String key, int index, String value)
     {
-	checkExpiry(key, true);
-        ArrayList<String> list = getList(key, false);
-        if (list == null)
-            throw new UnsupportedOperationException(NOKEY);
+	long locked = lock(key);
+	try {
+	    checkExpiry(key, true);
+	    List<String> list = getList(key, false);
+	    if (list == null)
+		throw new UnsupportedOperationException(NOKEY);
 
-        int size = list.size();
+	    int size = list.size();
 
-        if (index < 0)
-            index += size;
+	    if (index < 0)
+		index += size;
 
-        if (index < 0 || index >= size)
-            throw new UnsupportedOperationException(RANGE);
+	    if (index < 0 || index >= size)
+		throw new UnsupportedOperationException(RANGE);
 
-        list.set(index, value);
+	    list.set(index, value);
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized int lrem(String key, int count, String value)
+    public int lrem(String key, int count, String value)
     {
-	checkExpiry(key, true);
-        ArrayList<String> list = getList(key, false);
-        if (list == null || list.isEmpty())
-            return 0;
-
-        boolean reverse = count < 0;
-        if (count < 0)
-            count = -count;
-	else if (count == 0)
-	    count = Integer.MAX_VALUE;
-
-        int ret = 0;
-
-        while (count > 0) {
-            int i;
-
-            if (reverse)
-                i = list.lastIndexOf(value);
-            else
-                i = list.indexOf(value);
-
-            if (i < 0)
-                break;
-
-            list.remove(i);
-            count--;
-            ret++;
-        }
+	long locked = lock(key);
+	try {
+	    checkExpiry(key, true);
+	    PackedList list = getList(key, false);
+	    if (list == null || list.isEmpty())
+		return 0;
 
-        return ret;
+	    boolean reverse = count < 0;
+	    if (count < 0)
+		count = -count;
+	    else if (count == 0)
+		count = Integer.MAX_VALUE;
 
+	    return list.remove(value, count, reverse);
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized String lpop(String key)
+    public String lpop(String key)
     {
-	checkExpiry(key, true);
-        ArrayList<String> list = getList(key, false);
-        if (list == null || list.isEmpty())
-            return null;
+	long locked = lock(key);
+	try {
+	    checkExpiry(key, true);
+	    List<String> list = getList(key, false);
+	    if (list == null || list.isEmpty())
+		return null;
 
-        return list.remove(0);
+	    return list.remove(0);
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized String rpop(String key)
+    public String rpop(String key)
     {
-	checkExpiry(key, true);
-        ArrayList<String> list = getList(key, false);
-        if (list == null || list.isEmpty())
-            return null;
+	long locked = lock(key);
+	try {
+	    checkExpiry(key, true);
+	    List<String> list = getList(key, false);
+	    if (list == null || list.isEmpty())
+		return null;
 
-        return list.remove(list.size()-1);
+	    return list.remove(list.size()-1);
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized String rpoplpush(String src, String dest)
+    public String rpoplpush(String src, String dest)
     {
-	checkExpiry(src, true);
-	checkExpiry(dest, true);
-        ArrayList<String> srcList = getList(src, false);
-        if (srcList == null || srcList.isEmpty())
-            return null;
+	long locked = lock(src, dest);
+	try {
+	    checkExpiry(src, true);
+	    checkExpiry(dest, true);
+	    List<String> srcList = getList(src, false);
+	    if (srcList == null || srcList.isEmpty())
+		return null;
 
-        ArrayList<String> dstList = getList(dest, true);
+	    List<String> dstList = getList(dest, true);
 
-        String v = srcList.remove(srcList.size()-1);
-        dstList.add(0, v);
+	    String v = srcList.remove(srcList.size()-1);
+	    dstList.add(0, v);
 
-        return v;
+	    return v;
+	} finally {
+	    unlock(locked);
+	}
     }
     
     //
@@ -578,10 +2121,10 @@ System.out.println(key + " expired at " + (expire.longValue()/1000)
 
     private Set<String> getSet(String key, boolean create)
     {
-        Object v = repository.get(key);
+        Object v = value(key);
         if (v == null) {
             if (create) {
-                v = (Object) new HashSet<String>();
+                v = (Object) new PackedSet();
                 repository.put(key, v);
             }
         } else if (! (v instanceof Set))
@@ -590,78 +2133,108 @@ System.out.println(key + " expired at " + (expire.longValue()/1000)
         return (Set<String>) v;
     }
 
-    public synchronized boolean sadd(String key, String member)
+    public boolean sadd(String key, String member)
     {
-	checkExpiry(key, true);
-        Set<String> set = getSet(key, true);
+	long locked = lock(key);
+	try {
+	    checkExpiry(key, true);
+	    Set<String> set = getSet(key, true);
 
-        return set.add(member);
+	    return set.add(member);
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized boolean srem(String key, String member)
+    public boolean srem(String key, String member)
     {
-	checkExpiry(key, true);
-        Set<String> set = getSet(key, false);
-        if (set == null)
-            return false;
+	long locked = lock(key);
+	try {
+	    checkExpiry(key, true);
+	    Set<String> set = getSet(key, false);
+	    if (set == null)
+		return false;
 
-        return set.remove(member);
+	    return set.remove(member);
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized boolean smove(String src, String dest, String member)
+    public boolean smove(String src, String dest, String member)
     {
-	checkExpiry(src, true);
-	checkExpiry(dest, true);
-        Set<String> srcSet = getSet(src, false);
-        if (srcSet == null)
-            return false;
+	long locked = lock(src, dest);
+	try {
+	    checkExpiry(src, true);
+	    checkExpiry(dest, true);
+	    Set<String> srcSet = getSet(src, false);
+	    if (srcSet == null)
+		return false;
 
-        Set<String> dstSet = getSet(dest, false); // make sure it's a set
+	    Set<String> dstSet = getSet(dest, false); // make sure it's a set
 
-        if (srcSet.remove(member) == false)
-            return false;
+	    if (srcSet.remove(member) == false)
+		return false;
 
-        if (dstSet == null)
-            dstSet = getSet(dest, true);
+	    if (dstSet == null)
+		dstSet = getSet(dest, true);
 
-        dstSet.add(member);
-        return true;
+	    dstSet.add(member);
+	    return true;
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized int scard(String key)
+    public int scard(String key)
     {
-	checkExpiry(key);
-        Set<String> set = getSet(key, false);
-        if (set == null)
-            return 0;
+	long locked = lock(key);
+	try {
+	    checkExpiry(key);
+	    Set<String> set = getSet(key, false);
+	    if (set == null)
+		return 0;
 
-        return set.size();
+	    return set.size();
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized boolean sismember(String key, String member)
+    public boolean sismember(String key, String member)
     {
-	checkExpiry(key);
-        Set<String> set = getSet(key, false);
-        if (set == null)
-            return false;
+	long locked = lock(key);
+	try {
+	    checkExpiry(key);
+	    Set<String> set = getSet(key, false);
+	    if (set == null)
+		return false;
 
-        return set.contains(member);
+	    return set.contains(member);
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized List<String> sinter(String keys[])
+    public List<String> sinter(String keys[])
     {
         Set<String> result = null;
 
-        for (String key : keys) {
-	    checkExpiry(key);
-            Set<String> set = getSet(key, false);
-            if (set == null)
-                continue;
-            if (result == null)
-                result = new HashSet<String>(set);
-            else
-                result.retainAll(set);
-        }
+	long locked = lock(keys, 0, 1);
+	try {
+	    for (String key : keys) {
+		checkExpiry(key);
+		Set<String> set = getSet(key, false);
+		if (set == null)
+		    continue;
+		if (result == null)
+		    result = new HashSet<String>(set);
+		else
+		    result.retainAll(set);
+	    }
+	} finally {
+	    unlock(locked);
+	}
 
         if (result != null)
             return new ArrayList<String>(result);
@@ -669,49 +2242,59 @@ System.out.println(key + " expired at " + (expire.longValue()/1000)
             return EMPTYLIST;
     }
 
-    public synchronized int sinterstore(String keys[])
+    public int sinterstore(String keys[])
     {
         String resultKey = null;
         Set<String> result = null;
 
-        for (String key : keys) {
-            if (resultKey == null) {
-                resultKey = key;
-	        checkExpiry(key, true);
-                //getSet(resultKey, false); // check if set
-            } else {
-	        checkExpiry(key);
-                Set<String> set = getSet(key, false);
-                if (set == null)
-                    continue;
-                if (result == null)
-                    result = new HashSet<String>(set);
-                else
-                    result.retainAll(set);
-            }
-        }
+	long locked = lock(keys, 0, 1);
+	try {
+	    for (String key : keys) {
+		if (resultKey == null) {
+		    resultKey = key;
+		    checkExpiry(key, true);
+		    //getSet(resultKey, false); // check if set
+		} else {
+		    checkExpiry(key);
+		    Set<String> set = getSet(key, false);
+		    if (set == null)
+			continue;
+		    if (result == null)
+			result = new HashSet<String>(set);
+		    else
+			result.retainAll(set);
+		}
+	    }
 
-        if (result == null)
-            result = new HashSet<String>();
+	    if (result == null)
+		result = new HashSet<String>();
 
-        repository.put(resultKey, result);
-        return result.size();
+	    repository.put(resultKey, new PackedSet((HashSet<String>) result));
+	    return result.size();
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized List<String> sunion(String keys[])
+    public List<String> sunion(String keys[])
     {
         Set<String> result = null;
 
-        for (String key : keys) {
-	    checkExpiry(key);
-            Set<String> set = getSet(key, false);
-            if (set == null)
-                continue;
-            if (result == null)
-                result = new HashSet<String>(set);
-            else
-                result.addAll(set);
-        }
+	long locked = lock(keys, 0, 1);
+	try {
+	    for (String key : keys) {
+		checkExpiry(key);
+		Set<String> set = getSet(key, false);
+		if (set == null)
+		    continue;
+		if (result == null)
+		    result = new HashSet<String>(set);
+		else
+		    result.addAll(set);
+	    }
+	} finally {
+	    unlock(locked);
+	}
 
         if (result != null)
             return new ArrayList<String>(result);
@@ -719,49 +2302,59 @@ System.out.println(key + " expired at " + (expire.longValue()/1000)
             return EMPTYLIST;
     }
 
-    public synchronized int sunionstore(String keys[])
+    public int sunionstore(String keys[])
     {
         String resultKey = null;
         Set<String> result = null;
 
-        for (String key : keys) {
-            if (resultKey == null) {
-                resultKey = key;
-	        checkExpiry(key, true);
-                //getSet(resultKey, false); // check if set
-            } else {
-	        checkExpiry(key);
-                Set<String> set = getSet(key, false);
-                if (set == null)
-                    continue;
-                if (result == null)
-                    result = new HashSet<String>(set);
-                else
-                    result.addAll(set);
-            }
-        }
+	long locked = lock(keys, 0, 1);
+	try {
+	    for (String key : keys) {
+		if (resultKey == null) {
+		    resultKey = key;
+		    checkExpiry(key, true);
+		    //getSet(resultKey, false); // check if set
+		} else {
+		    checkExpiry(key);
+		    Set<String> set = getSet(key, false);
+		    if (set == null)
+			continue;
+		    if (result == null)
+			result = new HashSet<String>(set);
+		    else
+			result.addAll(set);
+		}
+	    }
 
-        if (result == null)
-            result = new HashSet<String>();
+	    if (result == null)
+		result = new HashSet<String>();
 
-        repository.put(resultKey, result);
-        return result.size();
+	    repository.put(resultKey, new PackedSet((HashSet<String>) result));
+	    return result.size();
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized List<String> sdiff(String keys[])
+    public List<String> sdiff(String keys[])
     {
         Set<String> result = null;
 
-        for (String key : keys) {
-	    checkExpiry(key);
-            Set<String> set = getSet(key, false);
-            if (set == null)
-                continue;
-            if (result == null)
-                result = new HashSet<String>(set);
-            else
-                result.removeAll(set);
-        }
+	long locked = lock(keys, 0, 1);
+	try {
+	    for (String key : keys) {
+		checkExpiry(key);
+		Set<String> set = getSet(key, false);
+		if (set == null)
+		    continue;
+		if (result == null)
+		    result = new HashSet<String>(set);
+		else
+		    result.removeAll(set);
+	    }
+	} finally {
+	    unlock(locked);
+	}
 
         if (result != null)
             return new ArrayList<String>(result);
@@ -769,56 +2362,71 @@ System.out.println(key + " expired at " + (expire.longValue()/1000)
             return EMPTYLIST;
     }
 
-    public synchronized int sdiffstore(String keys[])
+    public int sdiffstore(String keys[])
     {
         String resultKey = null;
         Set<String> result = null;
 
-        for (String key : keys) {
-            if (resultKey == null) {
-                resultKey = key;
-	        checkExpiry(key, true);
-                //getSet(resultKey, false); // check if set
-            } else {
-	        checkExpiry(key);
-                Set<String> set = getSet(key, false);
-                if (set == null)
-                    continue;
-                if (result == null)
-                    result = new HashSet<String>(set);
-                else
-                    result.removeAll(set);
-            }
-        }
-
-        if (result == null)
-            result = new HashSet<String>();
+	long locked = lock(keys, 0, 1);
+	try {
+	    for (String key : keys) {
+		if (resultKey == null) {
+		    resultKey = key;
+		    checkExpiry(key, true);
+		    //getSet(resultKey, false); // check if set
+		} else {
+		    checkExpiry(key);
+		    Set<String> set = getSet(key, false);
+		    if (set == null)
+			continue;
+		    if (result == null)
+			result = new HashSet<String>(set);
+		    else
+			result.removeAll(set);
+		}
+	    }
+
+	    if (result == null)
+		result = new HashSet<String>();
 
-        repository.put(resultKey, result);
-        return result.size();
+	    repository.put(resultKey, new PackedSet((HashSet<String>) result));
+	    return result.size();
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized String spop(String key)
+    public String spop(String key)
     {
-	checkExpiry(key, true);
-        Set<String> set = getSet(key, false);
-        if (set == null)
-            return null;
+	long locked = lock(key);
+	try {
+	    checkExpiry(key, true);
+	    Set<String> set = getSet(key, false);
+	    if (set == null)
+		return null;
 
-        String member = getRandom(set);
-        set.remove(member);
-        return member;
+	    String member = getRandom(set);
+	    set.remove(member);
+	    return member;
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized String srandmember(String key)
+    public String srandmember(String key)
     {
-	checkExpiry(key);
-        Set<String> set = getSet(key, false);
-        if (set == null)
-            return null;
+	long locked = lock(key);
+	try {
+	    checkExpiry(key);
+	    Set<String> set = getSet(key, false);
+	    if (set == null)
+		return null;
 
-        String member = getRandom(set);
-        return member;
+	    String member = getRandom(set);
+	    return member;
+	} finally {
+	    unlock(locked);
+	}
     }
 
     //
@@ -827,7 +2435,7 @@ System.out.println(key + " expired at " + (expire.longValue()/1000)
 
     private ZSet getZSet(String key, boolean create)
     {
-        Object v = repository.get(key);
+        Object v = value(key);
         if (v == null) {
             if (create) {
                 v = (Object) new ZSet();
@@ -839,160 +2447,224 @@ System.out.println(key + " expired at " + (expire.longValue()/1000)
         return (ZSet) v;
     }
 
-    public synchronized boolean zadd(String key, String score, String member)
+    public boolean zadd(String key, String score, String member)
     {
-	checkExpiry(key, true);
-        ZSet set = getZSet(key, true);
+	double d = parseScore(score);
 
-        return set.add(score, member, false)==1.0;
+	long locked = lock(key);
+	try {
+	    checkExpiry(key, true);
+	    ZSet set = getZSet(key, true);
+
+	    return set.add(d, score, member);
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized double zincrby(String key, String score, String member)
+    public double zincrby(String key, String score, String member)
     {
-	checkExpiry(key, true);
-        ZSet set = getZSet(key, true);
+	double d = parseScore(score);
 
-        return set.add(score, member, true);
+	long locked = lock(key);
+	try {
+	    checkExpiry(key, true);
+	    ZSet set = getZSet(key, true);
+
+	    return set.incrby(d, member);
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized boolean zrem(String key, String member)
+    public boolean zrem(String key, String member)
     {
-	checkExpiry(key, true);
-        ZSet set = getZSet(key, false);
-        if (set == null)
-            return false;
+	long locked = lock(key);
+	try {
+	    checkExpiry(key, true);
+	    ZSet set = getZSet(key, false);
+	    if (set == null)
+		return false;
 
-        return set.remove(member);
+	    return set.remove(member);
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized List<String> zrange(String key, int start, int end, boolean reverse, boolean withscores)
+    public List<String> zrange(String key, int start, int end, boolean reverse, boolean withscores)
     {
-	checkExpiry(key);
-        ZSet set = getZSet(key, false);
-        if (set == null)
-            return EMPTYLIST;
+	long locked = lock(key);
+	try {
+	    checkExpiry(key);
+	    ZSet set = getZSet(key, false);
+	    if (set == null)
+		return EMPTYLIST;
 
-        int size = set.size();
+	    int size = set.size();
 
-        if (start < 0) {
-            start += size;
-            if (start < 0)
-                start = 0;
-        }
+	    if (start < 0) {
+		start += size;
+		if (start < 0)
+		    start = 0;
+	    }
 
-        if (end < 0) {
-            end += size;
-            if (end < 0)
-                end = 0;
-        }
+	    if (end < 0) {
+		end += size;
+		if (end < 0)
+		    end = 0;
+	    }
 
-	if (start > end)
-	    return EMPTYLIST;
+	    if (start > end)
+		return EMPTYLIST;
 
-        if (end >= size)
-            end = size-1;
+	    if (end >= size)
+		end = size-1;
 
-	return set.range(start, end, reverse, withscores);
+	    return set.range(start, end, reverse, withscores);
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized List<String> zrangebyscore(String key, String min, String max, int offset, int end, boolean withscores)
+    public List<String> zrangebyscore(String key, String min, String max, int offset, int end, boolean withscores)
     {
-	checkExpiry(key);
-        ZSet set = getZSet(key, false);
-        if (set == null)
-            return EMPTYLIST;
+	long locked = lock(key);
+	try {
+	    checkExpiry(key);
+	    ZSet set = getZSet(key, false);
+	    if (set == null)
+		return EMPTYLIST;
 
-	return set.rangebyscore(min, max, offset, end, withscores);
+	    return set.rangebyscore(min, max, offset, end, withscores);
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized int zremrangebyscore(String key, String min, String max)
+    public int zremrangebyscore(String key, String min, String max)
     {
-	checkExpiry(key, true);
-        ZSet set = getZSet(key, false);
-        if (set == null)
-            return 0;
+	long locked = lock(key);
+	try {
+	    checkExpiry(key, true);
+	    ZSet set = getZSet(key, false);
+	    if (set == null)
+		return 0;
 
-	return set.remrangebyscore(min, max);
+	    return set.remrangebyscore(min, max);
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized int zremrangebyrank(String key, int start, int end)
+    public int zremrangebyrank(String key, int start, int end)
     {
-	checkExpiry(key, true);
-        ZSet set = getZSet(key, false);
-        if (set == null)
-            return 0;
+	long locked = lock(key);
+	try {
+	    checkExpiry(key, true);
+	    ZSet set = getZSet(key, false);
+	    if (set == null)
+		return 0;
 
-        int size = set.size();
+	    int size = set.size();
 
-        if (start < 0) {
-            start += size;
-            if (start < 0)
-                start = 0;
-        }
+	    if (start < 0) {
+		start += size;
+		if (start < 0)
+		    start = 0;
+	    }
 
-        if (end < 0) {
-            end += size;
-            if (end < 0)
-                end = 0;
-        }
+	    if (end < 0) {
+		end += size;
+		if (end < 0)
+		    end = 0;
+	    }
 
-	if (start > end)
-	    return 0;
+	    if (start > end)
+		return 0;
 
-        if (end >= size)
-            end = size-1;
+	    if (end >= size)
+		end = size-1;
 
-	return set.remrangebyrank(start, end);
+	    return set.remrangebyrank(start, end);
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized int zcard(String key)
+    public int zcard(String key)
     {
-	checkExpiry(key);
-        ZSet set = getZSet(key, false);
-        if (set == null)
-            return 0;
+	long locked = lock(key);
+	try {
+	    checkExpiry(key);
+	    ZSet set = getZSet(key, false);
+	    if (set == null)
+		return 0;
 
-        return set.size();
+	    return set.size();
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized String zscore(String key, String member)
+    public String zscore(String key, String member)
     {
-	checkExpiry(key);
-        ZSet set = getZSet(key, false);
-        if (set == null)
-            return null;
+	long locked = lock(key);
+	try {
+	    checkExpiry(key);
+	    ZSet set = getZSet(key, false);
+	    if (set == null)
+		return null;
 
-        return set.getScore(member);
+	    return set.getScore(member);
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized int zrank(String key, String member)
+    public int zrank(String key, String member)
     {
-	checkExpiry(key);
-        ZSet set = getZSet(key, false);
-        if (set == null)
-            return -1;
+	long locked = lock(key);
+	try {
+	    checkExpiry(key);
+	    ZSet set = getZSet(key, false);
+	    if (set == null)
+		return -1;
 
-        return set.getRank(member, true);
+	    return set.getRank(member, true);
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized int zrevrank(String key, String member)
+    public int zrevrank(String key, String member)
     {
-	checkExpiry(key);
-        ZSet set = getZSet(key, false);
-        if (set == null)
-            return -1;
+	long locked = lock(key);
+	try {
+	    checkExpiry(key);
+	    ZSet set = getZSet(key, false);
+	    if (set == null)
+		return -1;
 
-        return set.getRank(member, false);
+	    return set.getRank(member, false);
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized int zcount(String key, String min, String max)
+    public int zcount(String key, String min, String max)
     {
-	checkExpiry(key);
-        ZSet set = getZSet(key, false);
-        if (set == null)
-            return 0;
+	long locked = lock(key);
+	try {
+	    checkExpiry(key);
+	    ZSet set = getZSet(key, false);
+	    if (set == null)
+		return 0;
 
-	return set.rangebyscore(min, max, 0, Integer.MAX_VALUE, false).size();
+	    return set.count(min, max);
+	} finally {
+	    unlock(locked);
+	}
     }
 
     //
@@ -1001,10 +2673,10 @@ System.out.println(key + " expired at " + (expire.longValue()/1000)
 
     private Map<String, String> getHash(String key, boolean create)
     {
-        Object v = repository.get(key);
+        Object v = value(key);
         if (v == null) {
             if (create) {
-                v = (Object) new HashMap<String, String>();
+                v = (Object) new PackedMap();
                 repository.put(key, v);
             }
         } else if (! (v instanceof Map))
@@ -1013,172 +2685,245 @@ System.out.println(key + " expired at " + (expire.longValue()/1000)
         return (Map<String, String>) v;
     }
 
-    public synchronized boolean hset(String key, String field, String value)
+    public boolean hset(String key, String field, String value)
     {
-	checkExpiry(key, true);
-	Map<String, String> hash = getHash(key, true);
+	long locked = lock(key);
+	try {
+	    checkExpiry(key, true);
+	    Map<String, String> hash = getHash(key, true);
 
-	return hash.put(field, value) == null;
+	    return hash.put(field, value) == null;
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized boolean hsetnx(String key, String field, String value)
+    public boolean hsetnx(String key, String field, String value)
     {
-	checkExpiry(key, true);
-	Map<String, String> hash = getHash(key, true);
+	long locked = lock(key);
+	try {
+	    checkExpiry(key, true);
+	    Map<String, String> hash = getHash(key, true);
 
-	if (hash.containsKey(field))
-	    return false;
+	    if (hash.containsKey(field))
+		return false;
 
-	return hash.put(field, value) == null;
+	    return hash.put(field, value) == null;
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized long hincrby(String key, String field, long n)
+    public long hincrby(String key, String field, long n)
     {
-	checkExpiry(key, true);
-	Map<String, String> hash = getHash(key, true);
-	long v = 0;
+	long locked = lock(key);
+	try {
+	    checkExpiry(key, true);
+	    Map<String, String> hash = getHash(key, true);
+	    long v = 0;
 
-        String value = hash.get(field);
-        if (value != null)
-            v = getInteger(value);
+	    String value = hash.get(field);
+	    if (value != null)
+		v = getInteger(value);
 	
-        v += n;
-        hash.put(field, Long.toString(v));
-        return v;
+	    v += n;
+	    hash.put(field, Long.toString(v));
+	    return v;
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized boolean hdel(String key, String field)
+    public boolean hdel(String key, String field)
     {
-	checkExpiry(key, true);
-	Map<String, String> hash = getHash(key, false);
+	long locked = lock(key);
+	try {
+	    checkExpiry(key, true);
+	    Map<String, String> hash = getHash(key, false);
 
-	if (hash == null)
+	    if (hash == null)
 		return false;
 
-	return hash.remove(field) != null;
+	    return hash.remove(field) != null;
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized String hget(String key, String field)
+    public String hget(String key, String field)
     {
-	checkExpiry(key, true);
-	Map<String, String> hash = getHash(key, false);
+	long locked = lock(key);
+	try {
+	    checkExpiry(key);
+	    Map<String, String> hash = getHash(key, false);
 
-	if (hash == null)
+	    if (hash == null)
 		return null;
 
-	return hash.get(field);
+	    return hash.get(field);
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized boolean hexists(String key, String field)
+    public boolean hexists(String key, String field)
     {
-	checkExpiry(key, true);
-	Map<String, String> hash = getHash(key, false);
+	long locked = lock(key);
+	try {
+	    checkExpiry(key);
+	    Map<String, String> hash = getHash(key, false);
 
-	if (hash == null)
+	    if (hash == null)
 		return false;
 
-	return hash.containsKey(field);
+	    return hash.containsKey(field);
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized int hlen(String key)
+    public int hlen(String key)
     {
-	checkExpiry(key, true);
-	Map<String, String> hash = getHash(key, false);
+	long locked = lock(key);
+	try {
+	    checkExpiry(key);
+	    Map<String, String> hash = getHash(key, false);
 
-	if (hash == null)
+	    if (hash == null)
 		return 0;
 
-	return hash.size();
+	    return hash.size();
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized List<String> hgetall(String key)
+    public List<String> hgetall(String key)
     {
-	checkExpiry(key, true);
-	Map<String, String> hash = getHash(key, false);
-
 	ArrayList<String> result = new ArrayList<String>();
 
-	if (hash == null)
+	long locked = lock(key);
+	try {
+	    checkExpiry(key);
+	    Map<String, String> hash = getHash(key, false);
+
+	    if (hash == null)
 		return result;
 
-	for (Map.Entry<String, String> e : hash.entrySet()) {
+	    for (Map.Entry<String, String> e : hash.entrySet()) {
 		result.add(e.getKey());
 		result.add(e.getValue());
-	}
+	    }
 
-	return result;
+	    return result;
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized List<String> hkeys(String key)
+    public List<String> hkeys(String key)
     {
-	checkExpiry(key, true);
-	Map<String, String> hash = getHash(key, false);
-
 	ArrayList<String> result = new ArrayList<String>();
 
-	if (hash == null)
+	long locked = lock(key);
+	try {
+	    checkExpiry(key);
+	    Map<String, String> hash = getHash(key, false);
+
+	    if (hash == null)
 		return result;
 
-	result.addAll(hash.keySet());
-	return result;
+	    result.addAll(hash.keySet());
+	    return result;
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized List<String> hvals(String key)
+    public List<String> hvals(String key)
     {
-	checkExpiry(key, true);
-	Map<String, String> hash = getHash(key, false);
-
 	ArrayList<String> result = new ArrayList<String>();
 
-	if (hash == null)
+	long locked = lock(key);
+	try {
+	    checkExpiry(key);
+	    Map<String, String> hash = getHash(key, false);
+
+	    if (hash == null)
 		return result;
 
-	result.addAll(hash.values());
-	return result;
+	    result.addAll(hash.values());
+	    return result;
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized List<String> hmget(String keyFields[])
+    public List<String> hmget(String keyFields[])
     {
 	String key = keyFields[0];
-
-	checkExpiry(key, true);
-	Map<String, String> hash = getHash(key, false);
-
 	ArrayList<String> result = new ArrayList<String>();
 
-	if (hash == null)
+	long locked = lock(key);
+	try {
+	    checkExpiry(key);
+	    Map<String, String> hash = getHash(key, false);
+
+	    if (hash == null)
 		return result;
 
-	for (int i=1; i < keyFields.length; i++)
+	    for (int i=1; i < keyFields.length; i++)
 		result.add(hash.get(keyFields[i]));
 
-	return result;
+	    return result;
+	} finally {
+	    unlock(locked);
+	}
     }
 
-    public synchronized void hmset(String keyFieldValues[])
+    public void hmset(String keyFieldValues[])
     {
 	String key = keyFieldValues[0];
 
-	checkExpiry(key, true);
-	Map<String, String> hash = getHash(key, false);
-
-	ArrayList<String> result = new ArrayList<String>();
+	long locked = lock(key);
+	try {
+	    checkExpiry(key, true);
+	    Map<String, String> hash = getHash(key, false);
 
-	if (hash == null)
+	    if (hash == null)
 		return;
 
-        for (int i=1; i < keyFieldValues.length-1; i += 2)
+	    for (int i=1; i < keyFieldValues.length-1; i += 2)
 		hash.put(keyFieldValues[i], keyFieldValues[i+1]);
+	} finally {
+	    unlock(locked);
+	}
     }
 
     //
     // SORT
     //
 
-    public synchronized List<String> sort(String key, boolean asc, boolean alpha, int start, int count, String pattern_by, List<String> pattern_get, String result)
+    public List<String> sort(String key, boolean asc, boolean alpha, int start, int count, String pattern_by, List<String> pattern_get, String result)
+    {
+	// BY and GET only read string values, that are never modified in place
+	// but counters, so only the sorted key and the destination are locked.
+	// They can read any key though, so those must all be loaded
+	if (pattern_by != null || (pattern_get != null && !pattern_get.isEmpty()))
+	    loaded();
+
+	long locked = result != null ? lock(key, result) : lock(key);
+	try {
+	    return sortLocked(key, asc, alpha, start, count, pattern_by, pattern_get, result);
+	} finally {
+	    unlock(locked);
+	}
+    }
+
+    private List<String> sortLocked(String key, boolean asc, boolean alpha, int start, int count, String pattern_by, List<String> pattern_get, String result)
     {
 	checkExpiry(key);
-        Object v = repository.get(key);
+        Object v = value(key);
         if (v == null)
             throw new UnsupportedOperationException(NOKEY);
 
@@ -1204,15 +2949,17 @@ System.out.println(key + " expired at " + (expire.longValue()/1000)
 	    String sortkey;
 	    if (pattern_by != null) {
 		sortkey = pattern_by.replace("*", member);
-		v = repository.get(sortkey);
-		if (v instanceof String)
-		   sortkey = (String) v;
+		v = value(sortkey);
+		if (isString(v))
+		   sortkey = string(stringValue(v));
                 else
 		   sortkey = "";
 	    } else 
 		sortkey = member;
 		    
-	    list.add(new ScoreObject(sortkey, member));
+	    // parse the sort key once, not on every comparison
+	    double score = alpha ? 0.0 : getDouble(sortkey);
+	    list.add(new ScoreObject(score, sortkey, member));
 	}
 
 	int end = start + count;
@@ -1233,9 +2980,9 @@ System.out.println(key + " expired at " + (expire.longValue()/1000)
 		        ; // return value
 		    else {
 		        String getkey = pget.replace("*", value);
-		        v = repository.get(getkey);
-		        if (v instanceof String)
-		           value = (String) v;
+		        v = value(getkey);
+		        if (isString(v))
+		           value = string(stringValue(v));
 		        else
 		           value = "";
 		    }
@@ -1247,7 +2994,7 @@ System.out.println(key + " expired at " + (expire.longValue()/1000)
         
 	if (result != null) {
 		checkExpiry(result, true);
-        	repository.put(result, (Object)sorted);
+        	repository.put(result, (Object) new PackedList(sorted));
 	}
 
 	return sorted;
@@ -1259,11 +3006,16 @@ System.out.println(key + " expired at " + (expire.longValue()/1000)
 
     public static Tardis select(int index)
     {
-        if (index < 0 || index >= DB.length)
+        Tardis[] dbs = DB;
+        if (index < 0 || index >= dbs.length)
         throw new UnsupportedOperationException(ERRDBID);
 
+        Tardis db = dbs[index];
+        if (db != null)
+            return db;
+
         synchronized(DB) {
-            Tardis db = DB[index];
+            db = DB[index];
         if (db == null)
             db = DB[index] = new Tardis();
 
@@ -1277,25 +3029,59 @@ System.out.println(key + " expired at " + (expire.longValue()/1000)
             if (t != null) t.flushdb();
     }
 
-    public synchronized boolean move(String key, int index)
+    public boolean move(String key, int index)
     {
+        Tardis dst = select(index);
 
-        Object v = repository.get(key);
-        if (v == null)
-        return false;            // source does not exists
+        synchronized(MOVELOCK) {
+            long locked = lock(key);
+            try {
+                checkExpiry(key);
 
-        Tardis dst = select(index);
-        if (dst.setnx(key, v) == false)
-        return false;            // destination already exists
+                Object v = repository.get(key);
+                if (v == null)
+                return false;            // source does not exists
 
-        repository.remove(key);
-        return true;
+                // before dst can change it
+                touch(key);
+
+                if (dst.setnx(key, v) == false)
+                return false;            // destination already exists
+
+                repository.remove(key);
+
+                Long expire = expiry.remove(key);
+                if (expire != null)
+                    dst.expireat(key, expire.longValue());
+                return true;
+            } finally {
+                unlock(locked);
+            }
+        }
     }
 
-    public synchronized void flushdb()
+    public void flushdb()
     {
-        repository.clear();
-	expiry.clear();
+	// what is still to be loaded is dropped instead
+	lockStripes(ALLSTRIPES);
+	try {
+	    discard(ALLSTRIPES);
+	    flushed = dirty != null;
+	    changes[0] += repository.size() + 1;
+
+	    if (snapshot != null)
+		for (String key : repository.keySet())
+		    touch(key, false);
+
+	    repository.clear();
+	    expiry.clear();
+
+	    synchronized(deadlines) {
+		deadlines.clear();
+	    }
+	} finally {
+	    unlock(ALLSTRIPES);
+	}
     }
 
     ///////////////////////////////////////////////////////////////////
@@ -1315,6 +3101,104 @@ System.out.println(key + " expired at " + (expire.longValue()/1000)
         return value;
     }
 
+    protected static String string(byte[] v)
+    {
+        return new String(v, CHARSET);
+    }
+
+    protected static byte[] bytes(String v)
+    {
+        return v.getBytes(CHARSET);
+    }
+
+    //
+    // STRING VALUES
+    //
+    // A string is stored as the byte[] received from the client, unless
+    // it holds a canonical integer. That is kept as a Counter, so that
+    // INCR/DECR can update it in place, and rendered when it's read.
+    //
+
+    static class Counter
+    {
+        long value;
+
+        Counter(long value)
+        {
+            this.value = value;
+        }
+
+        byte[] toBytes()
+        {
+            long v = value;
+            if (v == Long.MIN_VALUE)
+                return bytes(Long.toString(v));
+
+            int len = v < 0 ? 2 : 1;
+            for (long n = Math.abs(v); n >= 10; n /= 10)
+                len++;
+
+            byte result[] = new byte[len];
+            if (v < 0) {
+                result[0] = '-';
+                v = -v;
+            }
+
+            do {
+                result[--len] = (byte) ('0' + v % 10);
+                v /= 10;
+            } while (v != 0);
+
+            return result;
+        }
+    }
+
+    private static boolean isString(Object v)
+    {
+        return v instanceof byte[] || v instanceof Counter;
+    }
+
+    private static byte[] stringValue(Object v)
+    {
+        if (v instanceof Counter)
+            return ((Counter) v).toBytes();
+
+        return (byte[]) v;
+    }
+
+    // the value to store for a string, a Counter if it's a canonical integer
+    private static Object stringObject(byte[] v)
+    {
+        int len = v.length;
+        if (len == 0 || len > 20)
+            return v;
+
+        boolean negative = v[0] == '-';
+        int i = negative ? 1 : 0;
+        if (i == len || (v[i] == '0' && (len > 1)))
+            return v;       // empty, leading zeroes or -0
+
+        long n = 0;
+        for (; i < len; i++) {
+            int d = v[i] - '0';
+            if (d < 0 || d > 9)
+                return v;
+
+            // accumulate negative to accept Long.MIN_VALUE
+            if (n < (Long.MIN_VALUE + d) / 10)
+                return v;   // overflow
+            n = n * 10 - d;
+        }
+
+        if (!negative) {
+            if (n == Long.MIN_VALUE)
+                return v;
+            n = -n;
+        }
+
+        return new Counter(n);
+    }
+
     private static long getInteger(String v)
     {
         Matcher m = INTEGERPATTERN.matcher(v.trim());
@@ -1346,20 +3230,42 @@ System.out.println(key + " expired at " + (expire.longValue()/1000)
             return 0.0;
     }
 
-    private static class ScoreObject implements Serializable
+    // the score of a sorted set member, parsed once when it's added
+    private static double parseScore(String v)
+    {
+	double d = getDouble(v);
+	if (Double.isNaN(d))
+	    throw new UnsupportedOperationException(NOTDOUBLE);
+
+	return d;
+    }
+
+    // the score as returned in replies
+    private static String formatScore(double d)
     {
-        protected static final long serialVersionUID = -1;
+	if (d == Math.rint(d) && Math.abs(d) < 1e15)
+	    return Long.toString((long) d);
+
+	if (Double.isInfinite(d))
+	    return d > 0 ? "inf" : "-inf";
+
+	return Double.toString(d);
+    }
 
-	public String score;
+    private static class ScoreObject
+    {
+	public double score;	// the sort key parsed as a number
+	public String text;	// the sort key
 	public String value;
 
-	ScoreObject(String score, String value) {
+	ScoreObject(double score, String text, String value) {
 		this.score = score;
+		this.text = text;
 		this.value = value;
 	}
 
 	public String toString() {
-		return "{" + this.score + ":" + this.value + "}";
+		return "{" + this.text + ":" + this.value + "}";
 	}
     }
 
@@ -1377,8 +3283,8 @@ System.out.println(key + " expired at " + (expire.longValue()/1000)
         public int compare(ScoreObject o1, ScoreObject o2)
         {
             if (!alpha) {
-                double d1 = getDouble(o1.score);
-                double d2 = getDouble(o2.score);
+                double d1 = o1.score;
+                double d2 = o2.score;
 
                 if (d1 != d2) {
                     double diff = asc ? d1-d2 : d2-d1;
@@ -1388,7 +3294,7 @@ System.out.println(key + " expired at " + (expire.longValue()/1000)
 
             // if alpha or o1/o2 are not numbers
 
-            int result = o1.score.compareTo(o2.score);
+            int result = o1.text.compareTo(o2.text);
             if (asc)
                 return result;
             else
@@ -1401,88 +3307,69 @@ System.out.println(key + " expired at " + (expire.longValue()/1000)
         }
     }
 
-    private static class ZComparator implements Comparator<ScoreObject>, Serializable
-    {
-        protected static final long serialVersionUID = -1;
-
-        public int compare(ScoreObject o1, ScoreObject o2)
-        {
-	    double d1 = getDouble(o1.score);
-	    double d2 = getDouble(o2.score);
-
-	    // compare by score
-	    if (d1 != d2) {
-		double diff = d1-d2;
-		return (diff > 0) ? 1 : -1;
-	    }
-
-	    // if alpha or o1/o2 are not numbers
-	    int result = o1.score.compareTo(o2.score);
-	    if (result != 0)
-		return result;
-
-	    // compare by value
-	    if (o1.value == null)
-		return o2.value == null ? 0 : -1;
-	    else
-	        return o1.value.compareTo(o2.value);
-        }
-
-        public boolean equals(Object o)
-        {
-            return this == (ZComparator) o;
-        }
-    }
-
-    private static class ZSet implements Serializable
+    private static class ZSet
     {
-        protected static final long serialVersionUID = -1;
-
-	private Map<String, ScoreObject> members;
-	private NavigableSet<ScoreObject> scores;
+	private Map<String, ZSkipList.Node> members;
+	private ZSkipList scores;
 
 	public ZSet()
 	{
-	    members = new HashMap<String, ScoreObject>();
-	    scores = new TreeSet<ScoreObject>(new ZComparator());
+	    members = new HashMap<String, ZSkipList.Node>();
+	    scores = new ZSkipList();
 	}
 
-	public synchronized double add(String score, String member, boolean incrby)
+	// returns true if the member was added, false if its score was updated
+	public synchronized boolean add(double score, String text, String member)
 	{
-	    ScoreObject so = members.get(member);
-	    if (so != null) {
-		double result = 0.0;
-
-		if (incrby || !so.score.equals(score)) {
-		    scores.remove(so);
-
-		    if (incrby) {
-			result = getDouble(so.score);
-			result += getDouble(score);
-			score = (new BigDecimal(result))
-			    .round(MathContext.DECIMAL64)
-			    .toString();
-		    }
-
-		    so.score = score;
-		    members.put(member, so);
-		    scores.add(so);
+	    // keep the score as sent only if it would print differently
+	    if (formatScore(score).equals(text))
+		text = null;
+
+	    ZSkipList.Node node = members.get(member);
+	    if (node != null) {
+		if (node.score != score) {
+		    scores.delete(node.score, member);
+		    node = scores.insert(score, member);
+		    members.put(member, node);
 		}
 
-		return result;
+		node.text = text;
+		return false;
+	    }
+
+	    node = scores.insert(score, member);
+	    node.text = text;
+	    members.put(member, node);
+	    return true;
+	}
+
+	public synchronized double incrby(double by, String member)
+	{
+	    ZSkipList.Node node = members.get(member);
+	    if (node == null) {
+		members.put(member, scores.insert(by, member));
+		return by;
 	    }
 
-	    so = new ScoreObject(score, member);
-	    members.put(member, so);
-	    scores.add(so);
-	    return 1.0;
+	    double score = node.score + by;
+	    if (Double.isNaN(score))
+		throw new UnsupportedOperationException(NOTDOUBLE);
+
+	    if (!Double.isInfinite(score))
+		score = (new BigDecimal(score))
+		    .round(MathContext.DECIMAL64)
+		    .doubleValue();
+
+	    scores.delete(node.score, member);
+	    members.put(member, scores.insert(score, member));
+	    return score;
 	}
 
 	public synchronized boolean remove(String member)
 	{
-	    ScoreObject so = members.remove(member);
-	    if (so != null) {
-		scores.remove(so);
+	    ZSkipList.Node node = members.remove(member);
+	    if (node != null) {
+		scores.delete(node.score, member);
 		return true;
 	    }
 
@@ -1491,143 +3378,137 @@ System.out.println(key + " expired at " + (expire.longValue()/1000)
 
 	public synchronized List<String> range(int start, int end, boolean reverse, boolean withscores) {
 	    ArrayList<String> list = new ArrayList<String>();
-	    Iterator<ScoreObject> iter = reverse
-		? scores.descendingIterator() : scores.iterator();
+	    ZSkipList.Node node = scores.byRank(reverse ? size()-1-start : start);
 
-	    for (int i=0; i <= end && iter.hasNext(); i++) {
-		ScoreObject so = iter.next();
-		if (i < start)
-		    continue;
-
-		list.add(so.value);
+	    for (int i=start; i <= end && node != null; i++) {
+		list.add(node.member);
 
 		if (withscores)
-		    list.add(so.score);
+		    list.add(score(node));
+
+		node = reverse ? node.backward : node.next();
 	    }
 
 	    return list;
 	}
 
-	private static String S_MAX = 
-		(new Character(Character.MAX_VALUE)).toString();
-
 	public synchronized List<String> rangebyscore(String min, String max, int offset, int count, boolean withscores) {
 	    ArrayList<String> list = new ArrayList<String>();
-	    if (scores.isEmpty())
-		return list;
-
-	    ScoreObject from;
-	    boolean higher = false;
+	    ZSkipList.Range range = range(min, max);
 
-	    if (min.startsWith("(")) // open
-	        from = scores.higher(new ScoreObject(min.substring(1), S_MAX));
-            else
-	        from = scores.ceiling(new ScoreObject(min, ""));
-	    if (from == null)
+	    ZSkipList.Node node = scores.firstInRange(range);
+	    if (node == null || offset < 0)
 		return list;
 
-	    ScoreObject to;
-	    if (max.startsWith("(")) // open
-		to = scores.higher(new ScoreObject(max.substring(1), ""));
-	    else
-		to = scores.higher(new ScoreObject(max + "\0", null));
-
-	    SortedSet<ScoreObject> subset = to != null 
-		? scores.subSet(from, to) : scores.tailSet(from);
-
-	    Iterator<ScoreObject> iter = subset.iterator();
-
-	    for (int i=0; i < offset+count && iter.hasNext(); i++) {
-		ScoreObject so = iter.next();
-		if (i < offset)
-			continue;
+	    // skip to the offset by rank rather than walking to it
+	    if (offset > 0)
+		node = scores.byRank(scores.rank(node.score, node.member) + offset);
 
-		list.add(so.value);
+	    for (int i=0; i < count && node != null && range.lteMax(node.score); i++) {
+		list.add(node.member);
 
 		if (withscores)
-		    list.add(so.score);
+		    list.add(score(node));
+
+		node = node.next();
 	    }
 
 	    return list;
 	}
 
+	public synchronized int count(String min, String max) {
+	    return scores.count(range(min, max));
+	}
+
 	public synchronized int remrangebyscore(String min, String max) {
-	    if (scores.isEmpty())
-		return 0;
+	    return scores.deleteRange(range(min, max), members);
+	}
 
-	    ScoreObject from = scores.ceiling(new ScoreObject(min, ""));
-	    if (from == null)
-		return 0;
+	public synchronized int remrangebyrank(int start, int end) {
+	    return scores.deleteRangeByRank(start, end, members);
+	}
 
-	    ScoreObject to = scores.higher(new ScoreObject(max + "\0", null));
+	public synchronized int size() {
+	    return members.size();
+	}
 
-	    SortedSet<ScoreObject> subset = to != null 
-		? scores.subSet(from, to) : scores.tailSet(from);
+	public synchronized String getScore(String member) {
+	    ZSkipList.Node node = members.get(member);
+	    return node != null ? score(node) : null;
+	}
 
-	    Iterator<ScoreObject> iter = subset.iterator();
-	    int count = 0;
+	public synchronized int getRank(String member, boolean fwd) {
+	    ZSkipList.Node node = members.get(member);
+	    if (node == null)
+	        return -1;
 
-	    while (iter.hasNext()) {
-		ScoreObject so = iter.next();
-		iter.remove();
-		members.remove(so.value);
-		count++;
-	    }
+	    int rank = scores.rank(node.score, member);
+	    return fwd ? rank : size()-1-rank;
+	}
 
-	    return count;
+	public synchronized Collection<String> members() {
+	    return members.keySet();
 	}
 
-	public synchronized int remrangebyrank(int start, int end) {
-	    if (scores.isEmpty())
-		return 0;
+	public synchronized ZSet copy() {
+	    ZSet c = new ZSet();
+	    for (ZSkipList.Node node = scores.first(); node != null; node = node.next()) {
+		ZSkipList.Node n = c.scores.insert(node.score, node.member);
+		n.text = node.text;
+		c.members.put(node.member, n);
+	    }
+	    return c;
+	}
+
+	// the score as returned in replies
+	private static String score(ZSkipList.Node node) {
+	    return node.text != null ? node.text : formatScore(node.score);
+	}
 
-	    Iterator<ScoreObject> iter = scores.iterator();
-	    int i = 0;
-	    int count = 0;
+	// min and max are exclusive if prefixed by "("
+	private static ZSkipList.Range range(String min, String max) {
+	    boolean minex = min.startsWith("(");
+	    boolean maxex = max.startsWith("(");
 
-		// could be optimized a little
-		// if the range is closer to the set's tail
-		// by using a descendingIterator and reverting start&end
-	    while (iter.hasNext()) {
-		ScoreObject so = iter.next();
+	    return new ZSkipList.Range(
+		getDouble(minex ? min.substring(1) : min), minex,
+		getDouble(maxex ? max.substring(1) : max), maxex);
+	}
 
-		if (i >= start) {
-		  iter.remove();
-		  members.remove(so.value);
-		  count++;
-		}
+	// the members in score order, see SnapshotFile
+	public synchronized void writeTo(SnapshotFile.Writer out) {
+	    out.writeVarint(scores.size());
 
-		i++;
+	    for (ZSkipList.Node node = scores.first(); node != null; node = node.next()) {
+		out.writeString(node.member);
+		out.writeDouble(node.score);
 
-		if (i > end)
-		  break;
+		// the text of a score is never empty
+		out.writeString(node.text != null ? node.text : "");
 	    }
-
-	    return count;
 	}
 
-	public synchronized int size() {
-	    return members.size();
+	// a ZADD per member, see AppendOnlyFile
+	public synchronized void writeCommands(ReplyBuffer out, String key) {
+	    for (ZSkipList.Node node = scores.first(); node != null; node = node.next())
+		AppendOnlyFile.command(out, "zadd", key, score(node), node.member);
 	}
 
-	public synchronized String getScore(String member) {
-	    ScoreObject so = members.get(member);
-	    return so != null ? so.score : null;
-	}
+	public static ZSet readFrom(SnapshotFile.Reader in)
+	    throws IOException
+	{
+	    ZSet z = new ZSet();
 
-	public synchronized int getRank(String member, boolean fwd) {
-	    ScoreObject so = members.get(member);
-	    if (so == null)
-	        return -1;
+	    for (int n = in.readLength(); n > 0; n--) {
+		String member = in.readString();
+		ZSkipList.Node node = z.scores.insert(in.readDouble(), member);
 
-	    if (fwd)
-		    return scores.headSet(so).size();
-	    else
-		    return scores.tailSet(so).size()-1;
-	}
+		String text = in.readString();
+		node.text = text.length() > 0 ? text : null;
+		z.members.put(member, node);
+	    }
 
-	public synchronized Collection<String> members() {
-	    return members.keySet();
+	    return z;
 	}
     }
 }
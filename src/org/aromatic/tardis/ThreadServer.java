@@ -0,0 +1,160 @@
+package org.aromatic.tardis;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.*;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A transport serving each connection on its own thread, with plain
+ * blocking reads and writes.
+ *
+ * The threads are virtual threads when the runtime has them (Java 21),
+ * so a connection waiting for its next request only takes its buffers
+ * and a small stack. Older runtimes get platform threads with a small
+ * stack size instead.
+ */
+class ThreadServer implements Runnable, Closeable
+{
+    // the initial request and reply buffers of a connection,
+    // they grow as needed
+    static final int BUFFER_SIZE = 1024;
+
+    // the stack size of platform threads
+    static final long STACK_SIZE = 256*1024;
+
+    private final int port;
+    private ServerSocketChannel server;
+    private volatile boolean running = true;
+
+    ThreadServer(int port)
+    {
+	this.port = port;
+    }
+
+    public void run()
+    {
+	ThreadFactory threads = virtualThreads();
+	if (threads == null)
+	    threads = platformThreads();
+
+	try {
+	    server = ServerSocketChannel.open();
+	    server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+	    server.bind(new InetSocketAddress(port), 1024);
+
+	    System.out.println("listening on port " + port + " with "
+		+ (threads instanceof PlatformThreads ? "platform" : "virtual")
+		+ " threads");
+
+	    // on exit stop serving, and wait for the caller to finish
+	    // up (the data is saved once run() returns)
+	    final Thread runner = Thread.currentThread();
+	    Runtime.getRuntime().addShutdownHook(new Thread() {
+		public void run() {
+		    ThreadServer.this.close();
+		    try {
+			runner.join(60000);
+		    } catch(InterruptedException e) {
+		    }
+		}
+	    });
+
+	    while (running) {
+		SocketChannel channel = server.accept();
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+		threads.newThread(new Connection(channel)).start();
+	    }
+	} catch(ClosedChannelException e) {
+	    // close() was called
+	} catch(IOException e) {
+	    System.out.println("exception " + e);
+	} finally {
+	    close();
+	}
+    }
+
+    public void close()
+    {
+	running = false;
+
+	try {
+	    if (server != null)
+		server.close();
+	} catch(IOException e) {
+	    System.out.println(e);
+	}
+    }
+
+    private static class Connection implements Runnable
+    {
+	final SocketChannel channel;
+
+	Connection(SocketChannel channel)
+	{
+	    this.channel = channel;
+	}
+
+	public void run()
+	{
+	    SocketServer session = new SocketServer(BUFFER_SIZE, BUFFER_SIZE);
+	    SocketServer.connected(1);
+
+	    try {
+		while (session.parser.read(channel)) {
+		    session.process(channel);
+		    if (session.out.isClosing())
+			break;
+		}
+	    } catch(IOException e) {
+		// the connection was closed or reset
+	    } catch(Exception e) {
+		e.printStackTrace(System.out);
+	    } finally {
+		try {
+		    channel.close();
+		} catch(IOException e) {
+		    System.out.println(e);
+		}
+
+		SocketServer.connected(-1);
+	    }
+	}
+    }
+
+    // Thread.ofVirtual().name("tardis-conn-", 0).factory(), looked up
+    // by reflection to still build and run on older runtimes
+    static ThreadFactory virtualThreads()
+    {
+	try {
+	    Class<?> builder = Class.forName("java.lang.Thread$Builder");
+
+	    Object b = Thread.class.getMethod("ofVirtual").invoke(null);
+	    b = builder.getMethod("name", String.class, long.class)
+		.invoke(b, "tardis-conn-", 0L);
+	    return (ThreadFactory) builder.getMethod("factory").invoke(b);
+	} catch(Exception e) {
+	    // not available, or a preview feature not enabled
+	    return null;
+	}
+    }
+
+    static ThreadFactory platformThreads()
+    {
+	return new PlatformThreads();
+    }
+
+    private static class PlatformThreads implements ThreadFactory
+    {
+	private int count = 0;
+
+	public synchronized Thread newThread(Runnable r)
+	{
+	    Thread t = new Thread(null, r, "tardis-conn-" + count++, STACK_SIZE);
+	    t.setDaemon(true);
+	    return t;
+	}
+    }
+}
@@ -0,0 +1,363 @@
+package org.aromatic.tardis;
+
+import java.util.*;
+
+/**
+ * The ordered index of a sorted set, a skiplist sorted by score and member.
+ *
+ * Every forward link keeps the number of nodes it skips (its span), so
+ * the rank of a member, the member at a given rank and the number of
+ * members in a score range are all found in O(log n), walking down
+ * the levels as for any other lookup.
+ */
+class ZSkipList
+{
+    static final int MAXLEVEL = 32;
+
+    static class Node
+    {
+	final double score;
+	final String member;
+	String text;	// the score as sent, see Tardis.ZSet
+
+	Node backward;
+	final Node next[];
+	final int span[];
+
+	Node(double score, String member, int level)
+	{
+	    this.score = score;
+	    this.member = member;
+	    this.next = new Node[level];
+	    this.span = new int[level];
+	}
+
+	Node next()
+	{
+	    return next[0];
+	}
+    }
+
+    /**
+     * A score range, min and max can be exclusive
+     */
+    static class Range
+    {
+	final double min, max;
+	final boolean minex, maxex;
+
+	Range(double min, boolean minex, double max, boolean maxex)
+	{
+	    this.min = min;
+	    this.minex = minex;
+	    this.max = max;
+	    this.maxex = maxex;
+	}
+
+	boolean isEmpty()
+	{
+	    return min > max || (min == max && (minex || maxex));
+	}
+
+	boolean gteMin(double v)
+	{
+	    return minex ? v > min : v >= min;
+	}
+
+	boolean lteMax(double v)
+	{
+	    return maxex ? v < max : v <= max;
+	}
+    }
+
+    private final Node head = new Node(0, null, MAXLEVEL);
+    private Node tail = null;
+    private int length = 0;
+    private int level = 1;
+    private int seed = 0x2545F491;
+
+    public int size()
+    {
+	return length;
+    }
+
+    public Node first()
+    {
+	return head.next[0];
+    }
+
+    public Node last()
+    {
+	return tail;
+    }
+
+    public Node insert(double score, String member)
+    {
+	Node update[] = new Node[MAXLEVEL];
+	int rank[] = new int[MAXLEVEL];
+	Node x = head;
+
+	for (int i = level-1; i >= 0; i--) {
+	    rank[i] = i == level-1 ? 0 : rank[i+1];
+	    while (x.next[i] != null && before(x.next[i], score, member)) {
+		rank[i] += x.span[i];
+		x = x.next[i];
+	    }
+	    update[i] = x;
+	}
+
+	int lvl = randomLevel();
+	if (lvl > level) {
+	    for (int i = level; i < lvl; i++) {
+		rank[i] = 0;
+		update[i] = head;
+		head.span[i] = length;
+	    }
+	    level = lvl;
+	}
+
+	x = new Node(score, member, lvl);
+	for (int i = 0; i < lvl; i++) {
+	    x.next[i] = update[i].next[i];
+	    update[i].next[i] = x;
+
+	    x.span[i] = update[i].span[i] - (rank[0] - rank[i]);
+	    update[i].span[i] = (rank[0] - rank[i]) + 1;
+	}
+
+	// the levels above the new node skip one more node
+	for (int i = lvl; i < level; i++)
+	    update[i].span[i]++;
+
+	x.backward = update[0] == head ? null : update[0];
+	if (x.next[0] != null)
+	    x.next[0].backward = x;
+	else
+	    tail = x;
+
+	length++;
+	return x;
+    }
+
+    public boolean delete(double score, String member)
+    {
+	Node update[] = new Node[MAXLEVEL];
+	Node x = head;
+
+	for (int i = level-1; i >= 0; i--) {
+	    while (x.next[i] != null && before(x.next[i], score, member))
+		x = x.next[i];
+	    update[i] = x;
+	}
+
+	x = x.next[0];
+	if (x != null && x.score == score && x.member.equals(member)) {
+	    deleteNode(x, update);
+	    return true;
+	}
+
+	return false;
+    }
+
+    /**
+     * Returns the 0-based rank of the member, or -1 if not found
+     */
+    public int rank(double score, String member)
+    {
+	int rank = 0;
+	Node x = head;
+
+	for (int i = level-1; i >= 0; i--) {
+	    while (x.next[i] != null && (before(x.next[i], score, member)
+	    || (x.next[i].score == score && x.next[i].member.equals(member)))) {
+		rank += x.span[i];
+		x = x.next[i];
+	    }
+
+	    if (x != head && x.member.equals(member))
+		return rank - 1;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Returns the node at the 0-based rank, or null if out of range
+     */
+    public Node byRank(int rank)
+    {
+	int traversed = 0;
+	Node x = head;
+
+	rank++;
+	for (int i = level-1; i >= 0; i--) {
+	    while (x.next[i] != null && traversed + x.span[i] <= rank) {
+		traversed += x.span[i];
+		x = x.next[i];
+	    }
+
+	    if (traversed == rank)
+		return x;
+	}
+
+	return null;
+    }
+
+    /**
+     * Returns the first node with a score in range, or null if none
+     */
+    public Node firstInRange(Range range)
+    {
+	if (range.isEmpty() || tail == null
+	|| !range.gteMin(tail.score) || !range.lteMax(head.next[0].score))
+	    return null;
+
+	Node x = head;
+	for (int i = level-1; i >= 0; i--)
+	    while (x.next[i] != null && !range.gteMin(x.next[i].score))
+		x = x.next[i];
+
+	x = x.next[0];
+	return range.lteMax(x.score) ? x : null;
+    }
+
+    /**
+     * Returns the last node with a score in range, or null if none
+     */
+    public Node lastInRange(Range range)
+    {
+	if (range.isEmpty() || tail == null
+	|| !range.gteMin(tail.score) || !range.lteMax(head.next[0].score))
+	    return null;
+
+	Node x = head;
+	for (int i = level-1; i >= 0; i--)
+	    while (x.next[i] != null && range.lteMax(x.next[i].score))
+		x = x.next[i];
+
+	return range.gteMin(x.score) ? x : null;
+    }
+
+    /**
+     * Returns the number of nodes with a score in range
+     */
+    public int count(Range range)
+    {
+	Node first = firstInRange(range);
+	if (first == null)
+	    return 0;
+
+	Node last = lastInRange(range);
+	return rank(last.score, last.member) - rank(first.score, first.member) + 1;
+    }
+
+    /**
+     * Removes the nodes with a score in range, and their members from dict
+     */
+    public int deleteRange(Range range, Map<String, ?> dict)
+    {
+	if (range.isEmpty())
+	    return 0;
+
+	Node update[] = new Node[MAXLEVEL];
+	Node x = head;
+
+	for (int i = level-1; i >= 0; i--) {
+	    while (x.next[i] != null && !range.gteMin(x.next[i].score))
+		x = x.next[i];
+	    update[i] = x;
+	}
+
+	int removed = 0;
+	x = x.next[0];
+
+	while (x != null && range.lteMax(x.score)) {
+	    Node next = x.next[0];
+	    deleteNode(x, update);
+	    dict.remove(x.member);
+	    removed++;
+	    x = next;
+	}
+
+	return removed;
+    }
+
+    /**
+     * Removes the nodes from rank start to rank end (0-based, inclusive),
+     * and their members from dict
+     */
+    public int deleteRangeByRank(int start, int end, Map<String, ?> dict)
+    {
+	Node update[] = new Node[MAXLEVEL];
+	int traversed = 0;
+	Node x = head;
+
+	for (int i = level-1; i >= 0; i--) {
+	    while (x.next[i] != null && traversed + x.span[i] <= start) {
+		traversed += x.span[i];
+		x = x.next[i];
+	    }
+	    update[i] = x;
+	}
+
+	int removed = 0;
+	x = x.next[0];
+
+	while (x != null && traversed <= end) {
+	    Node next = x.next[0];
+	    deleteNode(x, update);
+	    dict.remove(x.member);
+	    removed++;
+	    traversed++;
+	    x = next;
+	}
+
+	return removed;
+    }
+
+    private void deleteNode(Node x, Node update[])
+    {
+	for (int i = 0; i < level; i++) {
+	    if (update[i].next[i] == x) {
+		update[i].span[i] += x.span[i] - 1;
+		update[i].next[i] = x.next[i];
+	    } else
+		update[i].span[i]--;
+	}
+
+	if (x.next[0] != null)
+	    x.next[0].backward = x.backward;
+	else
+	    tail = x.backward;
+
+	while (level > 1 && head.next[level-1] == null)
+	    level--;
+
+	length--;
+    }
+
+    // true if the node sorts before score and member
+    private static boolean before(Node x, double score, String member)
+    {
+	return x.score < score
+	    || (x.score == score && x.member.compareTo(member) < 0);
+    }
+
+    // each level is taken with probability 1/4
+    private int randomLevel()
+    {
+	int x = seed;
+	x ^= x << 13;
+	x ^= x >>> 17;
+	x ^= x << 5;
+	seed = x;
+
+	int lvl = 1;
+	while ((x & 3) == 0 && lvl < MAXLEVEL) {
+	    lvl++;
+	    x >>>= 2;
+	}
+
+	return lvl;
+    }
+}